@@ -0,0 +1,84 @@
+package edu.seg2105.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import edu.seg2105.server.backend.ServerEngine;
+
+/**
+ * Odds and ends shared by the benchmarks.
+ */
+public final class BenchSupport
+{
+  /**
+   * The password of the key store made by selfSignedCertificate.
+   */
+  public static final String KEY_STORE_PASSWORD = "changeit";
+
+  private BenchSupport() {}
+
+  /**
+   * Sends System.out nowhere.  The server and consoles print a line for
+   * most events, and the benchmarks measure the work around the printing.
+   */
+  public static void silenceStdout()
+  {
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  /**
+   * Returns a port nothing is listening on right now.
+   */
+  public static int freePort() throws IOException
+  {
+    try (ServerSocket probe = new ServerSocket(0))
+    {
+      return probe.getLocalPort();
+    }
+  }
+
+  /**
+   * Starts an engine and waits until it accepts connections.
+   */
+  public static void listen(ServerEngine engine) throws IOException, InterruptedException
+  {
+    engine.listen();
+    for (int i = 0; i < 500 && !engine.isListening(); i++)
+    {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Makes a key store with a self-signed certificate for localhost in a
+   * new temporary directory, with keytool, as Tls describes.  The
+   * directory holds chat.p12, for the server, and chat.pem, for clients
+   * to trust.
+   */
+  public static Path selfSignedCertificate() throws IOException, InterruptedException
+  {
+    Path dir = Files.createTempDirectory("simplechat-tls");
+    dir.toFile().deleteOnExit(); // deleted last, after the files below
+    String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+    keytool(dir, keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+      "-validity", "1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+      "-storetype", "PKCS12", "-keystore", "chat.p12", "-storepass", KEY_STORE_PASSWORD);
+    keytool(dir, keytool, "-exportcert", "-rfc", "-alias", "chat",
+      "-keystore", "chat.p12", "-storepass", KEY_STORE_PASSWORD, "-file", "chat.pem");
+    dir.resolve("chat.p12").toFile().deleteOnExit();
+    dir.resolve("chat.pem").toFile().deleteOnExit();
+    return dir;
+  }
+
+  private static void keytool(Path dir, String... command) throws IOException, InterruptedException
+  {
+    Process process = new ProcessBuilder(command).directory(dir.toFile())
+      .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+    if (process.waitFor() != 0) throw new IOException("keytool failed: " + String.join(" ", command));
+  }
+}
@@ -0,0 +1,70 @@
+package edu.seg2105.bench;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.seg2105.server.backend.ClientConnection;
+import edu.seg2105.server.backend.Session;
+
+/**
+ * A ClientConnection with no socket behind it.  It counts what it is
+ * sent so the work cannot be optimized away.
+ */
+public class MockConnection implements ClientConnection
+{
+  private final Map<String, Object> info = new HashMap<String, Object>();
+  private Session session;
+
+  /**
+   * Messages and bytes received so far.
+   */
+  public long messages;
+  public long bytes;
+
+  public void sendToClient(Object msg)
+  {
+    messages++;
+    if (msg instanceof ByteBuffer) bytes += ((ByteBuffer) msg).remaining();
+  }
+
+  public void close() {}
+
+  public void closeNow() {}
+
+  public void setInfo(String infoType, Object value)
+  {
+    info.put(infoType, value);
+  }
+
+  public Object getInfo(String infoType)
+  {
+    return info.get(infoType);
+  }
+
+  public void setSession(Session session)
+  {
+    this.session = session;
+  }
+
+  public Session getSession()
+  {
+    return session;
+  }
+
+  public InetAddress getInetAddress()
+  {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  public int getOutboundDepth()
+  {
+    return 0;
+  }
+
+  public long getDroppedMessages()
+  {
+    return 0;
+  }
+}
@@ -0,0 +1,82 @@
+package edu.seg2105.client.backend;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.server.backend.EchoServer;
+
+/**
+ * A burst of chat lines from a binary ChatClient, as when a script is
+ * piped into ClientConsole, timed until the last echo comes back.  A
+ * window of 0 sends one write per line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchingBenchmark
+{
+  private static final int BURST = 1000;
+
+  @Param({"nio", "threads"})
+  public String engine;
+
+  @Param({"0", "2"})
+  public int windowMillis;
+
+  private EchoServer server;
+  private ChatClient client;
+  private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    int port = BenchSupport.freePort();
+    server = new EchoServer(port, engine, 1);
+    BenchSupport.listen(server.getEngine());
+    client = new ChatClient("localhost", port, replies::add, "bench", true);
+    while (true)
+    {
+      String reply = replies.poll(10, TimeUnit.SECONDS);
+      if (reply == null) throw new IllegalStateException("no welcome from the server");
+      if (reply.startsWith("Welcome")) break;
+    }
+    client.setBatching(windowMillis, ChatClient.DEFAULT_BATCH_BYTES);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    client.disconnect();
+    server.getEngine().close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public String burst() throws InterruptedException
+  {
+    for (int i = 0; i < BURST; i++) client.handleMessageFromClientUI("line");
+    String last = null;
+    for (int i = 0; i < BURST; i++) last = replies.take();
+    return last;
+  }
+}
@@ -0,0 +1,75 @@
+package edu.seg2105.client.backend;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.server.backend.EchoServer;
+
+/**
+ * One chat line from ChatClient to the server and back over loopback,
+ * for each engine and protocol.  The OCSF engine has no binary protocol,
+ * so its binary runs measure the fallback to object streams.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoundTripBenchmark
+{
+  @Param({"ocsf", "nio", "threads"})
+  public String engine;
+
+  @Param({"false", "true"})
+  public boolean binary;
+
+  private EchoServer server;
+  private ChatClient client;
+  private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    int port = BenchSupport.freePort();
+    server = new EchoServer(port, engine, 1);
+    BenchSupport.listen(server.getEngine());
+    client = new ChatClient("localhost", port, replies::add, "bench", binary);
+    while (true)
+    {
+      String reply = replies.poll(10, TimeUnit.SECONDS);
+      if (reply == null) throw new IllegalStateException("no welcome from the server");
+      if (reply.startsWith("Welcome")) break;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    client.disconnect();
+    server.getEngine().close();
+  }
+
+  @Benchmark
+  public String ping() throws InterruptedException
+  {
+    client.handleMessageFromClientUI("ping");
+    return replies.take();
+  }
+}
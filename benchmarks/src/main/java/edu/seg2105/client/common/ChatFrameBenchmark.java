@@ -0,0 +1,73 @@
+package edu.seg2105.client.common;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The binary frame format on its own: encoding a frame, decoding a whole
+ * one, and finding that a buffer holds only part of one, which the NIO
+ * engine does whenever a frame spans two reads.  "tagged" frames carry a
+ * sender id and a sequence number, as broadcasts do; "plain" ones carry
+ * neither, as a client's chat line does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChatFrameBenchmark
+{
+  @Param({"16", "256", "4096"})
+  public int length;
+
+  @Param({"plain", "tagged"})
+  public String header;
+
+  private ChatFrame frame;
+  private ByteBuffer encoded;
+  private ByteBuffer partial;
+
+  @Setup
+  public void setUp()
+  {
+    String text = "alice> " + "x".repeat(Math.max(0, length - 7));
+    frame = header.equals("tagged")
+      ? new ChatFrame(ChatFrame.CHAT, 42, 1_000_000, text)
+      : new ChatFrame(ChatFrame.CHAT, text);
+    encoded = frame.encode();
+    partial = encoded.duplicate();
+    partial.limit(partial.limit() - 1);
+  }
+
+  @Benchmark
+  public ByteBuffer encode()
+  {
+    return frame.encode();
+  }
+
+  @Benchmark
+  public ChatFrame decode() throws StreamCorruptedException
+  {
+    return ChatFrame.decode(encoded.duplicate());
+  }
+
+  @Benchmark
+  public ChatFrame decodePartial() throws StreamCorruptedException
+  {
+    return ChatFrame.decode(partial.duplicate());
+  }
+}
@@ -0,0 +1,111 @@
+package edu.seg2105.client.common;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What compressing a frame costs against what it saves, by payload size:
+ * encoding alone, encoding and deflating, and inflating on the way in.
+ * "log" is a pasted stack trace; "random" is base64 noise that deflate
+ * cannot shrink, which ChatFrame.deflate gives up on.  The bytes on the
+ * wire with and without compression are printed once per trial, since a
+ * broadcast pays the deflate once and saves the bytes for every client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark
+{
+  @Param({"256", "1024", "4096", "16384", "65536"})
+  public int length;
+
+  @Param({"log", "random"})
+  public String content;
+
+  private ChatFrame frame;
+  private ByteBuffer deflated;
+  private final List<ChatFrame> decoded = new ArrayList<ChatFrame>(1);
+
+  @Setup
+  public void setUp()
+  {
+    frame = new ChatFrame(ChatFrame.CHAT, 42, 1_000_000, payload(content, length));
+    ByteBuffer encoded = frame.encode();
+    deflated = ChatFrame.deflate(encoded);
+    int wire = deflated == null ? encoded.remaining() : deflated.remaining();
+    System.err.printf("%s %d: %d bytes plain, %d compressed (%d%% saved)%n", content, length,
+      encoded.remaining(), wire, 100 - 100 * wire / encoded.remaining());
+  }
+
+  @Benchmark
+  public ByteBuffer encode()
+  {
+    return frame.encode();
+  }
+
+  @Benchmark
+  public ByteBuffer encodeAndDeflate()
+  {
+    ByteBuffer encoded = frame.encode();
+    ByteBuffer d = ChatFrame.deflate(encoded);
+    return d != null ? d : encoded;
+  }
+
+  @Benchmark
+  public List<ChatFrame> decodePlain() throws StreamCorruptedException
+  {
+    decoded.clear();
+    ChatFrame.decode(frame.encode(), decoded);
+    return decoded;
+  }
+
+  @Benchmark
+  public List<ChatFrame> inflateAndDecode() throws StreamCorruptedException
+  {
+    decoded.clear();
+    ChatFrame.decode(deflated != null ? deflated.duplicate() : frame.encode(), decoded);
+    return decoded;
+  }
+
+  private static String payload(String content, int length)
+  {
+    StringBuilder text = new StringBuilder(length + 128);
+    if (content.equals("random"))
+    {
+      byte[] noise = new byte[length];
+      new Random(1).nextBytes(noise);
+      text.append(Base64.getEncoder().encodeToString(noise));
+    }
+    else
+    {
+      text.append("java.lang.IllegalStateException: channel closed\n");
+      for (int i = 0; text.length() < length; i++)
+      {
+        text.append("\tat edu.seg2105.server.backend.NioConnection.onReadable(NioConnection.java:")
+          .append(250 + (i * 7) % 90).append(")\n");
+      }
+    }
+    text.setLength(length);
+    return text.toString();
+  }
+}
@@ -0,0 +1,81 @@
+package edu.seg2105.client.ui;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.server.backend.EchoServer;
+
+/**
+ * Console command parsing on both sides.  The commands chosen only read
+ * or report state, so every invocation does the same work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBenchmark
+{
+  private EchoServer server;
+  private ClientConsole console;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    int port = BenchSupport.freePort();
+    server = new EchoServer(port, EchoServer.ENGINE_NIO, 1);
+    BenchSupport.listen(server.getEngine());
+    console = new ClientConsole("localhost", port, "bench");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    console.client.disconnect();
+    server.getEngine().close();
+  }
+
+  @Benchmark
+  public void clientGetPort()
+  {
+    console.handleClientCommand("#getport");
+  }
+
+  @Benchmark
+  public void clientSetPortWhileConnected()
+  {
+    console.handleClientCommand("#setport 6000");
+  }
+
+  @Benchmark
+  public void clientUnknown()
+  {
+    console.handleClientCommand("#frobnicate now");
+  }
+
+  @Benchmark
+  public void serverGetPort()
+  {
+    server.handleServerCommand("#getport");
+  }
+
+  @Benchmark
+  public void serverSlowClients()
+  {
+    server.handleServerCommand("#slowclients 5");
+  }
+}
@@ -0,0 +1,82 @@
+package edu.seg2105.server.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.bench.MockConnection;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Routing one message with 10k clients logged in and spread evenly over
+ * 500 channels (20 members each): to a channel, to one user, and, for
+ * comparison, to everyone as every message was before channels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelRoutingBenchmark
+{
+  @Param({"10000"})
+  public int clients;
+
+  @Param({"500"})
+  public int channels;
+
+  private EchoServer server;
+  private MockConnection sender;
+  private final List<ClientConnection> everyone = new ArrayList<ClientConnection>();
+  private final ChatFrame frame = new ChatFrame(ChatFrame.CHAT, 1, "u0> hello");
+
+  @Setup
+  public void setUp()
+  {
+    BenchSupport.silenceStdout();
+    server = new EchoServer(0, EchoServer.ENGINE_OCSF, 1);
+    for (int i = 0; i < clients; i++)
+    {
+      MockConnection c = new MockConnection();
+      server.handleMessageFromClient("#login u" + i, c);
+      server.handleMessageFromClient("#join c" + (i % channels), c);
+      everyone.add(c);
+    }
+    sender = (MockConnection) everyone.get(0);
+  }
+
+  @Benchmark
+  public MockConnection channelMessage()
+  {
+    server.handleMessageFromClient("hello", sender);
+    return sender;
+  }
+
+  @Benchmark
+  public MockConnection directMessage()
+  {
+    server.handleMessageFromClient("#w u5000 hello", sender);
+    return sender;
+  }
+
+  @Benchmark
+  public MockConnection broadcastToEveryone()
+  {
+    server.getEngine().sendToClients(everyone, frame);
+    return sender;
+  }
+}
@@ -0,0 +1,98 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.bench.MockConnection;
+
+/**
+ * A broadcast to 10k clients while other threads log clients in and out
+ * as fast as they can, against the same broadcast on a quiet server.
+ * Sampled, so the percentiles show whether the churn stalls broadcasts
+ * rather than just slowing the average.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConnectionChurnBenchmark
+{
+  @Param({"10000"})
+  public int clients;
+
+  private EchoServer server;
+  private MockConnection sender;
+  private final AtomicInteger churners = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class Churner
+  {
+    String prefix;
+    long next;
+
+    @Setup
+    public void setUp(ConnectionChurnBenchmark bench)
+    {
+      prefix = "#login churn" + bench.churners.incrementAndGet() + "_";
+    }
+  }
+
+  @Setup
+  public void setUp()
+  {
+    BenchSupport.silenceStdout();
+    server = new EchoServer(0, EchoServer.ENGINE_OCSF, 1);
+    for (int i = 0; i < clients; i++)
+    {
+      server.handleMessageFromClient("#login u" + i, new MockConnection());
+    }
+    sender = new MockConnection();
+    server.handleMessageFromClient("#login sender", sender);
+  }
+
+  @Benchmark
+  @Group("quiet")
+  @GroupThreads(1)
+  public MockConnection broadcastQuiet()
+  {
+    server.handleMessageFromClient("hello", sender);
+    return sender;
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(1)
+  public MockConnection broadcastDuringChurn()
+  {
+    server.handleMessageFromClient("hello", sender);
+    return sender;
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(3)
+  public MockConnection loginAndDisconnect(Churner churner)
+  {
+    MockConnection c = new MockConnection();
+    server.handleMessageFromClient(churner.prefix + churner.next++, c);
+    server.clientDisconnected(c);
+    return c;
+  }
+}
@@ -0,0 +1,94 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.MockConnection;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * The cost of preparing one broadcast for every client, before any bytes
+ * reach a socket.  The ocsf engine serializes the message once per
+ * client through that client's ObjectOutputStream (objectStreamPerClient);
+ * the nio and threads engines encode it once per protocol and hand every
+ * client a view of the same bytes (serializedOnce, binaryFrameOnce).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark
+{
+  @Param({"1000", "10000"})
+  public int clients;
+
+  @Param({"32", "1024"})
+  public int length;
+
+  private String message;
+  private ObjectOutputStream[] streams;
+  private MockConnection[] connections;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    message = "alice> " + "x".repeat(Math.max(0, length - 7));
+    streams = new ObjectOutputStream[clients];
+    connections = new MockConnection[clients];
+    for (int i = 0; i < clients; i++)
+    {
+      streams[i] = new ObjectOutputStream(OutputStream.nullOutputStream());
+      connections[i] = new MockConnection();
+    }
+  }
+
+  @Benchmark
+  public ObjectOutputStream[] objectStreamPerClient() throws IOException
+  {
+    for (ObjectOutputStream out : streams)
+    {
+      out.writeObject(message);
+      out.reset();
+    }
+    return streams;
+  }
+
+  @Benchmark
+  public MockConnection[] serializedOnce()
+  {
+    ByteBuffer frame = SerializedStringCodec.encode(message, true);
+    for (MockConnection c : connections)
+    {
+      c.sendToClient(frame.duplicate());
+    }
+    return connections;
+  }
+
+  @Benchmark
+  public MockConnection[] binaryFrameOnce()
+  {
+    ByteBuffer frame = new ChatFrame(ChatFrame.CHAT, 1, message).encode();
+    for (MockConnection c : connections)
+    {
+      c.sendToClient(frame.duplicate());
+    }
+    return connections;
+  }
+}
@@ -0,0 +1,68 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.bench.MockConnection;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * EchoServer.handleMessageFromClient: login and logout through the
+ * session registry, and tagging a chat line.  Alice is the only client,
+ * so the broadcast itself is left to FanOutBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandleMessageBenchmark
+{
+  private EchoServer server;
+  private MockConnection alice;
+  private final ChatFrame chatFrame = new ChatFrame(ChatFrame.CHAT, "hello everyone");
+
+  @Setup
+  public void setUp()
+  {
+    BenchSupport.silenceStdout();
+    server = new EchoServer(0, EchoServer.ENGINE_NIO, 1);
+    alice = new MockConnection();
+    server.handleMessageFromClient("#login alice", alice);
+  }
+
+  @Benchmark
+  public MockConnection loginAndDisconnect()
+  {
+    MockConnection bob = new MockConnection();
+    server.handleMessageFromClient("#login bob", bob);
+    server.clientDisconnected(bob);
+    return bob;
+  }
+
+  @Benchmark
+  public MockConnection chatLine()
+  {
+    server.handleMessageFromClient("hello everyone", alice);
+    return alice;
+  }
+
+  @Benchmark
+  public MockConnection chatFrame()
+  {
+    server.handleMessageFromClient(chatFrame, alice);
+    return alice;
+  }
+}
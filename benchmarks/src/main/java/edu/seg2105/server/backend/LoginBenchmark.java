@@ -0,0 +1,96 @@
+package edu.seg2105.server.backend;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.bench.MockConnection;
+
+/**
+ * A #login with a password, from the message to the session: with no
+ * authenticator, with the password verified lately, and hashed again
+ * against a PasswordFile at its default iterations.  readerHeld times
+ * only the call the connection's reader makes, which with a hash to do
+ * hands it to a verifier and returns; the client leaves at once, so the
+ * queued check is dropped unhashed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoginBenchmark
+{
+  @Param({"none", "cached", "hashed"})
+  public String password;
+
+  private EchoServer server;
+  private Authenticator authenticator;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    server = new EchoServer(0, EchoServer.ENGINE_NIO, 1);
+    if (password.equals("none")) return;
+    Path file = Files.createTempFile("simplechat-users", ".txt");
+    file.toFile().deleteOnExit();
+    PasswordFile users = new PasswordFile(file);
+    users.put("bob", "correct horse".toCharArray());
+    authenticator = users;
+    server.setAuthenticator(authenticator);
+    login(); // the first one is always hashed
+  }
+
+  @Benchmark
+  public MockConnection login() throws InterruptedException
+  {
+    if (password.equals("hashed")) server.setAuthenticator(authenticator); // forgets verified passwords
+    LoginConnection bob = new LoginConnection();
+    server.handleMessageFromClient("#login bob correct horse", bob);
+    if (!bob.loggedIn.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("bob was not let in");
+    server.clientDisconnected(bob);
+    return bob;
+  }
+
+  @Benchmark
+  public MockConnection readerHeld()
+  {
+    if (password.equals("hashed")) server.setAuthenticator(authenticator);
+    LoginConnection bob = new LoginConnection();
+    server.handleMessageFromClient("#login bob correct horse", bob);
+    server.clientDisconnected(bob);
+    return bob;
+  }
+
+  /**
+   * Says when a session is attached, which with a hash to do happens on
+   * a verifier thread.
+   */
+  static class LoginConnection extends MockConnection
+  {
+    final CountDownLatch loggedIn = new CountDownLatch(1);
+
+    @Override
+    public void setSession(Session session)
+    {
+      super.setSession(session);
+      if (session != null) loggedIn.countDown();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One chat line through the message filter with 100 and 1000 masked
+ * words, a link redaction and a length cap: compiled by FilterRules into
+ * one keyword automaton, against a stage that tries a case-insensitive
+ * whole-word pattern per word, and against no filter at all.  The line
+ * has one link and one masked word in it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageFilterBenchmark
+{
+  private static final String LINK_RULE = "redact https?://\\S+ => [link]";
+
+  @Param({"none", "per-word", "compiled"})
+  public String filter;
+
+  @Param({"100", "1000"})
+  public int words;
+
+  private MessageFilter pipeline;
+  private String line;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    Random random = new Random(42);
+    List<String> list = new ArrayList<String>();
+    for (int i = 0; i < words; i++)
+    {
+      StringBuilder w = new StringBuilder();
+      for (int n = 5 + random.nextInt(4); n > 0; n--) w.append((char) ('a' + random.nextInt(26)));
+      list.add(w.toString());
+    }
+    line = "hey everyone, the build is green again, see https://ci.example.org/job/42 for the "
+      + list.get(words / 2) + " details";
+
+    pipeline = new MessageFilter(new ServerLog(ServerLog.DEFAULT_CAPACITY));
+    if (filter.equals("compiled"))
+    {
+      List<String> rules = new ArrayList<String>();
+      rules.add("maxlength 500");
+      rules.add("mask " + String.join(" ", list));
+      rules.add(LINK_RULE);
+      for (MessageStage stage : FilterRules.compile(rules, "benchmark")) pipeline.add(stage);
+    }
+    else if (filter.equals("per-word"))
+    {
+      for (MessageStage stage : FilterRules.compile(List.of("maxlength 500"), "benchmark")) pipeline.add(stage);
+      pipeline.add(new PerWord(list));
+      for (MessageStage stage : FilterRules.compile(List.of(LINK_RULE), "benchmark")) pipeline.add(stage);
+    }
+  }
+
+  @Benchmark
+  public String apply()
+  {
+    return pipeline.apply(null, line);
+  }
+
+  /**
+   * The loop the automaton replaces: one precompiled pattern per word.
+   */
+  private static final class PerWord implements MessageStage
+  {
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<String> stars = new ArrayList<String>();
+
+    PerWord(List<String> words)
+    {
+      for (String w : words)
+      {
+        patterns.add(Pattern.compile("(?<![\\p{L}\\p{N}])" + Pattern.quote(w) + "(?![\\p{L}\\p{N}])",
+          Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+        stars.add("*".repeat(w.length()));
+      }
+    }
+
+    public String name()
+    {
+      return "per-word patterns";
+    }
+
+    public String apply(Session sender, String text)
+    {
+      for (int i = 0; i < patterns.size(); i++)
+      {
+        Matcher m = patterns.get(i).matcher(text);
+        if (m.find()) text = m.replaceAll(stars.get(i));
+      }
+      return text;
+    }
+  }
+}
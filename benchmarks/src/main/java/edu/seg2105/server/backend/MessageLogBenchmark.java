@@ -0,0 +1,75 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The history log behind #history: appending one broadcast, from one
+ * thread and from four at once, and replaying the last 20 messages.
+ * Retention keeps the log at 256 MB so long runs do not fill the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageLogBenchmark
+{
+  private Path dir;
+  private MessageLog log;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    dir = Files.createTempDirectory("history-bench");
+    log = MessageLog.open(dir, 256L << 20, TimeUnit.DAYS.toMillis(1));
+    for (int i = 0; i < 1000; i++) log.append(System.currentTimeMillis(), "alice> warm-up line " + i);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    log.close();
+    try (var files = Files.list(dir))
+    {
+      for (Path f : (Iterable<Path>) files::iterator) Files.deleteIfExists(f);
+    }
+    Files.deleteIfExists(dir);
+  }
+
+  @Benchmark
+  public long append() throws IOException
+  {
+    return log.append(System.currentTimeMillis(), "alice> hello everyone, this is a typical chat line");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long appendContended() throws IOException
+  {
+    return log.append(System.currentTimeMillis(), "alice> hello everyone, this is a typical chat line");
+  }
+
+  @Benchmark
+  public long replayLast20(Blackhole bh)
+  {
+    return log.read(log.nextOffset() - 20, EchoServer.MAX_HISTORY, (offset, time, text) -> bh.consume(text));
+  }
+}
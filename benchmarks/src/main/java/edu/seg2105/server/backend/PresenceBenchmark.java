@@ -0,0 +1,114 @@
+package edu.seg2105.server.backend;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.MockConnection;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * What telling presence subscribers about a mass reconnect costs: 1000
+ * ids come back (or go) at once, with 100 and 1000 mock connections
+ * subscribed.  The server's Presence gathers them into one delta per
+ * window; the alternative sends every subscriber a message per login.
+ * Each frame is encoded once and every subscriber is handed a view of it.
+ * The teardown prints how many messages each subscriber got per wave.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresenceBenchmark
+{
+  @Param({"1000"})
+  public int reconnecting;
+
+  @Param({"100", "1000"})
+  public int subscribers;
+
+  private String[] ids;
+  private final Set<String> online = new HashSet<String>();
+  private MockConnection[] connections;
+  private List<ClientConnection> recipients;
+  private Presence presence;
+  private long version = 0;
+  private long waves = 0;
+
+  @Setup
+  public void setUp()
+  {
+    ids = new String[reconnecting];
+    for (int i = 0; i < reconnecting; i++) ids[i] = "user" + i;
+    connections = new MockConnection[subscribers];
+    for (int i = 0; i < subscribers; i++) connections[i] = new MockConnection();
+    recipients = List.of(connections);
+    // a window no run outlasts, so only the benchmark flushes
+    presence = new Presence(online::contains, this::send, TimeUnit.HOURS.toMillis(1));
+    for (MockConnection c : connections) presence.subscribe(c);
+    presence.flush();
+    for (MockConnection c : connections) c.messages = 0;
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    if (waves > 0) System.err.printf("%n%d messages per subscriber per wave%n", connections[0].messages / waves);
+  }
+
+  @Benchmark
+  public MockConnection[] coalesced()
+  {
+    wave();
+    for (String id : ids) presence.touch(id);
+    presence.flush();
+    return connections;
+  }
+
+  @Benchmark
+  public MockConnection[] perEvent()
+  {
+    boolean up = wave();
+    for (String id : ids)
+    {
+      send(recipients, new ChatFrame(ChatFrame.PRESENCE, ChatFrame.PRESENCE_TEXT + ++version + (up ? " +" : " -") + id));
+    }
+    return connections;
+  }
+
+  // Every id comes back, or goes again, so each wave changes something.
+  private boolean wave()
+  {
+    waves++;
+    boolean up = online.isEmpty();
+    for (String id : ids)
+    {
+      if (up) online.add(id);
+      else online.remove(id);
+    }
+    return up;
+  }
+
+  private void send(List<ClientConnection> to, ChatFrame frame)
+  {
+    ByteBuffer bytes = frame.encode();
+    for (ClientConnection c : to) ((MockConnection) c).sendToClient(bytes.duplicate());
+  }
+}
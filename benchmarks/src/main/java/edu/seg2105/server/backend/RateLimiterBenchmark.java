@@ -0,0 +1,84 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The rate limit check on every message from a logged-in client: per-user
+ * buckets only, and per-user plus the server-wide buckets that every
+ * client thread shares, from one thread and from four.  The limits are
+ * set high enough that every message is let through, so this is the cost
+ * of the check itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark
+{
+  private static final String LINE = "alice> hello everyone, this is a typical chat line";
+
+  @Param({"off", "user", "user+global"})
+  public String limits;
+
+  private RateLimiter limiter;
+  private final AtomicLong ids = new AtomicLong();
+
+  @State(Scope.Thread)
+  public static class Client
+  {
+    Session session;
+
+    @Setup
+    public void setUp(RateLimiterBenchmark bench)
+    {
+      long id = bench.ids.incrementAndGet();
+      session = new Session("user" + id, id, null, "token");
+    }
+  }
+
+  @Setup
+  public void setUp()
+  {
+    limiter = new RateLimiter();
+    TokenBucket.Limit huge = new TokenBucket.Limit(1e12, 1_000_000_000L);
+    if (!limits.equals("off"))
+    {
+      limiter.setUserMessages(huge);
+      limiter.setUserBytes(huge);
+    }
+    if (limits.equals("user+global"))
+    {
+      limiter.setGlobalMessages(huge);
+      limiter.setGlobalBytes(huge);
+    }
+  }
+
+  @Benchmark
+  public String admit(Client client)
+  {
+    return limiter.admit(client.session, LINE, System.nanoTime());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String admitContended(Client client)
+  {
+    return limiter.admit(client.session, LINE, System.nanoTime());
+  }
+}
@@ -0,0 +1,87 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a connection's idle watch costs to move: cancel its timeout and
+ * schedule the next one, with 1k and 100k other connections waiting, on
+ * the server's TimerWheel and on a ScheduledThreadPoolExecutor that
+ * removes what is cancelled.  Nothing comes due while it runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerWheelBenchmark
+{
+  private static final long DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final Runnable NOTHING = () -> {};
+
+  @Param({"wheel", "executor"})
+  public String timers;
+
+  @Param({"1000", "100000"})
+  public int pending;
+
+  private TimerWheel wheel;
+  private ScheduledThreadPoolExecutor executor;
+  private TimerWheel.Timeout[] timeouts;
+  private Future<?>[] futures;
+  private int next = 0;
+
+  @Setup
+  public void setUp()
+  {
+    if (timers.equals("wheel"))
+    {
+      wheel = new TimerWheel("bench-wheel", 250, 1024);
+      timeouts = new TimerWheel.Timeout[pending];
+      for (int i = 0; i < pending; i++) timeouts[i] = wheel.schedule(NOTHING, DELAY_MILLIS + i);
+    }
+    else
+    {
+      executor = new ScheduledThreadPoolExecutor(1);
+      executor.setRemoveOnCancelPolicy(true);
+      futures = new Future<?>[pending];
+      for (int i = 0; i < pending; i++) futures[i] = executor.schedule(NOTHING, DELAY_MILLIS + i, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    if (wheel != null) wheel.stop();
+    if (executor != null) executor.shutdownNow();
+  }
+
+  @Benchmark
+  public Object reschedule()
+  {
+    int i = next;
+    next = (i + 1) % pending;
+    if (wheel != null)
+    {
+      wheel.cancel(timeouts[i]);
+      return timeouts[i] = wheel.schedule(NOTHING, DELAY_MILLIS);
+    }
+    futures[i].cancel(false);
+    return futures[i] = executor.schedule(NOTHING, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+}
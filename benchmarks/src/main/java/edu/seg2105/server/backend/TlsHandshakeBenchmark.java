@@ -0,0 +1,86 @@
+package edu.seg2105.server.backend;
+
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.client.common.Tls;
+
+/**
+ * How many connections a second the threads engine takes over loopback:
+ * a plain TCP connect, a full TLS handshake, and a TLS handshake that
+ * resumes the session of the one before.  Each connection is closed as
+ * soon as it is up, so the server sees a login storm's worth of churn.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsHandshakeBenchmark
+{
+  @Param({"tcp", "full", "resumed"})
+  public String handshake;
+
+  private EchoServer server;
+  private SSLContext client;
+  private int port;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    port = BenchSupport.freePort();
+    server = new EchoServer(port, EchoServer.ENGINE_THREADS, 1);
+    if (!handshake.equals("tcp"))
+    {
+      Path dir = BenchSupport.selfSignedCertificate();
+      server.setTls(Tls.forServer(dir.resolve("chat.p12"), BenchSupport.KEY_STORE_PASSWORD.toCharArray()));
+      client = Tls.forClient(dir.resolve("chat.pem"));
+    }
+    BenchSupport.listen(server.getEngine());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    server.getEngine().close();
+  }
+
+  @Benchmark
+  public Socket connect() throws Exception
+  {
+    if (client == null)
+    {
+      try (Socket socket = new Socket("localhost", port))
+      {
+        return socket;
+      }
+    }
+    try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port))
+    {
+      socket.startHandshake();
+      // forgetting the session makes the next connection start over
+      if (handshake.equals("full")) socket.getSession().invalidate();
+      return socket;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package edu.seg2105.server.backend;
+
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.bench.BenchSupport;
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.Tls;
+
+/**
+ * What encryption costs once a binary ChatClient is connected to the
+ * threads engine: one line there and back, and a burst of lines timed
+ * until the last echo comes back, in plain text and over TLS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsThroughputBenchmark
+{
+  private static final int BURST = 1000;
+
+  @Param({"false", "true"})
+  public boolean tls;
+
+  private EchoServer server;
+  private ChatClient client;
+  private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    BenchSupport.silenceStdout();
+    int port = BenchSupport.freePort();
+    server = new EchoServer(port, EchoServer.ENGINE_THREADS, 1);
+    if (tls)
+    {
+      Path dir = BenchSupport.selfSignedCertificate();
+      server.setTls(Tls.forServer(dir.resolve("chat.p12"), BenchSupport.KEY_STORE_PASSWORD.toCharArray()));
+      BenchSupport.listen(server.getEngine());
+      client = new ChatClient("localhost", port, replies::add, "bench", Tls.forClient(dir.resolve("chat.pem")));
+    }
+    else
+    {
+      BenchSupport.listen(server.getEngine());
+      client = new ChatClient("localhost", port, replies::add, "bench", true);
+    }
+    while (true)
+    {
+      String reply = replies.poll(10, TimeUnit.SECONDS);
+      if (reply == null) throw new IllegalStateException("no welcome from the server");
+      if (reply.startsWith("Welcome")) break;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    client.disconnect();
+    server.getEngine().close();
+  }
+
+  @Benchmark
+  public String ping() throws InterruptedException
+  {
+    client.handleMessageFromClientUI("ping");
+    return replies.take();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public String burst() throws InterruptedException
+  {
+    for (int i = 0; i < BURST; i++) client.handleMessageFromClientUI("line");
+    String last = null;
+    for (int i = 0; i < BURST; i++) last = replies.take();
+    return last;
+  }
+}
@@ -7,6 +7,16 @@ package edu.seg2105.client.backend;
 // -- import the following ---
 import ocsf.client.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
 import edu.seg2105.client.common.*;
 
 /**
@@ -28,6 +38,7 @@ public class ChatClient extends AbstractClient
   ChatIF clientUI; 
   // -- new variables to remember who the client is --
   private String loginID;
+  private String password; // sent with every login when the server checks passwords; null for none
 
   // -- variables to distinguish user-initiated closes (#logoff/quit) from server shutdowns 
   private boolean userInitiatedClose = false;
@@ -35,6 +46,62 @@ public class ChatClient extends AbstractClient
 	  this.userInitiatedClose = v; 
   }
 
+  // -- binary protocol: asked for at connect time, object streams if the server says no
+  private boolean binaryPreferred = false;
+  private volatile FrameConnection frames; // null while on OCSF's object streams
+
+  // -- TLS (binary protocol only, never falls back): one context for every reconnect, so they resume the session
+  private SSLContext tls;
+
+  // -- batching (binary protocol only): how long a message may wait, and how many bytes flush early
+  public static final int DEFAULT_BATCH_BYTES = 8192;
+  private int batchWindowMillis = 0;
+  private int batchMaxBytes = DEFAULT_BATCH_BYTES;
+
+  // -- compression (binary protocol only): asked for before each login, used once the server agrees
+  private boolean compressionPreferred = true;
+
+  // -- reconnecting after a lost connection; the binary protocol also resumes the session
+  public static final long RECONNECT_MIN_MILLIS = 500;
+  public static final long RECONNECT_MAX_MILLIS = 30000;
+  private volatile boolean autoReconnect = true;
+  private volatile boolean reconnecting = false;
+  private volatile boolean refused = false;   // the server closed us on purpose, e.g. a bad login
+  private volatile String resumeToken;        // from the server's SESSION frame
+  private volatile long lastSeq = -1;         // the last numbered broadcast received
+
+  // -- set by the server's GOING_AWAY notice: where to reconnect, and the longest to wait before trying
+  public static final int MAX_HELD_MESSAGES = 1000;
+  private volatile String movedHost;          // null for the same host
+  private volatile int movedPort;
+  private volatile long movedWithin = -1;
+  private volatile boolean holding = false;   // typed messages wait in held until reconnected
+  private final List<String> held = new ArrayList<String>();
+
+  // -- heartbeats: a ping every so often, more often if the server's idle timeout needs it; a server that
+  // -- has answered pings and then goes quiet for three of them is taken for dead and reconnected to
+  public static final long DEFAULT_HEARTBEAT_MILLIS = 30000;
+  private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+	  Thread t = new Thread(r, "chat-heartbeat");
+	  t.setDaemon(true);
+	  return t;
+  });
+  private volatile long heartbeatMillis = DEFAULT_HEARTBEAT_MILLIS;
+  private volatile long serverIdleMillis = 0;  // from the server's PONG (MAX_VALUE for no limit); 0 until one comes
+  private volatile long lastHeard = System.nanoTime();
+  private ScheduledFuture<?> beat;            // guarded by this
+
+  // -- presence (see setPresence): who is online, from the server's snapshot and the deltas after it
+  public static final int PRESENCE_SHOWN = 20;
+  private volatile boolean presenceWanted = false;
+  private final Set<String> online = new TreeSet<String>();
+  private long presenceVersion = -1;          // guarded by online; -1 while waiting for a snapshot
+
+  // -- OCSF's object stream takes one writer at a time, and heartbeats and presence send from other
+  // -- threads than the user interface's; it also keeps anything sent before the login from overtaking it
+  private final Object sendLock = new Object();
+  private boolean loginSent = false;          // guarded by sendLock
+
   
   //Constructors ****************************************************
   
@@ -56,23 +123,224 @@ public class ChatClient extends AbstractClient
   
   public ChatClient(String host, int port, ChatIF clientUI, String loginID) 
     throws IOException 
+  {
+    this(host, port, clientUI, loginID, false);
+  }
+
+  /**
+   * Constructs an instance of the chat client.
+   *
+   * @param binary Whether to ask the server for the binary protocol.
+   */
+  public ChatClient(String host, int port, ChatIF clientUI, String loginID, boolean binary) 
+    throws IOException 
+  {
+    this(host, port, clientUI, loginID, null, binary, null);
+  }
+
+  /**
+   * Constructs an instance of the chat client that connects over TLS.
+   * OCSF's object streams cannot be encrypted, so this always uses the
+   * binary protocol.
+   *
+   * @param tls The context to connect with; see Tls.forClient.
+   */
+  public ChatClient(String host, int port, ChatIF clientUI, String loginID, SSLContext tls) 
+    throws IOException 
+  {
+    this(host, port, clientUI, loginID, null, true, tls);
+  }
+
+  /**
+   * Constructs an instance of the chat client, over TLS if a context is
+   * given (binary is then ignored; TLS is always binary).
+   *
+   * @param password Sent with the login id, for a server started with
+   *   --passwords; null for none.  Over plain sockets anyone on the path
+   *   can read it, so use TLS where that matters.
+   */
+  public ChatClient(String host, int port, ChatIF clientUI, String loginID, String password,
+    boolean binary, SSLContext tls) 
+    throws IOException 
   {
     super(host, port); //Call the superclass constructor
     this.clientUI = clientUI;
     this.loginID = loginID;
+    this.password = password;
+    this.binaryPreferred = binary || tls != null;
+    this.tls = tls;
     
-    openConnection(); // connect the client right away 
+    connect(); // connect the client right away 
 } 
   
 
  
   //Instance methods ************************************************
+
+  // === Connection ===
+
+  /**
+   * Connects to the server.  With the binary protocol preferred, asks for
+   * it first and falls back to OCSF's object streams if the server does
+   * not speak it.
+   */
+  public synchronized void connect() throws IOException {
+	  userInitiatedClose = false;
+	  refused = false;
+	  synchronized (sendLock) {
+		  loginSent = false;
+	  }
+	  if (binaryPreferred) {
+		  FrameConnection link = FrameConnection.open(getHost(), getPort(), this, tls);
+		  if (link != null) {
+			  frames = link;
+			  connectionEstablished(); // the login goes out on its own, ahead of any batch
+			  link.setBatching(batchWindowMillis, batchMaxBytes);
+			  startHeartbeat();
+			  return;
+		  }
+		  if (tls != null) throw new IOException("Server does not speak the binary protocol over TLS");
+		  if (clientUI != null) clientUI.display("Server does not speak the binary protocol; using object streams.");
+	  }
+	  frames = null;
+	  if (batchWindowMillis > 0 && clientUI != null) clientUI.display("Batching needs the binary protocol; sending messages one at a time.");
+	  openConnection();
+	  startHeartbeat();
+  }
+
+  /**
+   * Coalesces outgoing messages into one write per window.  Only the
+   * binary protocol can batch; OCSF writes and flushes each object on its
+   * own, so on object streams messages still go out one at a time.
+   *
+   * @param windowMillis The longest a message waits, or 0 to send at once.
+   * @param maxBytes A batch this large is sent without waiting.
+   */
+  public void setBatching(int windowMillis, int maxBytes) throws IOException {
+	  batchWindowMillis = Math.max(0, windowMillis);
+	  batchMaxBytes = maxBytes;
+	  FrameConnection link = frames;
+	  if (link != null) link.setBatching(batchWindowMillis, batchMaxBytes);
+	  else if (batchWindowMillis > 0 && isConnected() && clientUI != null) clientUI.display("Batching needs the binary protocol; sending messages one at a time.");
+  }
+
+  /**
+   * Turns compression of large messages on or off (on by default).  It is
+   * asked for at every login, and asked for or turned off right away if
+   * already connected.  Only the binary protocol compresses.
+   */
+  public void setCompression(boolean on) throws IOException {
+	  compressionPreferred = on;
+	  FrameConnection link = frames;
+	  if (link != null) link.send(new ChatFrame(ChatFrame.COMPRESS, on ? ChatFrame.DEFLATE : "off"));
+  }
+
+  /**
+   * Turns reconnecting after a lost connection on or off (on by default).
+   * Off, a lost connection ends the client as it always did.
+   */
+  public void setAutoReconnect(boolean on) {
+	  autoReconnect = on;
+  }
+
+  /**
+   * Sets how often to ping the server, or 0 not to.  A server that has
+   * answered and then sends nothing for three intervals is taken for dead:
+   * the client reconnects, or exits if reconnecting is off.  The server's
+   * idle timeout can make the interval shorter, never longer.
+   */
+  public synchronized void setHeartbeat(long millis) {
+	  heartbeatMillis = Math.max(0, millis);
+	  if (isOnline()) startHeartbeat();
+  }
+
+  /**
+   * Subscribes to presence, or stops.  Subscribed, the client is sent
+   * everyone online, then every quarter second or so who came, who left
+   * and who is typing; it shows each as one line and keeps the roster for
+   * getOnlineUsers.  It subscribes again after every reconnect.
+   */
+  public void setPresence(boolean on) throws IOException {
+	  synchronized (sendLock) { // before the login goes out, connectionEstablished asks instead
+		  presenceWanted = on;
+		  synchronized (online) {
+			  online.clear();
+			  presenceVersion = -1;
+		  }
+		  if (loginSent && isOnline()) askForPresence(on);
+	  }
+  }
+
+  /**
+   * Returns who is online, as of the server's last presence update, if
+   * subscribed.
+   */
+  public List<String> getOnlineUsers() {
+	  synchronized (online) {
+		  return new ArrayList<String>(online);
+	  }
+  }
+
+  /**
+   * Tells other users' presence subscriptions that this user is typing.
+   * A user interface calls it as keys are pressed; the server passes on
+   * one notice per window however often it is called.
+   */
+  public void sendTyping() throws IOException {
+	  if (!isOnline() || reconnecting) return;
+	  FrameConnection link = frames;
+	  if (link != null) link.send(new ChatFrame(ChatFrame.CHAT, "#typing"));
+	  else sendToServer("#typing");
+  }
+
+  /**
+   * Returns whether the client is connected on either protocol.
+   */
+  public boolean isOnline() {
+	  FrameConnection link = frames;
+	  return link != null ? link.isOpen() : isConnected();
+  }
+
+  /**
+   * Closes the connection at the user's request.
+   */
+  public void disconnect() throws IOException {
+	  userInitiatedClose = true;
+	  resumeToken = null; // logging back in later starts a new session
+	  stopHeartbeat();
+	  FrameConnection link = frames;
+	  if (link != null) link.close();
+	  else closeConnection();
+  }
+
+  /**
+   * Returns whether this connection carries binary frames.
+   */
+  public boolean isBinary() {
+	  return frames != null;
+  }
   
   // -- called by OCSF on every successful connect (initial connect and any reconnect)
+  // -- and by connect() once the binary protocol is agreed
   @Override 
   protected void connectionEstablished() {
 	  try {
-		  sendToServer("#login " + loginID);
+		  synchronized (sendLock) {
+			  FrameConnection link = frames;
+			  String token = resumeToken;
+			  if (link != null && compressionPreferred) link.send(new ChatFrame(ChatFrame.COMPRESS, ChatFrame.DEFLATE));
+			  String credentials = password != null && !password.isEmpty() ? loginID + " " + password : loginID;
+			  if (link != null && token != null) link.send(new ChatFrame(ChatFrame.RESUME, -1, lastSeq, token + " " + credentials));
+			  else if (link != null) link.send(new ChatFrame(ChatFrame.LOGIN, credentials));
+			  else sendToServer("#login " + credentials);
+			  loginSent = true;
+			  if (presenceWanted) {
+				  synchronized (online) {
+					  presenceVersion = -1; // numbering starts again from the new connection's snapshot
+				  }
+				  askForPresence(true);
+			  }
+		  }
 		  
 	  } catch (IOException e ) {
 		  if (clientUI != null) {
@@ -83,6 +351,7 @@ public class ChatClient extends AbstractClient
   
   @Override 
   protected void connectionClosed() {
+    if (reconnecting) return; // connectionException is already on it
     if (userInitiatedClose) {
       if (clientUI != null) clientUI.display("Disconnected from server");
       return; 
@@ -95,10 +364,147 @@ public class ChatClient extends AbstractClient
   
  @Override 
  protected void connectionException(Exception exception) {
-	 clientUI.display(" Lost connection to server : " + exception + " ");
-	 quit();
+	 if (userInitiatedClose || refused || !autoReconnect) {
+		 clientUI.display(" Lost connection to server : " + exception + " ");
+		 quit();
+		 return;
+	 }
+	 startReconnecting(exception);
+ }
+
+ // -- one reconnect thread at a time; connectionClosed stays quiet while it runs
+ private synchronized void startReconnecting(Exception cause) {
+	 if (reconnecting) return;
+	 reconnecting = true;
+	 if (clientUI != null) {
+		 if (movedWithin >= 0) clientUI.display("Server went away; reconnecting to "
+			 + (movedHost != null ? movedHost : getHost()) + ":" + movedPort + "...");
+		 else clientUI.display("Lost connection to server: " + cause + ". Reconnecting...");
+	 }
+	 Thread t = new Thread(this::reconnect, "chat-reconnect");
+	 t.setDaemon(true);
+	 t.start();
+ }
+
+ // -- exponential backoff with jitter, so clients dropped together do not all come back at once;
+ // -- after a GOING_AWAY the first try is anywhere in the window the server gave
+ private void reconnect() {
+	 long delay = RECONNECT_MIN_MILLIS;
+	 long first = -1;
+	 long within = movedWithin;
+	 if (within >= 0) {
+		 movedWithin = -1;
+		 if (movedHost != null) setHost(movedHost);
+		 setPort(movedPort);
+		 first = ThreadLocalRandom.current().nextLong(within + 1);
+	 }
+	 for (int attempt = 1; !userInitiatedClose; attempt++) {
+		 try {
+			 Thread.sleep(first >= 0 ? first : delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			 first = -1;
+		 } catch (InterruptedException e) {
+			 break;
+		 }
+		 synchronized (this) {
+			 if (userInitiatedClose || isOnline()) break;
+			 try {
+				 reconnecting = false; // a failure on the new connection starts over
+				 connect();
+				 if (clientUI != null) clientUI.display("Reconnected to " + getHost() + ":" + getPort() + ".");
+				 sendHeld();
+				 return;
+			 } catch (IOException e) {
+				 reconnecting = true;
+				 delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+				 if (clientUI != null) clientUI.display("Reconnect attempt " + attempt + " failed: " + e.getMessage()
+					 + ". Next try in about " + (delay + 999) / 1000 + "s.");
+			 }
+		 }
+	 }
+	 reconnecting = false;
+	 synchronized (held) {
+		 holding = false;
+		 held.clear();
+	 }
+ }
+
+ // -- sends what was typed while moving to another server, in order
+ private void sendHeld() {
+	 List<String> messages;
+	 synchronized (held) {
+		 holding = false;
+		 messages = new ArrayList<String>(held);
+		 held.clear();
+	 }
+	 for (String message : messages) handleMessageFromClientUI(message);
+ }
+
+ // === Heartbeats ===
+
+ // -- on every connect; the new connection counts as heard from, and has yet to answer a ping
+ private synchronized void startHeartbeat() {
+	 stopHeartbeat();
+	 lastHeard = System.nanoTime();
+	 serverIdleMillis = 0;
+	 if (heartbeatMillis > 0) beat = HEARTBEATS.schedule(this::heartbeat, heartbeatInterval(), TimeUnit.MILLISECONDS);
+ }
+
+ private synchronized void stopHeartbeat() {
+	 if (beat != null) beat.cancel(false);
+	 beat = null;
+ }
+
+ // -- a third of the server's idle timeout at most, so two pings can be lost without it closing us
+ private long heartbeatInterval() {
+	 long interval = heartbeatMillis;
+	 long idle = serverIdleMillis;
+	 return idle > 0 ? Math.min(interval, Math.max(100, idle / 3)) : interval;
+ }
+
+ private void heartbeat() {
+	 long interval;
+	 synchronized (this) {
+		 if (beat == null || heartbeatMillis <= 0) return; // stopped meanwhile
+		 interval = heartbeatInterval();
+		 beat = HEARTBEATS.schedule(this::heartbeat, interval, TimeUnit.MILLISECONDS);
+	 }
+	 if (reconnecting || !isOnline()) return;
+	 long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+	 if (serverIdleMillis > 0 && quiet >= 3 * interval) {
+		 serverSilent(quiet);
+		 return;
+	 }
+	 try {
+		 FrameConnection link = frames;
+		 if (link != null) link.send(new ChatFrame(ChatFrame.PING, ""));
+		 else sendToServer(ChatFrame.PING_TEXT);
+	 } catch (IOException ignored) {
+		 // the reader sees the broken connection too, and reconnects
+	 }
+ }
+
+ // -- a server that has stopped answering may never close the socket, so nothing else would notice
+ private void serverSilent(long quiet) {
+	 stopHeartbeat();
+	 Exception cause = new IOException("nothing heard from the server for " + quiet + " ms");
+	 if (autoReconnect) startReconnecting(cause); // first, so connectionClosed knows it is handled
+	 else if (clientUI != null) clientUI.display("Lost connection to server: " + cause.getMessage() + ".");
+	 try {
+		 FrameConnection link = frames;
+		 if (link != null) link.close();
+		 else closeConnection();
+	 } catch (IOException ignored) {}
+	 if (!autoReconnect) quit();
  }
  
+ // -- OCSF's object stream takes one writer at a time (see sendLock)
+ @Override
+ public void sendToServer(Object msg) throws IOException {
+	 synchronized (sendLock) {
+		 super.sendToServer(msg);
+	 }
+ }
+
  // === Message Handlers ===
     
   /**
@@ -108,10 +514,157 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-	  if (clientUI != null) clientUI.display(msg.toString());
+	  lastHeard = System.nanoTime();
+	  if (msg instanceof ChatFrame) {
+		  ChatFrame frame = (ChatFrame) msg;
+		  if (frame.getType() == ChatFrame.PONG) {
+			  acceptPong(frame.getText()); // not for display
+			  return;
+		  }
+		  if (frame.getType() == ChatFrame.PRESENCE) {
+			  acceptPresence(frame.getText());
+			  return;
+		  }
+		  if (frame.getType() == ChatFrame.SESSION) {
+			  resumeToken = frame.getText(); // not for display
+			  return;
+		  }
+		  if (frame.getType() == ChatFrame.COMPRESS) {
+			  acceptCompression(frame.getText()); // not for display
+			  return;
+		  }
+		  if (frame.getType() == ChatFrame.GOING_AWAY) goingAway(frame.getText());
+		  if (frame.getSeq() >= 0) lastSeq = frame.getSeq();
+	  }
+	  String text = msg.toString();
+	  if (msg instanceof String && text.startsWith(ChatFrame.PONG_TEXT)) {
+		  acceptPong(text); // not for display
+		  return;
+	  }
+	  if (msg instanceof String && text.startsWith(ChatFrame.PRESENCE_TEXT)) {
+		  acceptPresence(text);
+		  return;
+	  }
+	  if (text.startsWith("ERROR:") && text.endsWith("Closing connection.")) refused = true;
+	  if (msg instanceof String && text.startsWith(ChatFrame.GOING_AWAY_TEXT)) goingAway(text);
+	  if (clientUI != null) clientUI.display(text);
   }
   
 
+  // -- "SERVER GOING AWAY: reconnect to HOST:PORT within N ms".  Everything the server queued before
+  // -- the notice has arrived, so this end closes (the server still reads what was sent before it)
+  // -- and reconnects there; what is typed meanwhile waits and goes out once reconnected.
+  private void goingAway(String notice) {
+	  String[] parts = notice.substring(ChatFrame.GOING_AWAY_TEXT.length()).trim().split(" ");
+	  if (parts.length < 3 || !parts[1].equals("within")) return;
+	  int colon = parts[0].lastIndexOf(':');
+	  try {
+		  String host = parts[0].substring(0, colon);
+		  movedPort = Integer.parseInt(parts[0].substring(colon + 1));
+		  movedHost = host.isEmpty() ? null : host;
+		  movedWithin = Math.max(0, Long.parseLong(parts[2]));
+	  } catch (RuntimeException e) {
+		  return; // not a notice this client understands; the server closes the connection anyway
+	  }
+	  if (!autoReconnect) return;
+	  holding = true;
+	  try {
+		  FrameConnection link = frames;
+		  if (link != null) link.close();
+		  else closeConnection();
+	  } catch (IOException ignored) {}
+	  startReconnecting(null);
+  }
+
+  // -- "#pong <idle timeout in ms>", 0 for a server without one
+  private void acceptPong(String pong) {
+	  long idle = 0;
+	  try {
+		  idle = Long.parseLong(pong.substring(ChatFrame.PONG_TEXT.length()).trim());
+	  } catch (RuntimeException ignored) {}
+	  serverIdleMillis = idle > 0 ? idle : Long.MAX_VALUE;
+  }
+
+  // -- "#presence N = a b c" replaces the roster; "#presence N +d -b ~c" changes it, and must be the
+  // -- next number, or one was missed and a new snapshot is asked for
+  private void acceptPresence(String update) {
+	  String[] parts = update.substring(ChatFrame.PRESENCE_TEXT.length()).trim().split(" ");
+	  long version;
+	  try {
+		  version = Long.parseLong(parts[0]);
+	  } catch (NumberFormatException e) {
+		  return;
+	  }
+	  String shown;
+	  synchronized (online) {
+		  if (!presenceWanted) return;
+		  if (parts.length > 1 && parts[1].equals("=")) {
+			  online.clear();
+			  for (int i = 2; i < parts.length; i++) online.add(parts[i]);
+			  presenceVersion = version;
+			  shown = "Online (" + online.size() + "): " + (online.isEmpty() ? "nobody" : names(online));
+		  } else if (presenceVersion < 0) {
+			  return; // a snapshot is on its way
+		  } else if (version != presenceVersion + 1) {
+			  presenceVersion = -1;
+			  shown = null;
+		  } else {
+			  presenceVersion = version;
+			  List<String> came = new ArrayList<String>(), left = new ArrayList<String>(), typing = new ArrayList<String>();
+			  for (int i = 1; i < parts.length; i++) {
+				  if (parts[i].length() < 2) continue;
+				  String id = parts[i].substring(1);
+				  char change = parts[i].charAt(0);
+				  if (change == '+' && online.add(id)) came.add(id);
+				  else if (change == '-' && online.remove(id)) left.add(id);
+				  else if (change == '~') typing.add(id);
+			  }
+			  shown = (came.isEmpty() ? "" : "Now online: " + names(came) + ". ")
+				  + (left.isEmpty() ? "" : "Gone: " + names(left) + ". ")
+				  + (typing.isEmpty() ? "" : "Typing: " + names(typing) + ".");
+		  }
+	  }
+	  if (shown == null) {
+		  try {
+			  askForPresence(true); // missed an update; start again from a snapshot
+		  } catch (IOException ignored) {}
+		  return;
+	  }
+	  if (!shown.isEmpty() && clientUI != null) clientUI.display(shown.trim());
+  }
+
+  // -- "a, b, c", or the first PRESENCE_SHOWN and how many more
+  private static String names(Iterable<String> ids) {
+	  StringBuilder s = new StringBuilder();
+	  int n = 0, more = 0;
+	  for (String id : ids) {
+		  if (n == PRESENCE_SHOWN) more++;
+		  else s.append(n++ == 0 ? "" : ", ").append(id);
+	  }
+	  return more > 0 ? s + " and " + more + " more" : s.toString();
+  }
+
+  private void askForPresence(boolean on) throws IOException {
+	  String ask = on ? "#presence on" : "#presence off";
+	  FrameConnection link = frames;
+	  if (link != null) link.send(new ChatFrame(ChatFrame.CHAT, ask));
+	  else sendToServer(ask);
+  }
+
+  // -- the server answers COMPRESS with "deflate <threshold>", or "off"
+  private void acceptCompression(String answer) {
+	  FrameConnection link = frames;
+	  if (link == null) return;
+	  String[] parts = answer.trim().split(" ");
+	  int threshold = 0;
+	  if (parts.length == 2 && parts[0].equals(ChatFrame.DEFLATE)) {
+		  try {
+			  threshold = Integer.parseInt(parts[1]);
+		  } catch (NumberFormatException ignored) {}
+	  }
+	  link.setCompressAbove(threshold);
+  }
+
   /**
    * This method handles all data coming from the UI            
    *
@@ -119,9 +672,28 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromClientUI(String message)
   {
+    if (holding)
+    {
+      synchronized (held)
+      {
+        if (holding)
+        {
+          if (held.size() < MAX_HELD_MESSAGES) held.add(message);
+          else if (clientUI != null) clientUI.display("Still moving to the new server.  Message not sent.");
+          return;
+        }
+      }
+    }
+    if (reconnecting)
+    {
+      if (clientUI != null) clientUI.display("Not connected; still reconnecting.  Message not sent.");
+      return;
+    }
     try
     {
-      sendToServer(message);
+      FrameConnection link = frames;
+      if (link != null) link.send(new ChatFrame(ChatFrame.CHAT, message));
+      else sendToServer(message);
     }
     catch(IOException e) {
     		if (clientUI != null) {
@@ -142,7 +714,8 @@ public class ChatClient extends AbstractClient
   {
     try {
     		userInitiatedClose = true; // marks the intentional close
-    	    closeConnection();
+    	    if (frames != null) frames.close();
+    	    else closeConnection();
     } catch (IOException e) {}
     System.exit(0);
   }
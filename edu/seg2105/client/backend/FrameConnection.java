@@ -0,0 +1,331 @@
+package edu.seg2105.client.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * A client socket that speaks the binary chat protocol.  It stands in for
+ * AbstractClient's object streams, which cannot be switched to another
+ * format once OCSF has opened them, and reports back through the same
+ * ChatClient callbacks OCSF uses.
+ *
+ * <p>With batching on, frames are held for up to the batch window, or
+ * until they add up to the batch size, and then go out as one BATCH frame
+ * in a single write.  Frames keep their order either way.
+ *
+ * <p>Once the server has agreed to compression, anything written that is
+ * at least the server's threshold, a batch included, goes out as a
+ * DEFLATED frame.
+ *
+ * <p>Given a TLS context, the socket is encrypted before anything else is
+ * sent, and the server's certificate must name the host connected to.
+ */
+class FrameConnection implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * How long to wait for the server's answer to HELLO.
+   */
+  private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  /**
+   * The stream header every object stream starts with.
+   */
+  private static final byte[] STREAM_HEADER = {
+    (byte) 0xac, (byte) 0xed, 0x00, 0x05
+  };
+
+  //Instance variables **********************************************
+
+  private final ChatClient client;
+  private final Socket socket;
+  private final BufferedInputStream input;
+  private final BufferedOutputStream output;
+  private volatile boolean readyToStop = false;
+  private volatile int compressAbove = 0; // from the server's COMPRESS answer; 0 for never
+
+  // === Batching; guarded by this ===
+  private int batchWindowMillis = 0;
+  private int batchMaxBytes = 0;
+  private final List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+  private int batchBytes = 0;
+  private ScheduledExecutorService flusher;
+  private ScheduledFuture<?> pendingFlush;
+
+  //Constructors ****************************************************
+
+  private FrameConnection(ChatClient client, Socket socket) throws IOException
+  {
+    this.client = client;
+    this.socket = socket;
+    this.input = new BufferedInputStream(socket.getInputStream());
+    this.output = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Sends one frame to the server, or adds it to the current batch.
+   */
+  synchronized void send(ChatFrame frame) throws IOException
+  {
+    ByteBuffer bytes = frame.encode();
+    if (batchWindowMillis <= 0)
+    {
+      write(bytes);
+      return;
+    }
+    batch.add(bytes);
+    batchBytes += bytes.remaining();
+    if (batchBytes >= batchMaxBytes)
+    {
+      flush();
+    }
+    else if (pendingFlush == null)
+    {
+      pendingFlush = flusher().schedule(this::timedFlush, batchWindowMillis,
+        TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Turns batching on or off.  Anything already batched is sent first.
+   *
+   * @param windowMillis The longest a frame waits, or 0 for no batching.
+   * @param maxBytes The batch size that triggers an immediate write.
+   */
+  synchronized void setBatching(int windowMillis, int maxBytes) throws IOException
+  {
+    flush();
+    batchWindowMillis = Math.max(0, windowMillis);
+    batchMaxBytes = Math.max(1, Math.min(maxBytes, ChatFrame.MAX_FRAME_BYTES / 2));
+  }
+
+  /**
+   * Sends whatever is batched, as a plain frame if there is only one.
+   */
+  synchronized void flush() throws IOException
+  {
+    if (pendingFlush != null)
+    {
+      pendingFlush.cancel(false);
+      pendingFlush = null;
+    }
+    if (batch.isEmpty()) return;
+    ByteBuffer bytes = batch.size() == 1 ? batch.get(0) : ChatFrame.batch(batch);
+    batch.clear();
+    batchBytes = 0;
+    write(bytes);
+  }
+
+  /**
+   * Compresses writes of this many bytes or more from now on; 0 stops.
+   */
+  void setCompressAbove(int bytes)
+  {
+    compressAbove = Math.max(0, bytes);
+  }
+
+  boolean isOpen()
+  {
+    return !readyToStop && !socket.isClosed();
+  }
+
+  /**
+   * Sends anything still batched and closes the socket.  The reader then
+   * reports connectionClosed.
+   */
+  void close() throws IOException
+  {
+    try
+    {
+      if (isOpen()) flush();
+    }
+    catch (IOException ignored) {}
+    readyToStop = true;
+    synchronized (this)
+    {
+      if (flusher != null) flusher.shutdownNow();
+    }
+    socket.close();
+  }
+
+  public void run()
+  {
+    try
+    {
+      List<ChatFrame> frames = new ArrayList<ChatFrame>();
+      while (!readyToStop)
+      {
+        frames.clear();
+        ChatFrame.read(input, frames);
+        for (ChatFrame frame : frames) client.handleMessageFromServer(frame);
+      }
+    }
+    catch (Exception e)
+    {
+      if (!readyToStop)
+      {
+        readyToStop = true;
+        try
+        {
+          socket.close();
+        }
+        catch (IOException ignored) {}
+        client.connectionException(e);
+        return;
+      }
+    }
+    client.connectionClosed();
+  }
+
+  private void write(ByteBuffer bytes) throws IOException
+  {
+    int above = compressAbove;
+    if (above > 0 && bytes.remaining() >= above)
+    {
+      ByteBuffer deflated = ChatFrame.deflate(bytes);
+      if (deflated != null) bytes = deflated;
+    }
+    output.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    output.flush();
+  }
+
+  /**
+   * Runs on the flusher when a batch window ends.  A failed write closes
+   * the socket so the reader reports the lost connection.
+   */
+  private void timedFlush()
+  {
+    try
+    {
+      flush();
+    }
+    catch (IOException e)
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  private ScheduledExecutorService flusher()
+  {
+    if (flusher == null)
+    {
+      flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "binary-client-flusher");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return flusher;
+  }
+
+  /**
+   * Asks the server for the binary protocol.  HELLO is sent as a
+   * serialized String, so a server that only speaks object streams reads
+   * an ordinary first message, rejects it and hangs up.
+   */
+  private boolean handshake() throws IOException
+  {
+    ByteArrayOutputStream hello = new ByteArrayOutputStream();
+    ObjectOutputStream objects = new ObjectOutputStream(hello);
+    objects.writeObject(ChatFrame.HELLO);
+    objects.flush();
+    output.write(hello.toByteArray());
+    output.flush();
+
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+    byte[] answer = new byte[STREAM_HEADER.length + ChatFrame.MAGIC.length];
+    try
+    {
+      new DataInputStream(input).readFully(answer);
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+    socket.setSoTimeout(0);
+    return Arrays.equals(Arrays.copyOf(answer, STREAM_HEADER.length), STREAM_HEADER)
+      && Arrays.equals(Arrays.copyOfRange(answer, STREAM_HEADER.length, answer.length),
+        ChatFrame.MAGIC);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Connects and negotiates the binary protocol.
+   *
+   * @param tls The context to encrypt the connection with, or null for
+   *   none.  Reusing one context across reconnects resumes the session.
+   * @return The open connection with its reader started, or null if the
+   *   server does not speak the binary protocol.
+   * @throws IOException if the server cannot be reached, or the TLS
+   *   handshake fails.
+   */
+  static FrameConnection open(String host, int port, ChatClient client, SSLContext tls) throws IOException
+  {
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port));
+    socket.setTcpNoDelay(true);
+    FrameConnection connection;
+    try
+    {
+      if (tls != null) socket = secure(tls, socket, host, port);
+      connection = new FrameConnection(client, socket);
+      if (!connection.handshake())
+      {
+        socket.close();
+        return null;
+      }
+    }
+    catch (IOException e)
+    {
+      socket.close();
+      throw e;
+    }
+    new Thread(connection, "binary-client-reader").start();
+    return connection;
+  }
+
+  /**
+   * Runs the TLS handshake over a connected socket.  The host and port
+   * name the session in the context's cache, so the next connection to
+   * the same server can resume it.
+   */
+  private static SSLSocket secure(SSLContext tls, Socket plain, String host, int port) throws IOException
+  {
+    SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(plain, host, port, true);
+    SSLParameters params = socket.getSSLParameters();
+    params.setEndpointIdentificationAlgorithm("HTTPS");
+    socket.setSSLParameters(params);
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+    socket.startHandshake();
+    socket.setSoTimeout(0);
+    return socket;
+  }
+}
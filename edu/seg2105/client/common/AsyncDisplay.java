@@ -0,0 +1,144 @@
+package edu.seg2105.client.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ChatIF that hands messages to another one on its own thread.  The
+ * thread that calls display(), usually the one reading the socket, only
+ * puts the message in a bounded queue; a rendering thread takes out
+ * whatever has piled up and shows it with one call, so a burst costs the
+ * terminal one write instead of one per line.
+ *
+ * <p>If the UI falls so far behind that the queue is full, new messages
+ * are skipped rather than making the reader wait.  A line saying how
+ * many were skipped follows the next batch shown, so it comes after the
+ * messages that were already waiting, not exactly where the skipped ones
+ * would have been.
+ */
+public class AsyncDisplay implements ChatIF
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of messages waiting to be shown.
+   */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  /**
+   * The most messages shown with one call.
+   */
+  private static final int BATCH = 256;
+
+  //Instance variables **********************************************
+
+  private final ChatIF target;
+  private final ArrayBlockingQueue<String> queue;
+  private final AtomicLong skipped = new AtomicLong();
+  private final Thread renderer;
+  private volatile boolean stopping = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param target The UI that shows the messages.
+   * @param capacity How many messages may wait before new ones are skipped.
+   */
+  public AsyncDisplay(ChatIF target, int capacity)
+  {
+    this.target = target;
+    this.queue = new ArrayBlockingQueue<String>(Math.max(1, capacity));
+    this.renderer = new Thread(this::render, "chat-display");
+    renderer.setDaemon(true);
+    renderer.start();
+  }
+
+  public AsyncDisplay(ChatIF target)
+  {
+    this(target, DEFAULT_CAPACITY);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a message for the rendering thread.  Never waits.
+   */
+  public void display(String message)
+  {
+    if (stopping || !queue.offer(message)) skipped.incrementAndGet();
+  }
+
+  /**
+   * Returns how many messages have been skipped because the UI could not
+   * keep up.
+   */
+  public long getSkipped()
+  {
+    return skipped.get();
+  }
+
+  /**
+   * Shows everything queued so far and stops the rendering thread.  Call
+   * before the program exits, e.g. from a shutdown hook, so the last
+   * messages are not lost.
+   */
+  public void close()
+  {
+    stopping = true;
+    try
+    {
+      renderer.join(TimeUnit.SECONDS.toMillis(2));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void render()
+  {
+    List<String> batch = new ArrayList<String>(BATCH);
+    long reported = 0;
+    while (true)
+    {
+      String first;
+      try
+      {
+        first = queue.poll(100, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        first = queue.poll();
+        stopping = true;
+      }
+      if (first != null)
+      {
+        batch.add(first);
+        queue.drainTo(batch, BATCH - 1);
+      }
+      long skips = skipped.get();
+      if (skips != reported)
+      {
+        batch.add("(" + (skips - reported) + " messages skipped; the display could not keep up)");
+        reported = skips;
+      }
+      if (!batch.isEmpty())
+      {
+        try
+        {
+          target.display(batch);
+        }
+        catch (RuntimeException e)
+        {
+          // a broken UI must not stop the rest from being shown
+        }
+        batch.clear();
+        continue;
+      }
+      if (stopping) return;
+    }
+  }
+}
@@ -0,0 +1,536 @@
+package edu.seg2105.client.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One message of the compact binary chat protocol.  On the wire a frame
+ * is
+ * <pre>
+ *   varint length     number of bytes that follow
+ *   u8 type           message type; bit 0x80 set when a sender id follows,
+ *                     bit 0x40 when a sequence number follows
+ *   varint senderId   optional, the server's numeric id for the sender
+ *   varint seq        optional, the number of a message sent to everyone
+ *   payload           UTF-8 text
+ * </pre>
+ * Messages the server sends to everyone are numbered in order; a client
+ * that lost its connection sends RESUME with the last number it saw, and
+ * the token it got in a SESSION frame, to get only what it missed.
+ *
+ * <p>A BATCH frame (type 8, no sender id) carries several complete frames
+ * as its payload, so a client can coalesce many small messages into one
+ * write; decoders hand back the inner frames in order.  A BATCH or
+ * DEFLATED frame with either flag bit set is malformed.
+ *
+ * <p>A DEFLATED frame (type 12, no sender id) carries the varint length
+ * of one encoded frame or BATCH and then those bytes zlib-compressed;
+ * decoders inflate it and hand back what it carries.  Either side only
+ * sends one to a peer that asked: the client sends COMPRESS "deflate"
+ * just before it logs in, and the server answers COMPRESS "deflate N",
+ * after which both compress frames of N bytes or more, or "off".
+ *
+ * <p>A GOING_AWAY frame (type 14) warns that the server is about to close
+ * the connection on purpose, to shut down or move to another port.  Its
+ * text, which object-stream clients get as well, is
+ * "SERVER GOING AWAY: reconnect to HOST:PORT within N ms", with HOST
+ * empty for the same host.  Everything queued before it is still
+ * written; a client then waits a random time of up to N ms, so clients
+ * do not all come back at once, and reconnects there.
+ *
+ * <p>A client sends PING (type 15), or the String "#ping" on object
+ * streams, every so often, and the server answers PONG (type 16) with
+ * the text "#pong N": it disconnects a client that pings and then goes
+ * N ms without sending anything.  Either side that hears nothing for
+ * that long takes the other for gone.
+ *
+ * <p>A client that sends "#presence on" gets PRESENCE (type 17) frames:
+ * "#presence N = a b c", everyone online, and then every window
+ * "#presence N+1 +d -b ~c" for who came, who left and who is typing.
+ * The numbers run on by one; a client that misses one asks again.
+ *
+ * <p>A client asks for the binary protocol by sending the serialized String
+ * HELLO as its first object.  A server that understands it answers with
+ * the four MAGIC bytes and both sides switch to frames; any other answer
+ * means the server only speaks the object-stream protocol.
+ *
+ * <p>The server also uses frames internally to say what kind of message
+ * it is sending; connections that use the object-stream protocol just
+ * receive the frame's text.
+ */
+public final class ChatFrame
+{
+  //Class variables *************************************************
+
+  public static final byte LOGIN = 1;
+  public static final byte CHAT = 2;
+  public static final byte SERVER_MSG = 3;
+  public static final byte ERROR = 4;
+  public static final byte WELCOME = 5;
+  public static final byte DIRECT = 6;
+  public static final byte CHANNEL = 7;
+  public static final byte BATCH = 8;
+  public static final byte HISTORY = 9;
+  public static final byte RESUME = 10;
+  public static final byte SESSION = 11;
+  public static final byte DEFLATED = 12;
+  public static final byte COMPRESS = 13;
+  public static final byte GOING_AWAY = 14;
+  public static final byte PING = 15;
+  public static final byte PONG = 16;
+  public static final byte PRESENCE = 17;
+
+  /**
+   * The compression a COMPRESS frame asks for.
+   */
+  public static final String DEFLATE = "deflate";
+
+  /**
+   * How the text of a GOING_AWAY frame starts.
+   */
+  public static final String GOING_AWAY_TEXT = "SERVER GOING AWAY: reconnect to ";
+
+  /**
+   * A heartbeat from an object-stream client, and how the text of the
+   * server's answer starts.
+   */
+  public static final String PING_TEXT = "#ping";
+  public static final String PONG_TEXT = "#pong ";
+
+  /**
+   * How the text of a PRESENCE frame starts.
+   */
+  public static final String PRESENCE_TEXT = "#presence ";
+
+  /**
+   * The first object a binary-capable client sends.
+   */
+  public static final String HELLO = "#proto binary";
+
+  /**
+   * The server's answer when it accepts the binary protocol.
+   */
+  public static final byte[] MAGIC = { 'S', 'C', 'B', 1 };
+
+  /**
+   * The largest frame body either side accepts.
+   */
+  public static final int MAX_FRAME_BYTES = 1 << 24;
+
+  /**
+   * How much of a frame's body is allocated before any of it arrives.  A
+   * longer body grows as its bytes come in, so a peer that sends only a
+   * length cannot make each reader hold 16 MB.
+   */
+  static final int READ_CHUNK = 64 * 1024;
+
+  private static final int HAS_SENDER = 0x80;
+  private static final int HAS_SEQ = 0x40;
+
+  /**
+   * Deflaters and inflaters hold a good deal of native memory, so a few
+   * are kept for reuse rather than one per thread; the NIO engine and a
+   * thread per client would otherwise need very different numbers.
+   */
+  private static final int CODEC_POOL = 2 * Runtime.getRuntime().availableProcessors();
+  private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(CODEC_POOL);
+  private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(CODEC_POOL);
+
+  //Instance variables **********************************************
+
+  private final byte type;
+  private final long senderId;
+  private final long seq;
+  private final String text;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param type One of the type constants.
+   * @param senderId The sender's numeric id, or -1 for none.
+   * @param seq The message's sequence number, or -1 for none.
+   * @param text The payload.
+   */
+  public ChatFrame(byte type, long senderId, long seq, String text)
+  {
+    this.type = type;
+    this.senderId = senderId;
+    this.seq = seq;
+    this.text = text;
+  }
+
+  public ChatFrame(byte type, long senderId, String text)
+  {
+    this(type, senderId, -1, text);
+  }
+
+  public ChatFrame(byte type, String text)
+  {
+    this(type, -1, -1, text);
+  }
+
+  //Instance methods ************************************************
+
+  public byte getType()
+  {
+    return type;
+  }
+
+  /**
+   * Returns the sender's numeric id, or -1 if the frame has none.
+   */
+  public long getSenderId()
+  {
+    return senderId;
+  }
+
+  /**
+   * Returns the sequence number, or -1 if the frame has none.
+   */
+  public long getSeq()
+  {
+    return seq;
+  }
+
+  public String getText()
+  {
+    return text;
+  }
+
+  /**
+   * Encodes the frame, length prefix included.
+   *
+   * @return A heap buffer in read mode.
+   */
+  public ByteBuffer encode()
+  {
+    byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+    int bodyLength = 1 + (senderId >= 0 ? varintSize(senderId) : 0)
+      + (seq >= 0 ? varintSize(seq) : 0) + payload.length;
+    ByteBuffer out = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+    putVarint(out, bodyLength);
+    out.put((byte) (type | (senderId >= 0 ? HAS_SENDER : 0) | (seq >= 0 ? HAS_SEQ : 0)));
+    if (senderId >= 0) putVarint(out, senderId);
+    if (seq >= 0) putVarint(out, seq);
+    out.put(payload);
+    out.flip();
+    return out;
+  }
+
+  public String toString()
+  {
+    return text;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Decodes one frame from the buffer if it is complete.  Otherwise the
+   * buffer is left untouched and null is returned.
+   *
+   * @param in A buffer in read mode.
+   * @throws StreamCorruptedException for a malformed frame, a BATCH or a
+   *   DEFLATED frame.
+   */
+  public static ChatFrame decode(ByteBuffer in) throws StreamCorruptedException
+  {
+    int start = in.position();
+    int end = bodyEnd(in);
+    if (end < 0)
+    {
+      in.position(start);
+      return null;
+    }
+    int typeByte = in.get() & 0xff;
+    int type = typeByte & ~(HAS_SENDER | HAS_SEQ);
+    if (type == BATCH) throw new StreamCorruptedException("unexpected batch");
+    if (type == DEFLATED) throw new StreamCorruptedException("unexpected deflated frame");
+    return decodeBody(in, typeByte, end);
+  }
+
+  /**
+   * Decodes one frame from the buffer if it is complete, unpacking a
+   * BATCH or DEFLATED frame into the frames it carries.
+   *
+   * @param in A buffer in read mode.
+   * @param out Receives the decoded frames, in order.
+   * @return false, with the buffer untouched, if the frame is incomplete.
+   * @throws StreamCorruptedException for a malformed frame.
+   */
+  public static boolean decode(ByteBuffer in, List<? super ChatFrame> out)
+    throws StreamCorruptedException
+  {
+    return decode(in, out, true);
+  }
+
+  private static boolean decode(ByteBuffer in, List<? super ChatFrame> out, boolean inflate)
+    throws StreamCorruptedException
+  {
+    int start = in.position();
+    int end = bodyEnd(in);
+    if (end < 0)
+    {
+      in.position(start);
+      return false;
+    }
+    int typeByte = in.get() & 0xff;
+    int type = typeByte & ~(HAS_SENDER | HAS_SEQ);
+    if ((type == BATCH || type == DEFLATED) && type != typeByte)
+      throw new StreamCorruptedException("sender id or sequence number on a batch or deflated frame");
+    if (type == DEFLATED)
+    {
+      if (!inflate) throw new StreamCorruptedException("nested deflated frame");
+      ByteBuffer inner = inflate(in, end);
+      while (inner.hasRemaining())
+      {
+        if (!decode(inner, out, false)) throw new StreamCorruptedException("truncated deflated frame");
+      }
+      return true;
+    }
+    if (type != BATCH)
+    {
+      out.add(decodeBody(in, typeByte, end));
+      return true;
+    }
+    ByteBuffer inner = in.slice();
+    inner.limit(end - in.position());
+    in.position(end);
+    while (inner.hasRemaining())
+    {
+      ChatFrame frame = decode(inner);
+      if (frame == null) throw new StreamCorruptedException("truncated batch");
+      out.add(frame);
+    }
+    return true;
+  }
+
+  /**
+   * Reads one frame from a blocking stream, unpacking a BATCH.
+   *
+   * @param out Receives the frames, in order.
+   * @throws EOFException if the stream ends before a whole frame.
+   */
+  public static void read(InputStream in, List<? super ChatFrame> out) throws IOException
+  {
+    long length = readVarint(in);
+    if (length < 1 || length > MAX_FRAME_BYTES)
+      throw new StreamCorruptedException("bad frame length: " + length);
+    int header = varintSize(length);
+    int total = header + (int) length;
+    byte[] frame = new byte[Math.min(total, header + READ_CHUNK)];
+    int off = header;
+    while (off < total)
+    {
+      if (off == frame.length) frame = Arrays.copyOf(frame, (int) Math.min(total, 2L * frame.length));
+      int n = in.read(frame, off, frame.length - off);
+      if (n < 0) throw new EOFException();
+      off += n;
+    }
+    ByteBuffer prefixed = ByteBuffer.wrap(frame);
+    putVarint(prefixed, length);
+    prefixed.rewind();
+    if (!decode(prefixed, out)) throw new StreamCorruptedException("bad frame");
+  }
+
+  /**
+   * Packs already encoded frames into one BATCH frame.
+   *
+   * @param frames Encoded frames in read mode; they are not modified.
+   * @return A heap buffer in read mode.
+   */
+  public static ByteBuffer batch(List<ByteBuffer> frames)
+  {
+    int bodyLength = 1;
+    for (ByteBuffer f : frames) bodyLength += f.remaining();
+    ByteBuffer out = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+    putVarint(out, bodyLength);
+    out.put(BATCH);
+    for (ByteBuffer f : frames) out.put(f.duplicate());
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Compresses an encoded frame, or a BATCH, into one DEFLATED frame.
+   * Broadcasts compress once and share the result, like the encoding.
+   *
+   * @param frames Encoded bytes in read mode; they are not modified.
+   * @return A heap buffer in read mode, or null if compressing would not
+   *   make it smaller.
+   */
+  public static ByteBuffer deflate(ByteBuffer frames)
+  {
+    int rawLength = frames.remaining();
+    if (rawLength > MAX_FRAME_BYTES) return null;
+    int room = rawLength - 2 - 2 * varintSize(rawLength); // anything longer saves nothing
+    if (room <= 0) return null;
+    byte[] compressed = new byte[room];
+    int length = 0;
+    Deflater deflater = DEFLATERS.poll();
+    if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED);
+    try
+    {
+      deflater.setInput(frames.duplicate());
+      deflater.finish();
+      while (!deflater.finished() && length < room)
+      {
+        int n = deflater.deflate(compressed, length, room - length);
+        if (n == 0) break;
+        length += n;
+      }
+      if (!deflater.finished()) return null;
+    }
+    finally
+    {
+      deflater.reset();
+      if (!DEFLATERS.offer(deflater)) deflater.end();
+    }
+    int bodyLength = 1 + varintSize(rawLength) + length;
+    ByteBuffer out = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+    putVarint(out, bodyLength);
+    out.put(DEFLATED);
+    putVarint(out, rawLength);
+    out.put(compressed, 0, length);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Inflates a DEFLATED frame's body, which runs from the buffer's
+   * position to end, and moves the buffer past it.
+   *
+   * @return The encoded frames it carried, in read mode.
+   */
+  private static ByteBuffer inflate(ByteBuffer in, int end) throws StreamCorruptedException
+  {
+    long rawLength = getVarint(in);
+    if (rawLength < 1 || rawLength > MAX_FRAME_BYTES || in.position() > end)
+      throw new StreamCorruptedException("bad deflated length: " + rawLength);
+    ByteBuffer compressed = in.slice();
+    compressed.limit(end - in.position());
+    in.position(end);
+
+    // one spare byte, so a stream that runs long is caught; grown as it inflates, like read's
+    byte[] raw = new byte[(int) Math.min(rawLength + 1, READ_CHUNK)];
+    int length = 0;
+    Inflater inflater = INFLATERS.poll();
+    if (inflater == null) inflater = new Inflater();
+    try
+    {
+      inflater.setInput(compressed);
+      while (!inflater.finished() && length <= rawLength)
+      {
+        if (length == raw.length) raw = Arrays.copyOf(raw, (int) Math.min(rawLength + 1, 2L * raw.length));
+        int n = inflater.inflate(raw, length, raw.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+        length += n;
+      }
+      if (!inflater.finished() || length != rawLength)
+        throw new StreamCorruptedException("bad deflated frame");
+    }
+    catch (DataFormatException e)
+    {
+      throw new StreamCorruptedException("bad deflated frame: " + e.getMessage());
+    }
+    finally
+    {
+      inflater.reset();
+      if (!INFLATERS.offer(inflater)) inflater.end();
+    }
+    return ByteBuffer.wrap(raw, 0, length);
+  }
+
+  /**
+   * Reads a frame's length prefix.
+   *
+   * @return The position just past the frame, or -1 if it is incomplete.
+   */
+  private static int bodyEnd(ByteBuffer in) throws StreamCorruptedException
+  {
+    long length = getVarint(in);
+    if (length < 0) return -1;
+    if (length < 1 || length > MAX_FRAME_BYTES)   // before waiting for a body that may never fit
+      throw new StreamCorruptedException("bad frame length: " + length);
+    if (in.remaining() < length) return -1;
+    return in.position() + (int) length;
+  }
+
+  private static ChatFrame decodeBody(ByteBuffer in, int typeByte, int end)
+    throws StreamCorruptedException
+  {
+    long senderId = -1;
+    if ((typeByte & HAS_SENDER) != 0)
+    {
+      senderId = getVarint(in);
+      if (senderId < 0 || in.position() > end)
+        throw new StreamCorruptedException("bad sender id");
+    }
+    long seq = -1;
+    if ((typeByte & HAS_SEQ) != 0)
+    {
+      seq = getVarint(in);
+      if (seq < 0 || in.position() > end)
+        throw new StreamCorruptedException("bad sequence number");
+    }
+    byte[] payload = new byte[end - in.position()];
+    in.get(payload);
+    return new ChatFrame((byte) (typeByte & ~(HAS_SENDER | HAS_SEQ)), senderId, seq,
+      new String(payload, StandardCharsets.UTF_8));
+  }
+
+  static int varintSize(long value)
+  {
+    int size = 1;
+    while ((value >>>= 7) != 0) size++;
+    return size;
+  }
+
+  static void putVarint(ByteBuffer out, long value)
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  /**
+   * Reads a varint, or returns -1 if the buffer ends first.
+   */
+  static long getVarint(ByteBuffer in) throws StreamCorruptedException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      if (!in.hasRemaining()) return -1;
+      byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new StreamCorruptedException("varint too long");
+  }
+
+  private static long readVarint(InputStream in) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      int b = in.read();
+      if (b < 0) throw new EOFException();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new StreamCorruptedException("varint too long");
+  }
+}
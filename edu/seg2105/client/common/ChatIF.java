@@ -4,6 +4,8 @@
 
 package edu.seg2105.client.common;
 
+import java.util.List;
+
 /**
  * This interface implements the abstract method used to display
  * objects onto the client or server UIs.
@@ -18,4 +20,13 @@ public interface ChatIF
    * a UI.
    */
   public abstract void display(String message);
+
+  /**
+   * Displays several messages, in order.  AsyncDisplay hands over bursts
+   * this way; a UI that can show them with one write should override it.
+   */
+  default void display(List<String> messages)
+  {
+    for (String message : messages) display(message);
+  }
 }
@@ -0,0 +1,111 @@
+package edu.seg2105.client.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of nanosecond latencies in the style of
+ * HdrHistogram: each power of two is split into 16 linear buckets, so a
+ * percentile is off by at most 1/16 of its value while the whole range of
+ * a long fits in under a thousand counters.  Recording is one array
+ * increment and never allocates.  The server times messages with it and
+ * the load generator times round trips.
+ */
+public class LatencyHistogram
+{
+  //Class variables *************************************************
+
+  /**
+   * Values below this are counted exactly, one bucket each.
+   */
+  private static final int LINEAR = 32;
+
+  private static final int SUB_BUCKETS = 16;
+
+  private static final int BUCKETS = (63 - 4) * SUB_BUCKETS + LINEAR;
+
+  //Instance variables **********************************************
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  //Instance methods ************************************************
+
+  /**
+   * Records one latency.  Negative values count as zero.
+   */
+  public void record(long nanos)
+  {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    total.increment();
+    sum.add(value);
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen, value)) seen = max.get();
+  }
+
+  public long count()
+  {
+    return total.sum();
+  }
+
+  public long max()
+  {
+    return max.get();
+  }
+
+  public double mean()
+  {
+    long n = total.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns the smallest recorded bucket bound that at least the given
+   * fraction of values fall under, or 0 if nothing was recorded.
+   *
+   * @param fraction For example 0.99 for the 99th percentile.
+   */
+  public long percentile(double fraction)
+  {
+    long n = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank) return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  //Class methods ***************************************************
+
+  static int bucketOf(long value)
+  {
+    if (value < LINEAR) return (int) value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - 4;
+    return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+  }
+
+  /**
+   * Returns the largest value that lands in the bucket.
+   */
+  static long upperBound(int bucket)
+  {
+    if (bucket < LINEAR) return bucket;
+    int magnitude = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << magnitude) - 1;
+  }
+}
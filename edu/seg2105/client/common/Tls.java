@@ -0,0 +1,96 @@
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds the TLS contexts for both ends of an encrypted connection.  The
+ * server loads its key and certificate from a PKCS12 key store.  A client
+ * trusts either the JVM's usual certificate authorities or the
+ * certificates in one file, which is how it reaches a server with a
+ * self-signed certificate:
+ * <pre>
+ *   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 \
+ *     -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 \
+ *     -storetype PKCS12 -keystore chat.p12 -storepass changeit
+ *   keytool -exportcert -rfc -alias chat -keystore chat.p12 -storepass changeit -file chat.pem
+ * </pre>
+ *
+ * <p>A context remembers the sessions it has made, so a client that uses
+ * the same context for every connection to a server resumes its last
+ * session when it reconnects.  The full handshake, with its key exchange
+ * and certificate checks, is only done the first time.
+ */
+public final class Tls
+{
+  //Constructors ****************************************************
+
+  private Tls() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns a context for a server.
+   *
+   * @param keyStore A PKCS12 file holding the server's key and certificate.
+   * @param password The password of the file and the key.
+   */
+  public static SSLContext forServer(Path keyStore, char[] password)
+    throws IOException, GeneralSecurityException
+  {
+    KeyStore store = KeyStore.getInstance("PKCS12");
+    try (InputStream in = Files.newInputStream(keyStore))
+    {
+      store.load(in, password);
+    }
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(store, password);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), null, null);
+    return context;
+  }
+
+  /**
+   * Returns a context for a client.
+   *
+   * @param trusted A PEM or DER file with the certificates to trust, or
+   *   null to trust the JVM's certificate authorities.
+   */
+  public static SSLContext forClient(Path trusted) throws IOException, GeneralSecurityException
+  {
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    if (trusted == null)
+    {
+      trust.init((KeyStore) null);
+    }
+    else
+    {
+      KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+      store.load(null, null);
+      try (InputStream in = Files.newInputStream(trusted))
+      {
+        int i = 0;
+        for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in))
+        {
+          store.setCertificateEntry("trusted-" + i++, certificate);
+        }
+      }
+      if (store.size() == 0) throw new CertificateException("No certificate in " + trusted);
+      trust.init(store);
+    }
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trust.getTrustManagers(), null);
+    return context;
+  }
+}
@@ -4,8 +4,14 @@ package edu.seg2105.client.ui;
 // license found at www.lloseng.com 
 
 import java.io.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import javax.net.ssl.SSLContext;
+
 import edu.seg2105.client.backend.ChatClient;
 import edu.seg2105.client.common.*;
 
@@ -33,6 +39,12 @@ public class ClientConsole implements ChatIF
    * The instance of the client that created this ConsoleChat.
    */
   ChatClient client;
+
+  /**
+   * Shows messages from the server on its own thread, so a slow terminal
+   * never holds up the socket.
+   */
+  AsyncDisplay display;
   
   
   
@@ -51,16 +63,51 @@ public class ClientConsole implements ChatIF
    * @param port The port to connect on.
    */
   public ClientConsole(String host, int port, String loginID) 
+  {
+    this(host, port, loginID, false);
+  }
+
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param binary Whether to ask the server for the binary protocol.
+   */
+  public ClientConsole(String host, int port, String loginID, boolean binary) 
+  {
+    this(host, port, loginID, binary, null);
+  }
+
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param tls The context to connect over TLS with, or null for plain
+   *   sockets.  TLS always uses the binary protocol.
+   */
+  public ClientConsole(String host, int port, String loginID, boolean binary, SSLContext tls) 
+  {
+    this(host, port, loginID, null, binary, tls);
+  }
+
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param password Sent with the login id, for a server that checks
+   *   passwords; null for none.
+   */
+  public ClientConsole(String host, int port, String loginID, String password, boolean binary, SSLContext tls) 
   {
     try 
     {
-      client= new ChatClient(host, port, this, loginID);
+      display = new AsyncDisplay(this);
+      Runtime.getRuntime().addShutdownHook(new Thread(display::close, "display-flush"));
+      client= new ChatClient(host, port, display, loginID, password, binary, tls);
       
       
     } 
     catch(IOException exception) 
     {
       System.out.println("Error: Can't setup connection!"
+                + (tls != null ? " (" + exception.getMessage() + ")" : "")
                 + " Terminating client.");
       System.exit(1);
     }
@@ -100,27 +147,25 @@ public class ClientConsole implements ChatIF
 //login (#login is sent by ChatClient.connectionEstablished() with
 
  
-  private void handleClientCommand(String line) {
+  void handleClientCommand(String line) {
 	  String[] parts = line.split("\\s+", 2);
 	  String cmd = parts[0].toLowerCase();
 	  String arg = (parts.length > 1) ? parts[1] : null;
 
 	  try {
 	    if (cmd.equals("#quit")) {
-	      if (client.isConnected()) {
+	      if (client.isOnline()) {
 	        try {
-	          client.setUserInitiatedClose(true);
-	          client.closeConnection();
+	          client.disconnect();
 	        } catch (IOException ignored) {}
 	      }
 	      System.out.println("Client quitting...");
 	      System.exit(0);
 
 	    } else if (cmd.equals("#logoff")) {
-	      if (client.isConnected()) {
+	      if (client.isOnline()) {
 	        try {
-	          client.setUserInitiatedClose(true);
-	          client.closeConnection();
+	          client.disconnect();
 	        } catch (IOException ignored) {}
 	        System.out.println("Logged Off!");
 	      } else {
@@ -128,7 +173,7 @@ public class ClientConsole implements ChatIF
 	      }
 
 	    } else if (cmd.equals("#sethost")) {
-	      if (client.isConnected()) {
+	      if (client.isOnline()) {
 	        System.out.println("Error: log off before changing the host.");
 	      } else if (arg == null || arg.isBlank()) {
 	        System.out.println("Usage: #sethost <host>");
@@ -138,7 +183,7 @@ public class ClientConsole implements ChatIF
 	      }
 
 	    } else if (cmd.equals("#setport")) {
-	      if (client.isConnected()) {
+	      if (client.isOnline()) {
 	        System.out.println("Error: log off before changing the port.");
 	      } else if (arg == null) {
 	        System.out.println("Usage: #setport <port>");
@@ -153,17 +198,27 @@ public class ClientConsole implements ChatIF
 	      }
 
 	    } else if (cmd.equals("#login")) {
-	      if (client.isConnected()) {
+	      if (client.isOnline()) {
 	        System.out.println("Error: already connected.");
 	      } else {
 	        try {
-	          client.openConnection();
+	          client.connect();
 	          System.out.println("Connected.");
 	        } catch (IOException e) {
 	          System.out.println("Login failed: " + e.getMessage());
 	        }
 	      }
 
+	    } else if (cmd.equals("#presence")) {
+	      boolean on = arg == null || !arg.trim().equalsIgnoreCase("off");
+	      client.setPresence(on);
+	      System.out.println(on ? "Showing who comes and goes." : "No longer showing who comes and goes.");
+
+	    } else if (cmd.equals("#w") || cmd.equals("#join") || cmd.equals("#leave") || cmd.equals("#history")
+	      || cmd.equals("#who")) {
+	      // handled by the server
+	      client.handleMessageFromClientUI(line);
+
 	    } else if (cmd.equals("#gethost")) {
 	      System.out.println("Current host: " + client.getHost());
 
@@ -191,6 +246,17 @@ public class ClientConsole implements ChatIF
     System.out.println("> " + message);
   }
 
+  /**
+   * Displays a burst of messages with a single write.
+   */
+  public void display(List<String> messages)
+  {
+    StringBuilder out = new StringBuilder();
+    for (String message : messages) out.append("> ").append(message).append(System.lineSeparator());
+    System.out.print(out);
+    System.out.flush();
+  }
+
   
   //Class methods ***************************************************
   
@@ -198,13 +264,78 @@ public class ClientConsole implements ChatIF
    * This method is responsible for the creation of the Client UI.
    *
    * @param args[0] The host to connect to.
+   *        --binary asks the server for the compact binary protocol.
+   *        --batch=MS[,BYTES] coalesces messages sent within MS milliseconds
+   *        (or until BYTES pile up) into one write; binary protocol only.
+   *        --no-reconnect exits when the connection is lost instead of
+   *        reconnecting (with --binary, reconnecting also resumes the session).
+   *        --no-compress sends and receives large messages uncompressed;
+   *        binary protocol only.
+   *        --tls[=CERT] connects over TLS (binary protocol only, so it
+   *        implies --binary), trusting the certificates in the PEM or DER
+   *        file CERT, e.g. a server's self-signed one, or else the JVM's
+   *        usual authorities.  Reconnects resume the TLS session.
+   *        --password=PASS logs in with a password, for a server started
+   *        with --passwords; --password alone asks for it, and without
+   *        either the SIMPLECHAT_PASSWORD environment variable is used.
+   *        --heartbeat=S|off pings the server every S seconds (default 30)
+   *        and reconnects if it stops answering.
+   *        --presence shows who is online, then who comes and goes (also
+   *        #presence on|off while running; #who lists who is online).
    * Assignment 2.0 - Exercise 1.0 
    */
   public static void main(String[] args) 
   {
+	  // -- "--binary", "--batch=", "--no-reconnect", "--no-compress", "--tls", "--password", "--heartbeat=" and "--presence" may appear anywhere; the rest stays positional
+	  boolean binary = false;
+	  boolean tls = false;
+	  String trusted = null;
+	  String password = System.getenv("SIMPLECHAT_PASSWORD");
+	  boolean askPassword = false;
+	  boolean reconnect = true;
+	  boolean compress = true;
+	  int batchMillis = 0;
+	  int batchBytes = ChatClient.DEFAULT_BATCH_BYTES;
+	  long heartbeatMillis = ChatClient.DEFAULT_HEARTBEAT_MILLIS;
+	  boolean presence = false;
+	  List<String> positional = new ArrayList<String>();
+	  for (String a : args) {
+		  if (a.equals("--binary")) binary = true;
+		  else if (a.equals("--no-reconnect")) reconnect = false;
+		  else if (a.equals("--no-compress")) compress = false;
+		  else if (a.equals("--presence")) presence = true;
+		  else if (a.equals("--tls")) tls = true;
+		  else if (a.startsWith("--tls=")) {
+			  tls = true;
+			  trusted = a.substring("--tls=".length());
+		  }
+		  else if (a.equals("--password")) askPassword = true;
+		  else if (a.startsWith("--password=")) password = a.substring("--password=".length());
+		  else if (a.startsWith("--heartbeat=")) {
+			  String every = a.substring("--heartbeat=".length());
+			  try {
+				  heartbeatMillis = every.equalsIgnoreCase("off") ? 0 : Long.parseLong(every) * 1000;
+			  } catch (NumberFormatException e) {
+				  System.out.println("Invalid heartbeat " + a + ". Using the default.");
+			  }
+		  }
+		  else if (a.startsWith("--batch=")) {
+			  String[] window = a.substring("--batch=".length()).split(",", 2);
+			  try {
+				  batchMillis = Integer.parseInt(window[0]);
+				  if (window.length > 1) batchBytes = Integer.parseInt(window[1]);
+			  } catch (NumberFormatException e) {
+				  System.out.println("Invalid batch window " + a + ". Sending messages one at a time.");
+				  batchMillis = 0;
+			  }
+		  }
+		  else positional.add(a);
+	  }
+	  args = positional.toArray(new String[0]);
+
 	  // -- order must be: <loginID> [host] [port]
 	 if (args.length < 1 || args[0].isBlank()) {
-		  System.out.println("Usage: java ClientConsole <login> [host] [port]");
+		  System.out.println("Usage: java ClientConsole <login> [host] [port] [--binary] [--batch=MS[,BYTES]] [--no-reconnect] [--no-compress] [--tls[=CERT]] [--password[=PASS]] [--heartbeat=S|off] [--presence]");
 		  System.exit(1);
 	 }
 	  
@@ -230,8 +361,51 @@ public class ClientConsole implements ChatIF
     }
     
     
+    SSLContext context = null;
+    if (tls) {
+    	try {
+    		context = Tls.forClient(trusted == null ? null : Paths.get(trusted));
+    	} catch (IOException | GeneralSecurityException e) {
+    		System.out.println("Could not set up TLS: " + e.getMessage());
+    		System.exit(1);
+    	}
+    }
+    
+    if (askPassword) {
+    	Console console = System.console();
+    	char[] typed = console == null ? null : console.readPassword("Password for %s: ", loginID);
+    	if (typed == null) {
+    		System.out.println("Cannot ask for a password without a console; use --password=PASS.");
+    		System.exit(1);
+    	}
+    	password = new String(typed);
+    }
+    
     	// This starts the client on the chosen host/port	
-    ClientConsole chat= new ClientConsole(host, port, loginID);
+    ClientConsole chat= new ClientConsole(host, port, loginID, password, binary, context);
+    chat.client.setAutoReconnect(reconnect);
+    if (heartbeatMillis != ChatClient.DEFAULT_HEARTBEAT_MILLIS) chat.client.setHeartbeat(heartbeatMillis);
+    if (presence) {
+    	try {
+    		chat.client.setPresence(true);
+    	} catch (IOException e) {
+    		System.out.println("Could not ask for presence: " + e.getMessage());
+    	}
+    }
+    if (!compress) {
+    	try {
+    		chat.client.setCompression(false);
+    	} catch (IOException e) {
+    		System.out.println("Could not turn off compression: " + e.getMessage());
+    	}
+    }
+    if (batchMillis > 0) {
+    	try {
+    		chat.client.setBatching(batchMillis, batchBytes);
+    	} catch (IOException e) {
+    		System.out.println("Could not turn on batching: " + e.getMessage());
+    	}
+    }
     chat.accept();  //Wait for console data
   }
 }
@@ -0,0 +1,300 @@
+package edu.seg2105.client.ui;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.*;
+
+/**
+ * Starts an EchoServer in a child JVM once per engine, connects N local
+ * ChatClients to it and reports the server's resident memory, its thread
+ * count and the round-trip latency of broadcast messages.  Used to
+ * compare the OCSF platform-thread engine with the virtual-thread one.
+ *
+ * <p>Memory and thread counts come from /proc, so they are only reported
+ * on Linux.
+ */
+public class EngineComparison
+{
+  //Class variables *************************************************
+
+  /**
+   * The port the child servers listen on.
+   */
+  final public static int DEFAULT_PORT = 5556;
+
+  //Instance variables **********************************************
+
+  private final int port;
+  private final int clients;
+  private final int senders;
+  private final int messagesPerSender;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param port The port for the child servers.
+   * @param clients How many clients to connect.
+   * @param senders How many of those clients send messages.
+   * @param messagesPerSender How many messages each sender sends.
+   */
+  public EngineComparison(int port, int clients, int senders, int messagesPerSender)
+  {
+    this.port = port;
+    this.clients = clients;
+    this.senders = Math.min(senders, clients);
+    this.messagesPerSender = messagesPerSender;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs the whole scenario against one engine and prints one report line.
+   *
+   * @param engine The value passed to EchoServer's --engine flag.
+   */
+  public void run(String engine) throws Exception
+  {
+    Process server = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"),
+        "edu.seg2105.server.backend.EchoServer",
+        String.valueOf(port), "--engine=" + engine,
+        // the server's default rate limits would throttle the senders; measure the engine alone
+        "--ratelimit-user=off", "--ratelimit-user-bytes=off", "--history=off")
+      .redirectErrorStream(true)
+      .start(); // stdin stays open so the server console keeps waiting
+
+    List<ChatClient> connected = new ArrayList<ChatClient>();
+    try
+    {
+      waitUntilListening(server);
+      long[] idle = procStatus(server.pid());
+
+      CountDownLatch welcomed = new CountDownLatch(clients);
+      List<Probe> probes = new ArrayList<Probe>();
+      for (int i = 0; i < clients; i++)
+      {
+        Probe probe = new Probe("cmp" + i, welcomed);
+        probes.add(probe);
+        connected.add(new ChatClient("localhost", port, probe, probe.loginId));
+      }
+      if (!welcomed.await(60, TimeUnit.SECONDS))
+        throw new IOException("not every client logged in");
+      long[] loggedIn = procStatus(server.pid());
+
+      List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+      ExecutorService pool = Executors.newFixedThreadPool(senders);
+      for (int s = 0; s < senders; s++)
+      {
+        ChatClient client = connected.get(s);
+        Probe probe = probes.get(s);
+        pool.execute(() -> {
+          for (int m = 0; m < messagesPerSender; m++)
+          {
+            Long rtt = probe.roundTrip(client);
+            if (rtt != null) latencies.add(rtt);
+          }
+        });
+      }
+      pool.shutdown();
+      pool.awaitTermination(10, TimeUnit.MINUTES);
+      long[] loaded = procStatus(server.pid());
+
+      report(engine, idle, loggedIn, loaded, latencies);
+    }
+    finally
+    {
+      for (ChatClient c : connected)
+      {
+        try
+        {
+          c.setUserInitiatedClose(true);
+          c.closeConnection();
+        }
+        catch (IOException ignored) {}
+      }
+      server.destroy();
+      server.waitFor(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Reads the server's output until it reports that it is listening, then
+   * keeps draining it in the background.  Probing the port with a bare
+   * socket is not an option: OCSF stops accepting when a connection fails
+   * its stream handshake.
+   */
+  private void waitUntilListening(Process server) throws IOException
+  {
+    BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream()));
+    String line;
+    while ((line = out.readLine()) != null)
+    {
+      if (line.startsWith("Server listening")) break;
+      if (line.startsWith("ERROR")) throw new IOException(line);
+    }
+    if (line == null) throw new IOException("server exited before listening");
+
+    Thread drain = new Thread(() -> {
+      try
+      {
+        while (out.readLine() != null) {}
+      }
+      catch (IOException ignored) {}
+    });
+    drain.setDaemon(true);
+    drain.start();
+  }
+
+  private void report(String engine, long[] idle, long[] loggedIn, long[] loaded,
+    List<Long> latencies)
+  {
+    long[] sorted = new long[latencies.size()];
+    for (int i = 0; i < sorted.length; i++) sorted[i] = latencies.get(i);
+    Arrays.sort(sorted);
+
+    System.out.printf(
+      "%-8s clients=%d rss(kB) idle=%s loggedIn=%s loaded=%s"
+        + " threads idle=%s loggedIn=%s loaded=%s"
+        + " latency(us) p50=%s p99=%s max=%s samples=%d%n",
+      engine, clients,
+      show(idle[0]), show(loggedIn[0]), show(loaded[0]),
+      show(idle[1]), show(loggedIn[1]), show(loaded[1]),
+      micros(percentile(sorted, 50)), micros(percentile(sorted, 99)),
+      micros(sorted.length == 0 ? -1 : sorted[sorted.length - 1]),
+      sorted.length);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Reads VmRSS (kB) and Threads of a process from /proc, or -1 for
+   * each when unavailable.
+   */
+  static long[] procStatus(long pid)
+  {
+    long[] result = { -1, -1 };
+    try
+    {
+      for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status")))
+      {
+        if (line.startsWith("VmRSS:"))
+          result[0] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+        else if (line.startsWith("Threads:"))
+          result[1] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }
+    catch (IOException | NumberFormatException e) {}
+    return result;
+  }
+
+  static long percentile(long[] sorted, int p)
+  {
+    if (sorted.length == 0) return -1;
+    int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  private static String show(long value)
+  {
+    return value < 0 ? "n/a" : String.valueOf(value);
+  }
+
+  private static String micros(long nanos)
+  {
+    return nanos < 0 ? "n/a" : String.valueOf(nanos / 1000);
+  }
+
+  /**
+   * Runs the comparison.
+   *
+   * @param args [clients] [senders] [messagesPerSender] [engines]
+   *   Defaults: 500 clients, 10 senders, 200 messages, "ocsf,virtual".
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int senders = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    String engines = args.length > 3 ? args[3] : "ocsf,virtual";
+
+    EngineComparison comparison =
+      new EngineComparison(DEFAULT_PORT, clients, senders, messages);
+    for (String engine : engines.split(","))
+    {
+      try
+      {
+        comparison.run(engine.trim());
+      }
+      catch (IOException e)
+      {
+        System.out.printf("%-8s failed: %s%n", engine.trim(), e.getMessage());
+      }
+    }
+    System.exit(0);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A ChatIF that counts the welcome message and times the echo of its
+   * own pings.
+   */
+  private static class Probe implements ChatIF
+  {
+    final String loginId;
+    private final CountDownLatch welcomed;
+    private final String pingPrefix;
+    private final SynchronousQueue<Long> echoes = new SynchronousQueue<Long>();
+
+    Probe(String loginId, CountDownLatch welcomed)
+    {
+      this.loginId = loginId;
+      this.welcomed = welcomed;
+      this.pingPrefix = loginId + "> ping ";
+    }
+
+    /**
+     * Sends one ping and waits for it to come back.
+     *
+     * @return The round trip in nanoseconds, or null on timeout.
+     */
+    Long roundTrip(ChatClient client)
+    {
+      long sent = System.nanoTime();
+      client.handleMessageFromClientUI("ping " + sent);
+      try
+      {
+        Long echoed = echoes.poll(10, TimeUnit.SECONDS);
+        return echoed == null ? null : System.nanoTime() - echoed;
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+
+    public void display(String message)
+    {
+      if (message.startsWith("Welcome, "))
+      {
+        welcomed.countDown();
+      }
+      else if (message.startsWith(pingPrefix))
+      {
+        try
+        {
+          echoes.offer(Long.parseLong(message.substring(pingPrefix.length())),
+            1, TimeUnit.SECONDS);
+        }
+        catch (NumberFormatException | InterruptedException ignored) {}
+      }
+    }
+  }
+}
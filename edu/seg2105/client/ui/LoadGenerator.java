@@ -0,0 +1,470 @@
+package edu.seg2105.client.ui;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.LatencyHistogram;
+import edu.seg2105.client.common.Tls;
+
+/**
+ * Puts load on a running server from one headless JVM: logs in any
+ * number of ChatClients, has them send at a steady rate, and optionally
+ * logs each one out and back in when its session time is up.  Every
+ * message carries its send time, and a client that sees its own message
+ * come back in the broadcast records the round trip, so the latency is
+ * end to end through the server's fan-out.
+ *
+ * <p>Prints a line of throughput and latency percentiles every few
+ * seconds and a summary at the end.  The server's per-user rate limits
+ * still apply; keep --rate under them or start the server with them off.
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * What every load message starts with, after the server's "id> ".
+   */
+  private static final String MARK = "lg ";
+
+  //Instance variables **********************************************
+
+  private final Options options;
+  private final ScheduledExecutorService scheduler;
+  private final List<Slot> slots = new ArrayList<Slot>();
+  private volatile boolean stopping = false;
+
+  // === Counters; the interval histogram is swapped out at every report ===
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder echoed = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder drops = new LongAdder();
+  private final LongAdder logins = new LongAdder();
+  private final LongAdder failedLogins = new LongAdder();
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final AtomicReference<LatencyHistogram> interval =
+    new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+
+  //Constructors ****************************************************
+
+  public LoadGenerator(Options options)
+  {
+    this.options = options;
+    this.scheduler = Executors.newScheduledThreadPool(options.threads, task -> {
+      Thread t = new Thread(task, "load-generator");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Ramps the clients up, runs for the configured time, prints the
+   * reports and logs every client out.
+   */
+  public void run() throws InterruptedException
+  {
+    System.out.println("Load: " + options);
+    long rampNanos = TimeUnit.SECONDS.toNanos(options.rampSeconds);
+    for (int i = 0; i < options.clients; i++)
+    {
+      Slot slot = new Slot(i, i < options.senders);
+      slots.add(slot);
+      long at = options.clients == 1 ? 0 : rampNanos * i / (options.clients - 1);
+      scheduler.schedule(slot::start, at, TimeUnit.NANOSECONDS);
+    }
+
+    long begin = System.nanoTime();
+    System.out.println("   time  clients   sent/s  echoed/s  delivered/s  errors   p50 ms   p90 ms   p99 ms p99.9 ms   max ms");
+    long reportNanos = TimeUnit.SECONDS.toNanos(options.reportSeconds);
+    long end = begin + TimeUnit.SECONDS.toNanos(options.rampSeconds + options.durationSeconds);
+    long[] last = new long[4];
+    long lastAt = begin;
+    while (System.nanoTime() < end)
+    {
+      long sleep = Math.min(reportNanos, end - System.nanoTime());
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, sleep));
+      long now = System.nanoTime();
+      reportInterval((now - begin) / 1e9, (now - lastAt) / 1e9, last);
+      lastAt = now;
+    }
+
+    stopping = true;
+    for (Slot slot : slots) slot.stopSending();
+    TimeUnit.SECONDS.sleep(options.drainSeconds); // late echoes still count
+    reportSummary((System.nanoTime() - begin) / 1e9);
+    for (Slot slot : slots) slot.stop();
+    scheduler.shutdownNow();
+  }
+
+  private void reportInterval(double elapsed, double seconds, long[] last)
+  {
+    LatencyHistogram h = interval.getAndSet(new LatencyHistogram());
+    long s = sent.sum(), e = echoed.sum(), d = delivered.sum(), err = errors.sum();
+    System.out.printf("%7.1f %8d %8.0f %9.0f %12.0f %7d %s%n", elapsed, online(),
+      (s - last[0]) / seconds, (e - last[1]) / seconds, (d - last[2]) / seconds, err - last[3],
+      percentiles(h));
+    last[0] = s;
+    last[1] = e;
+    last[2] = d;
+    last[3] = err;
+  }
+
+  private void reportSummary(double elapsed)
+  {
+    long s = sent.sum(), e = echoed.sum();
+    System.out.printf("Summary after %.1fs: %d logins (%d failed), %d lost connections%n",
+      elapsed, logins.sum(), failedLogins.sum(), drops.sum());
+    System.out.printf("  sent %d, echoed %d, not echoed %d, errors %d, delivered %d (%.0f/s)%n",
+      s, e, s - e, errors.sum(), delivered.sum(), delivered.sum() / elapsed);
+    System.out.printf("  echo latency ms: mean %.2f  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n",
+      total.mean() / 1e6, millis(total.percentile(0.50)), millis(total.percentile(0.90)),
+      millis(total.percentile(0.99)), millis(total.percentile(0.999)), millis(total.max()));
+  }
+
+  private int online()
+  {
+    int n = 0;
+    for (Slot slot : slots)
+    {
+      if (slot.isOnline()) n++;
+    }
+    return n;
+  }
+
+  private void recordEcho(long sentAt)
+  {
+    long rtt = System.nanoTime() - sentAt;
+    echoed.increment();
+    total.record(rtt);
+    interval.get().record(rtt);
+  }
+
+  //Class methods ***************************************************
+
+  private static String percentiles(LatencyHistogram h)
+  {
+    if (h.count() == 0) return "       -        -        -        -        -";
+    return String.format("%8s %8s %8s %8s %8s", millis(h.percentile(0.50)), millis(h.percentile(0.90)),
+      millis(h.percentile(0.99)), millis(h.percentile(0.999)), millis(h.max()));
+  }
+
+  private static String millis(long nanos)
+  {
+    return String.format("%.2f", nanos / 1e6);
+  }
+
+  /**
+   * Runs the load.
+   *
+   * @param args --host=H --port=N (default localhost:5555)
+   *        --clients=N how many clients to log in (default 100).
+   *        --senders=N how many of them send; the rest only listen
+   *          (default all).
+   *        --login=PATTERN login ids, with {n} replaced by the client's
+   *          number (default load{n}).
+   *        --password=PASS sent by every client with its login id, for a
+   *          server started with --passwords (default none).
+   *        --heartbeat=S|off seconds between each client's pings
+   *          (default 30).
+   *        --rate=R messages per second per sender (default 1).
+   *        --size=BYTES length of each message (default 64).
+   *        --duration=S seconds to run after the ramp-up (default 60).
+   *        --ramp=S seconds over which clients log in (default 10).
+   *        --session=S log each client out and back in after about S
+   *          seconds, somewhere between half and one and a half times S;
+   *          0 stays logged in (default 0).
+   *        --report=S seconds between report lines (default 5).
+   *        --binary uses the binary protocol.
+   *        --presence subscribes every client to presence, so logins and
+   *          logouts go out to all of them as coalesced deltas.
+   *        --tls[=CERT] connects over TLS, trusting the certificates in
+   *          CERT or else the JVM's; implies --binary.  All clients share
+   *          one TLS context, so logins after the first resume a session.
+   *        --threads=N sender and scheduler threads (default 4).
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    Options options = new Options();
+    for (String arg : args)
+    {
+      try
+      {
+        if (!options.set(arg))
+        {
+          System.out.println("Unknown option " + arg);
+          System.exit(1);
+        }
+      }
+      catch (IllegalArgumentException e)
+      {
+        System.out.println("Invalid value in " + arg + (e instanceof NumberFormatException ? "" : ": " + e.getMessage()));
+        System.exit(1);
+      }
+    }
+    new LoadGenerator(options).run();
+    System.exit(0);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * What to run.  Fields hold the defaults until set.
+   */
+  public static class Options
+  {
+    public String host = "localhost";
+    public int port = ClientConsole.DEFAULT_PORT;
+    public int clients = 100;
+    public int senders = Integer.MAX_VALUE;
+    public String loginPattern = "load{n}";
+    public String password = null;
+    public long heartbeatMillis = ChatClient.DEFAULT_HEARTBEAT_MILLIS;
+    public double rate = 1;
+    public int size = 64;
+    public int durationSeconds = 60;
+    public int rampSeconds = 10;
+    public int sessionSeconds = 0;
+    public int reportSeconds = 5;
+    public int drainSeconds = 2;
+    public boolean binary = false;
+    public boolean presence = false;
+    public SSLContext tls = null;
+    public int threads = 4;
+
+    /**
+     * Applies one "--name=value" argument.
+     *
+     * @return false if the option is unknown.
+     * @throws IllegalArgumentException if its value does not parse, or
+     *   the TLS certificate cannot be read.
+     */
+    public boolean set(String arg)
+    {
+      if (arg.equals("--binary"))
+      {
+        binary = true;
+        return true;
+      }
+      if (arg.equals("--presence"))
+      {
+        presence = true;
+        return true;
+      }
+      if (arg.equals("--tls") || arg.startsWith("--tls="))
+      {
+        try
+        {
+          tls = Tls.forClient(arg.equals("--tls") ? null : Paths.get(arg.substring("--tls=".length())));
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+          throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        binary = true;
+        return true;
+      }
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) return false;
+      String name = arg.substring(2, eq);
+      String value = arg.substring(eq + 1);
+      switch (name)
+      {
+        case "host": host = value; break;
+        case "port": port = Integer.parseInt(value); break;
+        case "clients": clients = Math.max(1, Integer.parseInt(value)); break;
+        case "senders": senders = Math.max(0, Integer.parseInt(value)); break;
+        case "login": loginPattern = value; break;
+        case "password": password = value; break;
+        case "heartbeat": heartbeatMillis = value.equalsIgnoreCase("off") ? 0 : Long.parseLong(value) * 1000; break;
+        case "rate": rate = Double.parseDouble(value); break;
+        case "size": size = Math.max(1, Integer.parseInt(value)); break;
+        case "duration": durationSeconds = Math.max(1, Integer.parseInt(value)); break;
+        case "ramp": rampSeconds = Math.max(0, Integer.parseInt(value)); break;
+        case "session": sessionSeconds = Math.max(0, Integer.parseInt(value)); break;
+        case "report": reportSeconds = Math.max(1, Integer.parseInt(value)); break;
+        case "threads": threads = Math.max(1, Integer.parseInt(value)); break;
+        default: return false;
+      }
+      return true;
+    }
+
+    String loginId(int n)
+    {
+      return loginPattern.replace("{n}", String.valueOf(n));
+    }
+
+    public String toString()
+    {
+      return clients + " clients (" + Math.min(senders, clients) + " sending " + rate + " msg/s of "
+        + size + " bytes) on " + host + ":" + port + (tls != null ? " TLS" : binary ? " binary" : "")
+        + ", ramp " + rampSeconds + "s, run " + durationSeconds + "s"
+        + (sessionSeconds > 0 ? ", sessions of about " + sessionSeconds + "s" : "");
+    }
+  }
+
+  /**
+   * One simulated user: the current client for a login id, its sending
+   * schedule, and its logouts and logins when sessions are timed.
+   */
+  private class Slot implements ChatIF
+  {
+    private final String loginId;
+    private final boolean sends;
+    private final String echoPrefix;
+    private final String padding;
+    private volatile ChatClient client;
+    private ScheduledFuture<?> sending;
+
+    Slot(int n, boolean sends)
+    {
+      this.loginId = options.loginId(n);
+      this.sends = sends;
+      this.echoPrefix = loginId + "> " + MARK;
+      int pad = options.size - MARK.length() - 20; // a nanoTime is up to 19 digits and a space
+      this.padding = pad > 0 ? "x".repeat(pad) : "";
+    }
+
+    /**
+     * Logs in, starts sending and, with timed sessions, schedules the
+     * logout.  A failed login is retried a second later.
+     */
+    synchronized void start()
+    {
+      if (stopping) return;
+      try
+      {
+        ChatClient c = new HeadlessClient(options.host, options.port, this, loginId, options.password,
+          options.binary, options.tls);
+        if (options.heartbeatMillis != ChatClient.DEFAULT_HEARTBEAT_MILLIS) c.setHeartbeat(options.heartbeatMillis);
+        if (options.presence) c.setPresence(true);
+        client = c;
+        logins.increment();
+      }
+      catch (IOException e)
+      {
+        failedLogins.increment();
+        scheduler.schedule(this::start, 1, TimeUnit.SECONDS);
+        return;
+      }
+      if (sends && options.rate > 0)
+      {
+        long period = (long) (1e9 / options.rate);
+        sending = scheduler.scheduleAtFixedRate(this::send,
+          ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+      }
+      if (options.sessionSeconds > 0)
+      {
+        long millis = options.sessionSeconds * 1000L;
+        scheduler.schedule(this::cycle, millis / 2 + ThreadLocalRandom.current().nextLong(millis + 1),
+          TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void send()
+    {
+      ChatClient c = client;
+      if (c == null || !c.isOnline()) return;
+      c.handleMessageFromClientUI(MARK + System.nanoTime() + " " + padding);
+      sent.increment();
+    }
+
+    private void cycle()
+    {
+      stop();
+      start();
+    }
+
+    synchronized void stopSending()
+    {
+      if (sending != null) sending.cancel(false);
+      sending = null;
+    }
+
+    synchronized void stop()
+    {
+      stopSending();
+      ChatClient c = client;
+      client = null;
+      if (c == null) return;
+      try
+      {
+        c.disconnect();
+      }
+      catch (IOException ignored) {}
+    }
+
+    boolean isOnline()
+    {
+      ChatClient c = client;
+      return c != null && c.isOnline();
+    }
+
+    public void display(String message)
+    {
+      if (message.contains("> " + MARK)) delivered.increment();
+      if (message.startsWith(echoPrefix))
+      {
+        int end = message.indexOf(' ', echoPrefix.length());
+        try
+        {
+          recordEcho(Long.parseLong(message.substring(echoPrefix.length(), end < 0 ? message.length() : end)));
+        }
+        catch (NumberFormatException ignored) {}
+      }
+      else if (message.startsWith("ERROR"))
+      {
+        errors.increment();
+        // a new session can beat the server to noticing the old one is gone
+        if (message.contains("already in use")) scheduler.schedule(this::cycle, 1, TimeUnit.SECONDS);
+      }
+      else if (message.contains("Lost connection"))
+      {
+        drops.increment();
+      }
+    }
+  }
+
+  /**
+   * A ChatClient that never ends the JVM: ChatClient quits the whole
+   * program when the server goes away or refuses it, which would take
+   * every other simulated user with it.
+   */
+  private static class HeadlessClient extends ChatClient
+  {
+    HeadlessClient(String host, int port, ChatIF ui, String loginId, String password, boolean binary,
+      SSLContext tls) throws IOException
+    {
+      super(host, port, ui, loginId, password, binary, tls);
+    }
+
+    @Override
+    public void quit()
+    {
+      try
+      {
+        disconnect();
+      }
+      catch (IOException ignored) {}
+    }
+
+    @Override
+    protected void connectionClosed() {}
+  }
+}
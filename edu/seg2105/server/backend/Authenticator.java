@@ -0,0 +1,25 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+
+/**
+ * Checks the password a client gives with "#login &lt;id&gt; &lt;password&gt;".
+ * The server calls it on one of a few worker threads, never on the
+ * thread reading the connection, so an implementation may be slow, e.g.
+ * a deliberately costly password hash or a call to a directory server.
+ * It must be safe to call from several threads at once.
+ *
+ * @see PasswordFile
+ */
+public interface Authenticator
+{
+  /**
+   * Returns whether the password is right for the login id.  An unknown
+   * id is simply wrong; the client is not told which of the two was.
+   *
+   * @param password The password, or "" if the client gave none.
+   * @throws IOException if the credentials could not be read; the login
+   *   is refused.
+   */
+  boolean verify(String loginId, String password) throws IOException;
+}
@@ -0,0 +1,128 @@
+package edu.seg2105.server.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Channel membership, indexed both ways: channel name to members here,
+ * and each session's own channels in Session.  A channel message visits
+ * only the channel's members, and a disconnect only the channels the
+ * client was in.  A channel exists while it has members.
+ */
+class ChannelIndex
+{
+  //Class variables *************************************************
+
+  /**
+   * The longest channel name accepted.
+   */
+  static final int MAX_NAME_LENGTH = 64;
+
+  //Instance variables **********************************************
+
+  private final ConcurrentHashMap<String, Set<Session>> members =
+    new ConcurrentHashMap<String, Set<Session>>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Adds a session to a channel and makes it the session's active one.
+   *
+   * @return The number of members afterwards.
+   */
+  int join(String channel, Session session)
+  {
+    Set<Session> set = members.compute(channel, (name, existing) -> {
+      Set<Session> s = (existing != null) ? existing : ConcurrentHashMap.<Session>newKeySet();
+      s.add(session);
+      return s;
+    });
+    session.channels.add(channel);
+    session.activeChannel = channel;
+    return set.size();
+  }
+
+  /**
+   * Removes a session from a channel.  If that was its active channel,
+   * another joined channel becomes active, or none.
+   *
+   * @return false if the session was not in the channel.
+   */
+  boolean leave(String channel, Session session)
+  {
+    if (!session.channels.remove(channel)) return false;
+    removeMember(channel, session);
+    if (channel.equals(session.activeChannel))
+    {
+      String next = null;
+      for (String other : session.channels)
+      {
+        next = other;
+        break;
+      }
+      session.activeChannel = next;
+    }
+    return true;
+  }
+
+  /**
+   * Removes a session from every channel it joined.
+   */
+  void leaveAll(Session session)
+  {
+    for (String channel : session.channels)
+    {
+      removeMember(channel, session);
+    }
+    session.channels.clear();
+    session.activeChannel = null;
+  }
+
+  private void removeMember(String channel, Session session)
+  {
+    members.computeIfPresent(channel, (name, set) -> {
+      set.remove(session);
+      return set.isEmpty() ? null : set;
+    });
+  }
+
+  /**
+   * Returns the connections of a channel's members.
+   */
+  List<ClientConnection> recipients(String channel)
+  {
+    Set<Session> set = members.get(channel);
+    if (set == null) return new ArrayList<ClientConnection>(0);
+    List<ClientConnection> out = new ArrayList<ClientConnection>(set.size());
+    for (Session s : set)
+    {
+      out.add(s.getConnection());
+    }
+    return out;
+  }
+
+  /**
+   * Returns the number of channels with at least one member.
+   */
+  int size()
+  {
+    return members.size();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns whether a channel name is acceptable: one word, not too long.
+   */
+  static boolean isValidName(String channel)
+  {
+    if (channel.isEmpty() || channel.length() > MAX_NAME_LENGTH) return false;
+    for (int i = 0; i < channel.length(); i++)
+    {
+      if (Character.isWhitespace(channel.charAt(i))) return false;
+    }
+    return true;
+  }
+}
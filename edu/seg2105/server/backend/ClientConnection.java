@@ -0,0 +1,77 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The view of a single client connection that EchoServer's message logic
+ * works against.  It mirrors the parts of OCSF's ConnectionToClient that
+ * the server uses, so the same login and broadcast code runs no matter
+ * which engine accepted the socket.
+ */
+public interface ClientConnection
+{
+  /**
+   * Queues an object for the client.  Returns without waiting for the
+   * socket; a full queue is handled by the server's overflow policy.
+   *
+   * @param msg The message to send.
+   * @throws IOException if the connection is already closed.
+   */
+  void sendToClient(Object msg) throws IOException;
+
+  /**
+   * Closes the connection once the messages already queued have been
+   * written.  The server's clientDisconnected hook is called once the
+   * connection is gone.
+   */
+  void close() throws IOException;
+
+  /**
+   * Closes the connection at once, dropping anything still queued.  The
+   * server's clientDisconnected hook is called as for close().
+   */
+  void closeNow();
+
+  /**
+   * Saves a piece of information about this client.
+   *
+   * @param infoType The key of the information.
+   * @param info The information to store.
+   */
+  void setInfo(String infoType, Object info);
+
+  /**
+   * Returns information previously saved with setInfo, or null.
+   *
+   * @param infoType The key of the information.
+   */
+  Object getInfo(String infoType);
+
+  /**
+   * Attaches the client's session once it has logged in.
+   */
+  void setSession(Session session);
+
+  /**
+   * Returns the client's session, or null before it has logged in.
+   */
+  Session getSession();
+
+  /**
+   * Returns the address of the client, or null if it is not known.
+   */
+  InetAddress getInetAddress();
+
+  /**
+   * Returns how many messages are queued for this client but not yet
+   * written to its socket.
+   */
+  int getOutboundDepth();
+
+  /**
+   * Returns how many messages for this client the overflow policy has
+   * dropped.
+   */
+  long getDroppedMessages();
+}
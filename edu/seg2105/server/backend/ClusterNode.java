@@ -0,0 +1,577 @@
+package edu.seg2105.server.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Links this server to other EchoServer nodes so their clients share one
+ * chat.  Each node dials the peers it is given and accepts links on its
+ * cluster port.  If a pair ends up with two links, they keep the one
+ * dialed by the node with the smaller id.
+ *
+ * <p>Broadcasts to everyone and server messages that start on this node
+ * are numbered and sent to every peer.  A peer delivers them to its own
+ * clients and does not pass them on, so every node must link to every
+ * other.  Numbers are per origin, so a peer drops anything it has
+ * already seen and delivers each origin's messages in order.
+ *
+ * <p>Logins and logouts are announced the same way, so an id in use on
+ * one node is refused on the others.  If two nodes let the same id in at
+ * once, the earlier login keeps it and the other node disconnects its
+ * client.  A #w to a user on another node goes to that node alone.
+ * Channels stay within one node.
+ *
+ * <p>Links speak ChatFrame's binary format with the types below.  Each
+ * link has a writer thread that sends whatever has queued up since its
+ * last write as one BATCH frame.
+ *
+ * <p>A peer is trusted completely: it can make any text appear as a chat
+ * line or a #w, and a USER_ON with an early login time evicts a user
+ * here.  So only cluster nodes may reach the cluster port.  It listens
+ * on loopback unless given another address, and away from loopback it
+ * needs a shared secret.  With a secret, each end of a link proves it
+ * has it by returning an HMAC of the random nonce in the other's HELLO;
+ * a link that cannot is closed before anything else is read from it.
+ * The secret does not encrypt the link, so beyond a trusted network the
+ * cluster port still belongs behind a firewall or a tunnel.
+ */
+class ClusterNode
+{
+  //Class variables *************************************************
+
+  // Frame types between nodes, above the client protocol's
+  static final byte HELLO = 32;            // text: node id, a space, then a nonce; seq: start time, so a restart resets numbering
+  static final byte RELAY_CHAT = 33;       // seq: origin's number; text: the tagged line
+  static final byte RELAY_SERVER_MSG = 34;
+  static final byte USER_ON = 35;          // text: login id; seq: login time
+  static final byte USER_OFF = 36;         // text: login id
+  static final byte RELAY_PRIVATE = 37;    // text: recipient's login id, a space, then the tagged line
+  static final byte AUTH = 38;             // text: HMAC of the peer's nonce and this node's id, with a secret only
+
+  /**
+   * The most frames a link may have waiting.  A peer that falls this far
+   * behind is cut off and dialed again.
+   */
+  static final int LINK_QUEUE = 65536;
+
+  /**
+   * The most bytes one write to a peer carries.
+   */
+  private static final int BATCH_BYTES = 64 * 1024;
+
+  private static final long REDIAL_MIN_MILLIS = 500;
+  private static final long REDIAL_MAX_MILLIS = 10000;
+  private static final int CONNECT_TIMEOUT_MS = 5000;
+
+  /**
+   * How long a new link may take over its HELLO and AUTH.
+   */
+  private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  private static final String HMAC = "HmacSHA256";
+  private static final SecureRandom NONCES = new SecureRandom();
+
+  //Instance variables **********************************************
+
+  private final EchoServer server;
+  private final ServerLog log;
+  private final String nodeId;
+  private final SecretKeySpec secret; // null: links are not authenticated
+  private final long epoch = System.currentTimeMillis();
+  private long nextSeq = 0; // only the server's outbox drainer relays, one message at a time
+
+  /**
+   * The live link to each peer, by node id.
+   */
+  private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+
+  /**
+   * What has been delivered from each origin, by node id.
+   */
+  private final ConcurrentHashMap<String, Origin> origins = new ConcurrentHashMap<String, Origin>();
+
+  /**
+   * Login ids in use on other nodes, and where.
+   */
+  private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<String, String>();
+
+  private final List<String> peers = new ArrayList<String>();
+  private ServerSocket listener;
+  private volatile boolean closed = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param nodeId This node's name; must differ from every peer's.
+   * @param secret What every node must prove it knows, or null to link
+   *   with any peer that says hello.
+   */
+  ClusterNode(EchoServer server, String nodeId, String secret)
+  {
+    this.server = server;
+    this.log = server.getLog();
+    this.nodeId = nodeId;
+    this.secret = secret == null || secret.isEmpty() ? null
+      : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+  }
+
+  //Instance methods ************************************************
+
+  // === Starting and stopping ===
+
+  /**
+   * Accepts links from peers on a port.
+   *
+   * @param address The address to listen on; null for loopback.
+   * @throws IOException if the port cannot be opened, or if the address
+   *   is not loopback and this node has no secret.
+   */
+  void listen(InetAddress address, int port) throws IOException
+  {
+    if (address == null) address = InetAddress.getLoopbackAddress();
+    if (secret == null && !address.isLoopbackAddress())
+      throw new IOException("listening on " + address.getHostAddress() + " needs a cluster secret");
+    listener = new ServerSocket(port, 50, address);
+    start("cluster-accept", () -> {
+      while (!closed)
+      {
+        try
+        {
+          Socket socket = listener.accept();
+          start("cluster-link", () -> new PeerLink(socket, false).run());
+        }
+        catch (IOException e)
+        {
+          if (!closed) log.warn("[Cluster] Accept failed: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Keeps a link to a peer up, dialing again with backoff whenever it
+   * drops.
+   */
+  void addPeer(String host, int port)
+  {
+    peers.add(host + ":" + port);
+    start("cluster-dial-" + host + ":" + port, () -> dial(host, port));
+  }
+
+  void close()
+  {
+    closed = true;
+    try
+    {
+      if (listener != null) listener.close();
+    }
+    catch (IOException ignored) {}
+    for (PeerLink link : links.values()) link.close();
+  }
+
+  // === Outgoing ===
+
+  /**
+   * Sends a broadcast that started here to every peer.  Called by
+   * whichever thread drains the server's outbox, one message at a time in
+   * sequence order, so numbers follow delivery order.
+   */
+  void relay(byte type, String text)
+  {
+    byte relayType = type == ChatFrame.SERVER_MSG ? RELAY_SERVER_MSG : RELAY_CHAT;
+    ByteBuffer frame = new ChatFrame(relayType, -1, nextSeq++, text).encode();
+    for (PeerLink link : links.values()) link.send(frame);
+  }
+
+  /**
+   * Tells every peer a login id is taken here.
+   */
+  void userOn(Session session)
+  {
+    ByteBuffer frame = new ChatFrame(USER_ON, -1, session.getLoginTime(), session.getLoginId()).encode();
+    for (PeerLink link : links.values()) link.send(frame);
+  }
+
+  /**
+   * Tells every peer a login id is free again here.
+   */
+  void userOff(String loginId)
+  {
+    ByteBuffer frame = new ChatFrame(USER_OFF, loginId).encode();
+    for (PeerLink link : links.values()) link.send(frame);
+  }
+
+  /**
+   * Sends a private message to the node a user is logged in on.
+   *
+   * @return false if no linked node has the user.
+   */
+  boolean sendPrivate(String loginId, String line)
+  {
+    String node = remoteUsers.get(loginId);
+    PeerLink link = node == null ? null : links.get(node);
+    if (link == null) return false;
+    link.send(new ChatFrame(RELAY_PRIVATE, loginId + " " + line).encode());
+    return true;
+  }
+
+  // === Queries ===
+
+  /**
+   * Returns whether a login id is in use on another node.
+   */
+  boolean hasRemoteUser(String loginId)
+  {
+    return remoteUsers.containsKey(loginId);
+  }
+
+  String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * Returns the links and users for the server console.
+   */
+  String describe()
+  {
+    StringBuilder s = new StringBuilder("Cluster node " + nodeId);
+    if (listener != null)
+    {
+      s.append(" (peers link to ").append(listener.getInetAddress().getHostAddress())
+        .append(':').append(listener.getLocalPort()).append(secret == null ? ", no secret)" : ")");
+    }
+    s.append(":\n  dialing   ").append(peers.isEmpty() ? "none" : String.join(", ", peers));
+    s.append("\n  linked    ").append(links.isEmpty() ? "none" : String.join(", ", links.keySet()));
+    s.append("\n  remote users ").append(remoteUsers.size());
+    return s.toString();
+  }
+
+  // === Links ===
+
+  private void dial(String host, int port)
+  {
+    long delay = REDIAL_MIN_MILLIS;
+    String peerId = null;
+    while (!closed)
+    {
+      // no need to dial a peer that dialed us
+      if (peerId == null || !links.containsKey(peerId))
+      {
+        try
+        {
+          Socket socket = new Socket();
+          socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+          PeerLink link = new PeerLink(socket, true);
+          link.run(); // until the link drops
+          peerId = link.peerId;
+          if (nodeId.equals(peerId))
+          {
+            log.warn("[Cluster] Peer " + host + ":" + port + " is this node; not dialing it.");
+            return;
+          }
+          if (link.registered) delay = REDIAL_MIN_MILLIS;
+        }
+        catch (IOException e)
+        {
+          log.debug("[Cluster] Could not reach " + host + ":" + port + ": " + e.getMessage());
+        }
+      }
+      try
+      {
+        Thread.sleep(delay);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      delay = Math.min(delay * 2, REDIAL_MAX_MILLIS);
+    }
+  }
+
+  /**
+   * Makes a link the live one for its peer.  Of two links between the
+   * same pair, the one dialed by the smaller node id wins, on both ends.
+   *
+   * @return false if the link lost and should be closed.
+   */
+  private boolean register(PeerLink link)
+  {
+    if (link.peerId.equals(nodeId)) return false; // dialed ourselves
+    synchronized (links)
+    {
+      PeerLink existing = links.get(link.peerId);
+      if (existing != null)
+      {
+        if (link.dialed != (nodeId.compareTo(link.peerId) < 0)) return false;
+        existing.close(); // its unregister leaves the new link alone
+      }
+      links.put(link.peerId, link);
+    }
+    origins.compute(link.peerId, (id, o) -> o != null && o.epoch == link.peerEpoch ? o : new Origin(link.peerEpoch));
+    return true;
+  }
+
+  private void unregister(PeerLink link)
+  {
+    synchronized (links)
+    {
+      if (!links.remove(link.peerId, link) || links.containsKey(link.peerId)) return;
+    }
+    for (Map.Entry<String, String> user : remoteUsers.entrySet())
+    {
+      if (user.getValue().equals(link.peerId) && remoteUsers.remove(user.getKey(), link.peerId))
+      {
+        server.remotePresenceChanged(user.getKey());
+      }
+    }
+    log.info("[Cluster] Lost link to " + link.peerId + ".");
+  }
+
+  private void received(PeerLink link, ChatFrame frame)
+  {
+    byte type = frame.getType();
+    if (type == RELAY_CHAT || type == RELAY_SERVER_MSG)
+    {
+      Origin origin = origins.get(link.peerId);
+      synchronized (origin)
+      {
+        long seq = frame.getSeq();
+        if (seq <= origin.lastSeq) return; // seen it on another link
+        if (seq > origin.lastSeq + 1)
+        {
+          log.warn("[Cluster] Missed " + (seq - origin.lastSeq - 1) + " messages from " + link.peerId + ".");
+        }
+        origin.lastSeq = seq;
+        server.deliverFromPeer(type == RELAY_SERVER_MSG ? ChatFrame.SERVER_MSG : ChatFrame.CHAT, frame.getText());
+      }
+    }
+    else if (type == USER_ON)
+    {
+      String loginId = frame.getText();
+      remoteUsers.put(loginId, link.peerId);
+      server.remotePresenceChanged(loginId);
+      // both ends settle a double login the same way: the earlier one, then the smaller node id
+      Session local = server.getLocalSession(loginId);
+      if (local != null && (frame.getSeq() < local.getLoginTime()
+        || (frame.getSeq() == local.getLoginTime() && link.peerId.compareTo(nodeId) < 0)))
+      {
+        log.info("[Cluster] " + loginId + " logged in on " + link.peerId + " first; disconnecting it here.");
+        server.evict(local, "ERROR: Login ID " + loginId + " is already in use. Closing connection.");
+      }
+    }
+    else if (type == USER_OFF)
+    {
+      if (remoteUsers.remove(frame.getText(), link.peerId)) server.remotePresenceChanged(frame.getText());
+    }
+    else if (type == RELAY_PRIVATE)
+    {
+      String[] parts = frame.getText().split(" ", 2);
+      if (parts.length == 2) server.deliverPrivateFromPeer(parts[0], parts[1]);
+    }
+  }
+
+  // What a node with the secret sends back for a nonce; naming the sender stops a peer from
+  // replaying our own challenge to us.
+  private String proof(String nonce, String senderId) throws IOException
+  {
+    try
+    {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(secret);
+      return Base64.getEncoder().encodeToString(mac.doFinal((nonce + " " + senderId).getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IOException("cannot compute " + HMAC + ": " + e.getMessage());
+    }
+  }
+
+  // Cluster threads go in a top-level group, or OCSF would count them as clients.
+  private static void start(String name, Runnable body)
+  {
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (root.getParent() != null) root = root.getParent();
+    Thread t = new Thread(root, body, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Delivery state for one origin node.
+   */
+  private static final class Origin
+  {
+    final long epoch;
+    long lastSeq = -1; // guarded by this
+
+    Origin(long epoch)
+    {
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * One socket to a peer: a reader on the thread that runs it and a
+   * writer that batches.
+   */
+  private final class PeerLink implements Runnable
+  {
+    final Socket socket;
+    final boolean dialed;
+    final LinkedBlockingQueue<ByteBuffer> outbound = new LinkedBlockingQueue<ByteBuffer>(LINK_QUEUE);
+    volatile String peerId;
+    long peerEpoch;
+    boolean registered = false;
+    private volatile Thread writer;
+
+    PeerLink(Socket socket, boolean dialed)
+    {
+      this.socket = socket;
+      this.dialed = dialed;
+    }
+
+    public void run()
+    {
+      try
+      {
+        socket.setTcpNoDelay(true); // the writer does the batching
+        writer = new Thread(this::write, "cluster-writer");
+        writer.setDaemon(true);
+        writer.start();
+        byte[] nonce = new byte[16];
+        NONCES.nextBytes(nonce);
+        String ourNonce = Base64.getEncoder().encodeToString(nonce);
+        send(new ChatFrame(HELLO, -1, epoch, nodeId + " " + ourNonce).encode());
+
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        List<ChatFrame> frames = new ArrayList<ChatFrame>();
+        ChatFrame hello = next(in, frames);
+        int space = hello.getText().lastIndexOf(' ');
+        if (hello.getType() != HELLO || space < 0) throw new IOException("peer did not say hello");
+        peerId = hello.getText().substring(0, space);
+        peerEpoch = hello.getSeq();
+        if (secret != null)
+        {
+          send(new ChatFrame(AUTH, proof(hello.getText().substring(space + 1), nodeId)).encode());
+          ChatFrame auth = next(in, frames);
+          byte[] expected = proof(ourNonce, peerId).getBytes(StandardCharsets.UTF_8);
+          if (auth.getType() != AUTH || !MessageDigest.isEqual(expected, auth.getText().getBytes(StandardCharsets.UTF_8)))
+          {
+            log.warn("[Cluster] " + socket.getRemoteSocketAddress() + " did not prove it has the cluster secret; closing the link.");
+            return;
+          }
+        }
+        socket.setSoTimeout(0);
+        if (!register(this)) return;
+        registered = true;
+        log.info("[Cluster] Linked to " + peerId + " (" + socket.getRemoteSocketAddress() + ").");
+        for (Session s : server.getLocalSessions())
+        {
+          send(new ChatFrame(USER_ON, -1, s.getLoginTime(), s.getLoginId()).encode());
+        }
+
+        while (!closed)
+        {
+          for (ChatFrame frame : frames) received(this, frame);
+          frames.clear();
+          ChatFrame.read(in, frames);
+        }
+      }
+      catch (IOException e)
+      {
+        if (registered && !socket.isClosed()) log.debug("[Cluster] Link to " + peerId + " failed: " + e.getMessage());
+      }
+      finally
+      {
+        close();
+        if (registered) unregister(this);
+      }
+    }
+
+    // The handshake's next frame; a BATCH may carry it along with what follows.
+    private ChatFrame next(BufferedInputStream in, List<ChatFrame> frames) throws IOException
+    {
+      if (frames.isEmpty()) ChatFrame.read(in, frames);
+      return frames.remove(0);
+    }
+
+    /**
+     * Queues an encoded frame.  A peer too far behind is cut off.
+     */
+    void send(ByteBuffer frame)
+    {
+      if (!outbound.offer(frame))
+      {
+        log.warn("[Cluster] " + peerId + " is " + LINK_QUEUE + " frames behind; dropping the link.");
+        close();
+      }
+    }
+
+    void close()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ignored) {}
+      Thread w = writer;
+      if (w != null) w.interrupt();
+    }
+
+    // Everything queued since the last write goes out as one write.
+    private void write()
+    {
+      List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+      try
+      {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+        while (!socket.isClosed())
+        {
+          ByteBuffer first = outbound.take();
+          batch.add(first.duplicate());
+          int bytes = first.remaining();
+          ByteBuffer next;
+          while (bytes < BATCH_BYTES && (next = outbound.poll()) != null)
+          {
+            batch.add(next.duplicate());
+            bytes += next.remaining();
+          }
+          ByteBuffer write = batch.size() == 1 ? batch.get(0) : ChatFrame.batch(batch);
+          out.write(write.array(), write.arrayOffset() + write.position(), write.remaining());
+          out.flush();
+          batch.clear();
+        }
+      }
+      catch (IOException | InterruptedException e)
+      {
+        close();
+      }
+    }
+  }
+}
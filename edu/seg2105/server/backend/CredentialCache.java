@@ -0,0 +1,136 @@
+package edu.seg2105.server.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Logins the authenticator accepted in the last little while, so a
+ * client that reconnects with the same password is let in without
+ * hashing it again.  What is kept is an HMAC of the password under a key
+ * made fresh for each run, never the password itself, and it is checked
+ * in constant time.
+ *
+ * <p>Entries last ttlMillis from the login that verified them; a user
+ * removed from the password file can still log in that long.  A wrong
+ * password does not evict a good entry, it just misses and goes to the
+ * authenticator.
+ */
+class CredentialCache
+{
+  //Class variables *************************************************
+
+  /**
+   * How long a verified password is remembered.
+   */
+  static final long DEFAULT_TTL_MILLIS = 60_000;
+
+  /**
+   * Entries past this many trigger a sweep of expired ones, at most once
+   * a second.
+   */
+  private static final int SWEEP_SIZE = 4096;
+
+  //Instance variables **********************************************
+
+  private final long ttlMillis;
+  private final SecretKeySpec key;
+  private final ConcurrentHashMap<String, Entry> verified = new ConcurrentHashMap<String, Entry>();
+  private volatile long lastSweep = 0;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param ttlMillis How long a verified password is remembered; 0 to
+   *   remember none.
+   */
+  CredentialCache(long ttlMillis)
+  {
+    this.ttlMillis = ttlMillis;
+    byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    this.key = new SecretKeySpec(bytes, "HmacSHA256");
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns whether this password was verified for this id within the
+   * time to live.
+   */
+  boolean matches(String loginId, String password)
+  {
+    Entry entry = verified.get(loginId);
+    if (entry == null) return false;
+    if (System.currentTimeMillis() > entry.expires)
+    {
+      verified.remove(loginId, entry);
+      return false;
+    }
+    return MessageDigest.isEqual(entry.mac, mac(loginId, password));
+  }
+
+  /**
+   * Remembers a password the authenticator just accepted.
+   */
+  void remember(String loginId, String password)
+  {
+    if (ttlMillis <= 0) return;
+    long now = System.currentTimeMillis();
+    if (verified.size() >= SWEEP_SIZE && now - lastSweep >= 1000)
+    {
+      lastSweep = now;
+      verified.values().removeIf(e -> now > e.expires);
+    }
+    verified.put(loginId, new Entry(mac(loginId, password), now + ttlMillis));
+  }
+
+  /**
+   * Forgets every password, e.g. after the password file changed.
+   */
+  void clear()
+  {
+    verified.clear();
+  }
+
+  int size()
+  {
+    return verified.size();
+  }
+
+  // The id is in the MAC too, so an entry cannot vouch for another id.
+  private byte[] mac(String loginId, String password)
+  {
+    try
+    {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      mac.update(loginId.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IllegalStateException("HmacSHA256 is missing from this JVM", e);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  private static final class Entry
+  {
+    final byte[] mac;
+    final long expires;
+
+    Entry(byte[] mac, long expires)
+    {
+      this.mac = mac;
+      this.expires = expires;
+    }
+  }
+}
@@ -7,6 +7,35 @@ package edu.seg2105.server.backend;
 import ocsf.server.*;
 // import the following for Exercise 3.0
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
+
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.Tls;
 
 
 /**
@@ -26,6 +55,227 @@ public class EchoServer extends AbstractServer
    * The default port to listen on.
    */
   final public static int DEFAULT_PORT = 5555;
+
+  /**
+   * The engine name for OCSF's thread-per-client transport.
+   */
+  final public static String ENGINE_OCSF = "ocsf";
+
+  /**
+   * The engine name for the selector-based transport.
+   */
+  final public static String ENGINE_NIO = "nio";
+
+  /**
+   * The engine name for blocking per-client readers on virtual threads.
+   */
+  final public static String ENGINE_VIRTUAL = "virtual";
+
+  /**
+   * The engine name for blocking per-client readers on platform threads.
+   */
+  final public static String ENGINE_THREADS = "threads";
+
+  /**
+   * The key under which the ClientConnection adapter of an OCSF client
+   * is saved.
+   */
+  private static final String LINK_KEY = "link";
+
+  /**
+   * The most messages one #history command replays.  Kept well under the
+   * outbound queue limit so a replay cannot push out live messages.
+   */
+  static final int MAX_HISTORY = 500;
+
+  private static final int DEFAULT_HISTORY = 20;
+
+  /**
+   * The per-user limits main() starts with: 20 messages a second in
+   * bursts of up to 60, and 64 KB a second in bursts of up to 256 KB.
+   * A server built in code starts with no limits.
+   */
+  static final String DEFAULT_USER_RATE = "20,60";
+  static final String DEFAULT_USER_BYTE_RATE = "65536,262144";
+
+  /**
+   * Frames this many bytes or larger go compressed to binary clients that
+   * asked for it.  Chat lines stay well under it; pasted logs and stack
+   * traces do not.
+   */
+  static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+  /**
+   * How long #close, #quit and a live #setport give clients to receive
+   * what is queued for them, and how long those clients spread their
+   * reconnects over.
+   */
+  static final long DEFAULT_DRAIN_MILLIS = 5000;
+
+  /**
+   * The longest drain #close, #quit and #setport accept, in seconds.
+   */
+  static final int MAX_DRAIN_SECONDS = 600;
+
+  /**
+   * Threads checking passwords.  A good password hash is slow on purpose
+   * and all arithmetic, so more than half the cores would starve the
+   * readers; logins beyond the queue are turned away.
+   */
+  static final int VERIFY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  static final int VERIFY_QUEUE = 1024;
+
+  /**
+   * The most messages kept from a client whose password is still being
+   * checked; one that sends more is disconnected.
+   */
+  static final int MAX_HELD_BEFORE_LOGIN = 64;
+
+  /**
+   * The most ids #who lists; it says how many more there are.
+   */
+  static final int WHO_LIMIT = 100;
+
+  /**
+   * How long a client has to log in after connecting, and how long one
+   * that pings may go without sending anything, before it is
+   * disconnected.  Clients that never ping are not timed out once logged
+   * in: older ones stay quiet when their user is.
+   */
+  static final long DEFAULT_LOGIN_TIMEOUT_MILLIS = 30_000;
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 90_000;
+
+  /**
+   * The key under which a connection's Watch is saved.
+   */
+  private static final String WATCH_KEY = "watch";
+
+  private static final DateTimeFormatter HISTORY_TIME =
+    DateTimeFormatter.ofPattern("MM-dd HH:mm").withZone(ZoneId.systemDefault());
+  
+  //Instance variables **********************************************
+
+  /**
+   * The transport that accepts clients and delivers their messages.
+   */
+  private final ServerEngine engine;
+
+  /**
+   * How many messages each client may have queued before the overflow
+   * policy applies.
+   */
+  private volatile int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+
+  /**
+   * What happens to messages for a client whose queue is full.
+   */
+  private volatile OutboundQueue.Overflow overflowPolicy = OutboundQueue.Overflow.DROP_OLDEST;
+
+  /**
+   * The smallest frame compressed for clients that ask; 0 for never.
+   */
+  private volatile int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+
+  /**
+   * Every logged-in client, keyed by login id.
+   */
+  private final SessionRegistry sessions = new SessionRegistry();
+
+  /**
+   * Channel membership, for routing channel messages to members only.
+   */
+  private final ChannelIndex channels = new ChannelIndex();
+
+  /**
+   * Gauges, rates and delivery latency; see #stats.
+   */
+  private final ServerMetrics metrics;
+
+  /**
+   * Where server events go; written by a background thread.
+   */
+  private final ServerLog log = new ServerLog(ServerLog.DEFAULT_CAPACITY);
+
+  /**
+   * Every message broadcast to everyone, for #history; null when off.
+   */
+  private volatile MessageLog history;
+
+  /**
+   * The last messages sent to everyone, numbered, for clients that
+   * resume.  Its lock orders numbering and replay.
+   */
+  private final ReplayBuffer recent = new ReplayBuffer(ReplayBuffer.DEFAULT_CAPACITY);
+
+  /**
+   * Numbered broadcasts not yet fanned out, logged and relayed, in
+   * sequence order; guarded by itself.  One broadcaster at a time drains
+   * it, see broadcast().
+   */
+  private final ArrayDeque<Outgoing> outbox = new ArrayDeque<Outgoing>();
+  private boolean draining = false;   // guarded by outbox
+
+  /**
+   * Message and byte rate limits, per user and for the whole server.
+   */
+  private final RateLimiter limiter = new RateLimiter();
+
+  /**
+   * Masks, redacts, caps or blocks chat lines before they are tagged and
+   * sent; no stages until a rule file or stage is added.
+   */
+  private final MessageFilter filter = new MessageFilter(log);
+
+  /**
+   * Who is online, sent to clients that ask in coalesced deltas.
+   */
+  private final Presence presence;
+
+  /**
+   * The links to other nodes in cluster mode; null when running alone.
+   */
+  private volatile ClusterNode cluster;
+
+  /**
+   * Encrypts client connections when set; see setTls.
+   */
+  private volatile SSLContext tls;
+
+  /**
+   * Checks passwords at #login; null lets any id in, as before.
+   */
+  private volatile Authenticator authenticator;
+
+  /**
+   * Passwords the authenticator accepted lately, so reconnects skip the
+   * hash.
+   */
+  private final CredentialCache verified = new CredentialCache(CredentialCache.DEFAULT_TTL_MILLIS);
+
+  /**
+   * Runs the authenticator off the threads reading connections; made with
+   * the first authenticator.
+   */
+  private ThreadPoolExecutor verifiers;
+
+  /**
+   * Connections whose password is being checked, with what they sent
+   * meanwhile.
+   */
+  private final ConcurrentHashMap<ClientConnection, PendingLogin> pending =
+    new ConcurrentHashMap<ClientConnection, PendingLogin>();
+
+  /**
+   * What happens when an id that is already logged in logs in again.
+   */
+  private volatile DuplicateLogin duplicateLogin = DuplicateLogin.REJECT;
+
+  /**
+   * Every connection's login or idle deadline, on one timer wheel.
+   */
+  private final TimerWheel reaper = new TimerWheel("idle-reaper", 250, 1024);
+  private volatile long loginTimeoutMillis = DEFAULT_LOGIN_TIMEOUT_MILLIS;
+  private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
   
   //Constructors ****************************************************
   
@@ -35,8 +285,39 @@ public class EchoServer extends AbstractServer
    * @param port The port number to connect on.
    */
   public EchoServer(int port) 
+  {
+    this(port, ENGINE_OCSF, NioServerEngine.DEFAULT_EVENT_LOOPS);
+  }
+
+  /**
+   * Constructs an instance of the echo server on the chosen engine.
+   *
+   * @param port The port number to connect on.
+   * @param engineName ENGINE_OCSF, ENGINE_NIO, ENGINE_VIRTUAL or ENGINE_THREADS.
+   * @param eventLoops The number of event loop threads for the NIO engine.
+   * @throws IllegalArgumentException for an unknown engine name.
+   * @throws UnsupportedOperationException for ENGINE_VIRTUAL before Java 21.
+   */
+  public EchoServer(int port, String engineName, int eventLoops)
   {
     super(port);
+    if (ENGINE_OCSF.equals(engineName)) {
+      engine = new OcsfEngine();
+    } else if (ENGINE_NIO.equals(engineName)) {
+      engine = new NioServerEngine(this, port, eventLoops);
+    } else if (ENGINE_VIRTUAL.equals(engineName)) {
+      ThreadFactory virtual = ThreadedServerEngine.virtualThreadFactory();
+      if (virtual == null) {
+        throw new UnsupportedOperationException(ThreadedServerEngine.virtualThreadsUnavailable());
+      }
+      engine = new ThreadedServerEngine(this, port, virtual);
+    } else if (ENGINE_THREADS.equals(engineName)) {
+      engine = new ThreadedServerEngine(this, port, ThreadedServerEngine.platformThreadFactory());
+    } else {
+      throw new IllegalArgumentException("Unknown engine: " + engineName);
+    }
+    metrics = new ServerMetrics(engine::getNumberOfClients, sessions::size);
+    presence = new Presence(this::isOnline, engine::sendToClients, Presence.DEFAULT_WINDOW_MILLIS);
   }
 
   
@@ -52,7 +333,7 @@ public class EchoServer extends AbstractServer
   // Assignment 2.0 - Exercise 3.0 
   /** 
   * - Match only on the first message of type ‘#login <id>’
-  * - Save login id via setInfo/getInfo
+  * - Save login id in the client's Session (see SessionRegistry)
   * - Prefix each echoed message with the sender's login id
   * - If #login is missing at first or follows, raise an error and close
   */
@@ -61,7 +342,7 @@ public class EchoServer extends AbstractServer
    * // handleMessageFromClient logic explanation:
 //
 // When client connects, the first message received must be “#login <id>”.
-//   The login ID, if correct, is then stored on the server side by client.setInfo()
+//   The login ID, if correct, is then stored on the server side in a Session
 //   so that the system can identify who sent the messages in the future.
      //   The value is
 // - In the case that the initial message is absent or malformed, or if any client attempts
@@ -75,114 +356,906 @@ public class EchoServer extends AbstractServer
   // === Exercise 3.0 =====
   
   public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+	  handleMessageFromClient(msg, link(client));
+  }
+
+  // Same logic for every engine: OCSF clients arrive through link(), NIO clients directly.
+  // Binary clients send frames; a LOGIN frame means the same as "#login <id>".
+  public void handleMessageFromClient(Object msg, ClientConnection client) {
+	  if (msg instanceof ChatFrame ? ((ChatFrame) msg).getType() == ChatFrame.PING : ChatFrame.PING_TEXT.equals(msg)) {
+	    pong(client);
+	    return;
+	  }
+	  PendingLogin waiting = pending.get(client);
+	  if (waiting != null && waiting.hold(msg)) return; // passed on once the password is checked
+	  long receivedAt = System.nanoTime();
 	  String text = String.valueOf(msg);
-	  String id = (String) client.getInfo("loginId"); // null until logged in
+	  metrics.received(text);
+	  if (msg instanceof ChatFrame && ((ChatFrame) msg).getType() == ChatFrame.LOGIN) {
+	    text = "#login " + text;
+	  }
+	  boolean resume = msg instanceof ChatFrame && ((ChatFrame) msg).getType() == ChatFrame.RESUME;
+	  Session session = client.getSession(); // null until logged in
 
-	  if (id == null) {
+	  if (session == null) {
+	    // A binary client back after a dropped connection
+	    if (resume) {
+	      resume((ChatFrame) msg, client, false);
+	      return;
+	    }
 	    // First message MUST be "#login <id>"
 	    if (text.startsWith("#login ")) {
-	      String proposed = text.substring("#login ".length()).trim();
+	      // "#login <id> [password]"; anything after the first space is the password
+	      String request = text.substring("#login ".length()).trim();
+	      int space = request.indexOf(' ');
+	      String proposed = space < 0 ? request : request.substring(0, space);
+	      String password = space < 0 ? "" : request.substring(space + 1);
 	      if (proposed.isEmpty()) {
-	        try { client.sendToClient("ERROR: Missing login ID. Closing connection."); } catch (IOException ignored) {}
+	        try { client.sendToClient(new ChatFrame(ChatFrame.ERROR, "ERROR: Missing login ID. Closing connection.")); } catch (IOException ignored) {}
 	        try { client.close(); } catch (IOException ignored) {}
 	        return;
 	      }
-	      client.setInfo("loginId", proposed);
-	      System.out.println("[Server] " + proposed + " logged in.");
-	      try { client.sendToClient("Welcome, " + proposed + "!"); } catch (IOException ignored) {}
+	      boolean binary = msg instanceof ChatFrame;
+	      authenticate(client, proposed, password, () -> login(proposed, binary, client));
 	      return; // do not echo the #login line
 	    } else {
 	      // No login on first message -> error + close
-	      try { client.sendToClient("ERROR: First message must be '#login <id>'. Closing connection."); } catch (IOException ignored) {}
+	      try { client.sendToClient(new ChatFrame(ChatFrame.ERROR, "ERROR: First message must be '#login <id>'. Closing connection.")); } catch (IOException ignored) {}
 	      try { client.close(); } catch (IOException ignored) {}
 	      return;
 	    }
 	  } else {
+	    if (session.closing) return; // being disconnected; drop what it sent meanwhile
+	    session.lastHeard = receivedAt;
+
 	    // Already logged in
-	    if (text.startsWith("#login")) {
-	      try { client.sendToClient("ERROR: Already logged in. Closing connection."); } catch (IOException ignored) {}
+	    if (text.startsWith("#login") || resume) {
+	      try { client.sendToClient(new ChatFrame(ChatFrame.ERROR, "ERROR: Already logged in. Closing connection.")); } catch (IOException ignored) {}
+	      try { client.close(); } catch (IOException ignored) {}
+	      return;
+	    }
+
+	    // Over a rate limit the message is dropped, commands included
+	    String limit = limiter.admit(session, text, receivedAt);
+	    if (limit != null) {
+	      refuse(session, limit, receivedAt);
+	      return;
+	    }
+
+	    // #w, #join and #leave; any other '#' line is chat as before
+	    if (text.startsWith("#") && handleChatCommand(text, session, receivedAt)) {
+	      return;
+	    }
+
+	    // Through the message filter, which may change or block it
+	    text = filter.apply(session, text);
+	    if (text == null) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Message not sent; the server's filter blocked it.");
+	      return;
+	    }
+
+	    // Normal path: prefix with loginId and send to the active channel, or to all clients
+	    String id = session.getLoginId();
+	    session.messageReceived();
+	    String tagged = id + "> " + text;
+	    String channel = session.activeChannel;
+	    if (channel != null) {
+	      if (log.enabled(ServerLog.Level.INFO)) log.info("[Server] From " + id + " in " + channel + ": " + text);
+	      List<ClientConnection> members = channels.recipients(channel);
+	      String line = "[" + channel + "] " + tagged;
+	      engine.sendToClients(members, new ChatFrame(ChatFrame.CHANNEL, session.getSenderId(), line));
+	      metrics.delivered(members.size(), line, receivedAt);
+	    } else {
+	      if (log.enabled(ServerLog.Level.INFO)) log.info("[Server] From " + id + ": " + text);
+	      broadcast(ChatFrame.CHAT, session.getSenderId(), tagged, receivedAt, true);
+	    }
+	  }
+  }
+
+  // === Direct messages and channels ===
+  // #w <id> <msg>    sends to one user, on this node or another cluster node (and echoes to the sender)
+  // #join <channel>  joins a channel; plain messages then go to it
+  // #leave <channel> leaves it; messages go to another joined channel, or to everyone
+  // #history [n]             replays the last n messages sent to everyone (default 20)
+  // #history since <offset>  replays everything from that offset on
+  // #who [prefix]            lists who is online, as of the last presence window
+  // #presence [on|off]       subscribes to presence: the roster, then what changes
+  // #typing                  tells presence subscribers this user is typing
+  // Returns false for any other command so it is treated as chat.
+  private boolean handleChatCommand(String text, Session session, long receivedAt) {
+	  String[] parts = text.trim().split("\\s+", 3);
+	  String cmd = parts[0];
+	  ClientConnection client = session.getConnection();
+
+	  if (cmd.equals("#w")) {
+	    if (parts.length < 3) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Usage: #w <id> <message>");
+	      return true;
+	    }
+	    Session target = sessions.get(parts[1]);
+	    ClusterNode cluster = this.cluster;
+	    boolean remote = target == null && cluster != null && cluster.hasRemoteUser(parts[1]);
+	    if (target == null && !remote) {
+	      reply(client, ChatFrame.ERROR, "ERROR: No user is logged in as " + parts[1] + ".");
+	      return true;
+	    }
+	    String message = filter.apply(session, parts[2]);
+	    if (message == null) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Message not sent; the server's filter blocked it.");
+	      return true;
+	    }
+	    session.messageReceived();
+	    String line = "[private] " + session.getLoginId() + " -> " + parts[1] + "> " + message;
+	    if (remote && !cluster.sendPrivate(parts[1], line)) {
+	      reply(client, ChatFrame.ERROR, "ERROR: No user is logged in as " + parts[1] + ".");
+	      return true;
+	    }
+	    ChatFrame frame = new ChatFrame(ChatFrame.DIRECT, session.getSenderId(), line);
+	    List<ClientConnection> both = remote || target == session ? List.of(client) : List.of(target.getConnection(), client);
+	    engine.sendToClients(both, frame);
+	    metrics.delivered(both.size(), frame.getText(), receivedAt);
+	    return true;
+
+	  } else if (cmd.equals("#join") || cmd.equals("#leave")) {
+	    String channel = (parts.length > 1) ? text.trim().split("\\s+", 2)[1] : "";
+	    if (!ChannelIndex.isValidName(channel)) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Usage: " + cmd + " <channel> (one word, at most "
+	        + ChannelIndex.MAX_NAME_LENGTH + " characters)");
+	    } else if (cmd.equals("#join")) {
+	      int members = channels.join(channel, session);
+	      log.info("[Server] " + session.getLoginId() + " joined " + channel + ".");
+	      reply(client, ChatFrame.SERVER_MSG, "Joined channel " + channel + " (" + members
+	        + (members == 1 ? " member" : " members") + "). Your messages now go to " + channel + ".");
+	    } else if (channels.leave(channel, session)) {
+	      log.info("[Server] " + session.getLoginId() + " left " + channel + ".");
+	      String active = session.activeChannel;
+	      reply(client, ChatFrame.SERVER_MSG, "Left channel " + channel + ". Your messages now go to "
+	        + (active == null ? "everyone" : active) + ".");
+	    } else {
+	      reply(client, ChatFrame.ERROR, "ERROR: You are not in channel " + channel + ".");
+	    }
+	    return true;
+
+	  } else if (cmd.equals("#history")) {
+	    replayHistory(parts, client);
+	    return true;
+
+	  } else if (cmd.equals("#who")) {
+	    reply(client, ChatFrame.SERVER_MSG, presence.who(parts.length > 1 ? parts[1] : "", WHO_LIMIT));
+	    return true;
+
+	  } else if (cmd.equals("#presence")) {
+	    if (parts.length > 1 && parts[1].equals("off")) presence.unsubscribe(client);
+	    else presence.subscribe(client);
+	    return true;
+
+	  } else if (cmd.equals("#typing")) {
+	    presence.typing(session.getLoginId());
+	    return true;
+	  }
+	  return false;
+  }
+
+  // Streams history to one client, MAX_HISTORY messages at most; the last line says where to go on from.
+  private void replayHistory(String[] parts, ClientConnection client) {
+	  MessageLog history = this.history;
+	  if (history == null) {
+	    reply(client, ChatFrame.ERROR, "ERROR: This server does not keep history.");
+	    return;
+	  }
+	  long from;
+	  try {
+	    if (parts.length == 1) {
+	      from = history.nextOffset() - DEFAULT_HISTORY;
+	    } else if (parts[1].equals("since") && parts.length == 3) {
+	      from = Long.parseLong(parts[2]);
+	    } else if (parts.length == 2) {
+	      int count = Integer.parseInt(parts[1]);
+	      if (count < 1) throw new NumberFormatException();
+	      from = history.nextOffset() - Math.min(count, MAX_HISTORY);
+	    } else {
+	      throw new NumberFormatException();
+	    }
+	  } catch (NumberFormatException e) {
+	    reply(client, ChatFrame.ERROR, "ERROR: Usage: #history [count] or #history since <offset>");
+	    return;
+	  }
+	  long next = history.read(from, MAX_HISTORY, (offset, time, text) -> reply(client, ChatFrame.HISTORY,
+	    "[#" + offset + " " + HISTORY_TIME.format(Instant.ofEpochMilli(time)) + "] " + text));
+	  if (next < history.nextOffset()) {
+	    reply(client, ChatFrame.SERVER_MSG, "More history: #history since " + next);
+	  } else {
+	    reply(client, ChatFrame.SERVER_MSG, "End of history (next offset " + next + ").");
+	  }
+  }
+
+  // === Broadcasts and resume ===
+  // Everything sent to everyone gets a sequence number: its history offset when history is kept,
+  // otherwise the next number in the replay buffer.  Only numbering, the replay buffer and taking the
+  // registry's snapshot happen under the buffer's lock, so a replay cannot interleave with them and
+  // logins and logouts never wait.  The message then joins the outbox, and whichever broadcaster finds
+  // nobody draining it sends, logs and relays everything there in sequence order, outside any lock;
+  // the others go straight back to their clients instead of waiting on the disk or the peers.
+  // Broadcasts that start here also go to the other cluster nodes, numbered in the same order.
+  private void broadcast(byte type, long senderId, String text, long receivedAt, boolean relay) {
+	  boolean drain;
+	  synchronized (recent) {
+	    ChatFrame frame = new ChatFrame(type, senderId, recent.nextSeq(), text);
+	    recent.add(frame);
+	    Outgoing out = new Outgoing(frame, sessions.connections(), history, relay, receivedAt);
+	    synchronized (outbox) {
+	      outbox.add(out);
+	      drain = !draining;
+	      draining = true;
+	    }
+	  }
+	  if (drain) drainOutbox();
+  }
+
+  private void drainOutbox() {
+	  while (true) {
+	    Outgoing out;
+	    synchronized (outbox) {
+	      out = outbox.poll();
+	      if (out == null) {
+	        draining = false;
+	        return;
+	      }
+	    }
+	    try {
+	      deliver(out);
+	    } catch (RuntimeException e) {
+	      log.error("[Server] Could not deliver broadcast #" + out.frame.getSeq() + ": " + e);
+	    }
+	  }
+  }
+
+  // Called for one message at a time, in sequence order, so history offsets and relays stay in step.
+  private void deliver(Outgoing out) {
+	  ChatFrame frame = out.frame;
+	  engine.sendToClients(out.recipients, frame);
+	  if (out.history != null) record(out.history, frame.getSeq(), frame.getText());
+	  ClusterNode cluster = this.cluster;
+	  if (out.relay && cluster != null) cluster.relay(frame.getType(), frame.getText());
+	  metrics.delivered(out.recipients.size(), frame.getText(), out.receivedAt);
+  }
+
+  // Appends to the history log at the offset the message was numbered with.  One that does not fit in a
+  // segment is logged as a placeholder, so the offsets after it still match their sequence numbers.
+  private void record(MessageLog history, long seq, String text) {
+	  try {
+	    long offset = history.append(System.currentTimeMillis(), text);
+	    if (offset < 0) offset = history.append(System.currentTimeMillis(), "[message too large for history]");
+	    if (offset != seq) log.warn("[Server] History offset " + offset + " does not match broadcast #" + seq + ".");
+	  } catch (IOException e) {
+	    log.warn("[Server] Could not write history: " + e.getMessage());
+	  }
+  }
+
+  // RESUME carries "<token> <id> [password]" and the last sequence number the client saw (-1 for none).
+  // A matching token takes the session over from the old connection if the server has not noticed
+  // it drop yet, or brings it back from the parked sessions if it has; channels come back either way.
+  // With nothing to resume it is a fresh login, so the password is checked first.  The client then
+  // gets what it missed.
+  private void resume(ChatFrame frame, ClientConnection client, boolean passwordChecked) {
+	  String[] parts = frame.getText().split(" ", 3);
+	  String id = parts.length >= 2 ? parts[1].trim() : "";
+	  if (id.isEmpty()) {
+	    reply(client, ChatFrame.ERROR, "ERROR: Missing login ID. Closing connection.");
+	    try { client.close(); } catch (IOException ignored) {}
+	    return;
+	  }
+	  Session previous = sessions.get(id);
+	  if ((previous != null && !previous.getResumeToken().equals(parts[0])) || inUseElsewhere(id)) {
+	    reply(client, ChatFrame.ERROR, "ERROR: Login ID " + id + " is already in use. Closing connection.");
+	    try { client.close(); } catch (IOException ignored) {}
+	    return;
+	  }
+	  if (!passwordChecked && previous == null && authenticator != null && !sessions.isParked(parts[0], id)) {
+	    authenticate(client, id, parts.length == 3 ? parts[2] : "", () -> resume(frame, client, true));
+	    return;
+	  }
+	  synchronized (recent) {
+	    Session session = null;
+	    List<String> joined = List.of();
+	    String active = null;
+	    boolean tookOver = false;
+	    if (previous != null) {
+	      joined = new ArrayList<String>(previous.channels);
+	      active = previous.activeChannel;
+	      session = sessions.takeOver(previous, client);
+	      tookOver = session != null;
+	      if (tookOver) channels.leaveAll(previous);
+	    }
+	    if (session == null) {
+	      SessionRegistry.Parked parked = sessions.unpark(parts[0], id);
+	      if (parked != null) {
+	        session = sessions.restore(parked, client);
+	        joined = parked.channels;
+	        active = parked.activeChannel;
+	      }
+	    }
+	    boolean resumed = session != null;
+	    if (!resumed) session = sessions.login(id, client);
+	    if (session == null) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Login ID " + id + " is already in use. Closing connection.");
+	      try { client.close(); } catch (IOException ignored) {}
+	      return;
+	    }
+	    if (resumed) {
+	      for (String channel : joined) channels.join(channel, session);
+	      if (active == null || session.channels.contains(active)) session.activeChannel = active;
+	    }
+	    if (!tookOver) announce(session); // a takeover never logged the id out
+	    log.info("[Server] " + id + (resumed ? " resumed its session." : " logged in again."));
+	    reply(client, ChatFrame.WELCOME, "Welcome back, " + id + "!");
+	    reply(client, ChatFrame.SESSION, session.getResumeToken());
+	    if (frame.getSeq() >= 0) replayMissed(client, frame.getSeq() + 1);
+	  }
+	  if (previous != null && previous.getConnection() != client) {
+	    try { previous.getConnection().close(); } catch (IOException ignored) {}
+	  }
+  }
+
+  // Sends the broadcasts numbered from on: from the replay buffer if it still has them all, else from
+  // the history log (MAX_HISTORY at most), else what the buffer has left.  Called with its lock held.
+  private void replayMissed(ClientConnection client, long from) {
+	  long next = recent.nextSeq();
+	  if (from >= next) return;
+	  MessageLog history = this.history;
+	  if (!recent.covers(from) && history != null) {
+	    long reached = history.read(from, MAX_HISTORY, (offset, time, text) -> {
+	      try { client.sendToClient(new ChatFrame(ChatFrame.CHAT, -1, offset, text)); } catch (IOException ignored) {}
+	    });
+	    if (reached < next) {
+	      reply(client, ChatFrame.SERVER_MSG, (next - reached) + " more messages were sent while you were away; "
+	        + "#history since " + reached + " shows them.");
+	    }
+	    return;
+	  }
+	  if (!recent.covers(from)) {
+	    reply(client, ChatFrame.SERVER_MSG, (recent.oldestSeq() - from) + " messages sent while you were away are no longer kept.");
+	  }
+	  recent.replay(from, frame -> {
+	    try { client.sendToClient(frame); } catch (IOException ignored) {}
+	  });
+  }
+
+  // Tells a client its message was dropped, or disconnects it if that keeps happening.
+  private void refuse(Session session, String limit, long now) {
+	  ClientConnection client = session.getConnection();
+	  metrics.rateLimited();
+	  if (limiter.strike(session, now)) {
+	    log.warn("[Server] Disconnecting " + session.getLoginId() + ": over the rate limit too often.");
+	    evict(session, "ERROR: Too many messages over the rate limit. Closing connection.");
+	    return;
+	  }
+	  if (log.enabled(ServerLog.Level.DEBUG)) log.debug("[Server] Dropped a message from " + session.getLoginId() + ": " + limit + ".");
+	  reply(client, ChatFrame.ERROR, "ERROR: Rate limit exceeded (" + limit + "); message dropped.");
+  }
+
+  // === Logging in ===
+
+  // Runs then once the password is known to be right for the id: at once with no authenticator or a
+  // password verified lately, else on a verifier thread so the hash never holds up the connection's
+  // reader.  What the client sends meanwhile waits and is handled after then, in order.
+  private void authenticate(ClientConnection client, String id, String password, Runnable then) {
+	  Authenticator authenticator = this.authenticator;
+	  if (authenticator == null || verified.matches(id, password)) {
+	    then.run();
+	    return;
+	  }
+	  PendingLogin waiting = new PendingLogin();
+	  pending.put(client, waiting);
+	  try {
+	    verifiers().execute(() -> {
+	      if (waiting.settled) return; // the client left while this waited in the queue
+	      boolean right = false;
+	      try {
+	        right = authenticator.verify(id, password);
+	      } catch (IOException | RuntimeException e) {
+	        log.warn("[Server] Could not check the password of " + id + ": " + e.getMessage());
+	      }
+	      if (right) verified.remember(id, password);
+	      settle(client, waiting, id, right ? then : null);
+	    });
+	  } catch (RejectedExecutionException e) {
+	    pending.remove(client, waiting);
+	    log.warn("[Server] Too many logins waiting for a password check; turned " + id + " away.");
+	    reply(client, ChatFrame.ERROR, "ERROR: Server too busy to log you in. Closing connection.");
+	    try { client.close(); } catch (IOException ignored) {}
+	  }
+  }
+
+  // Finishes a login after its password check (then is null if the password was wrong), and hands
+  // over what the client sent meanwhile.  The client's reader waits on the lock until that is done.
+  private void settle(ClientConnection client, PendingLogin waiting, String id, Runnable then) {
+	  synchronized (waiting) {
+	    pending.remove(client, waiting);
+	    if (!waiting.settle()) return; // the client left while its password was checked
+	    if (then == null) {
+	      log.info("[Server] Wrong password for " + id + " from " + addressOf(client) + ".");
+	      reply(client, ChatFrame.ERROR, "ERROR: Wrong login ID or password. Closing connection.");
+	      try { client.close(); } catch (IOException ignored) {}
+	      return;
+	    }
+	    if (waiting.overflowed) {
+	      reply(client, ChatFrame.ERROR, "ERROR: Too many messages before the login finished. Closing connection.");
 	      try { client.close(); } catch (IOException ignored) {}
 	      return;
 	    }
-		 
-		  // Normal path: prefix with loginId and broadcast to all clients
-		    String tagged = id + "> " + text;
-		    System.out.println("[Server] From " + id + ": " + text);
-		    this.sendToAllClients(tagged);
+	    then.run();
+	    for (Object msg : waiting.held) handleMessageFromClient(msg, client);
+	  }
+  }
+
+  // Logs a client in whose password, if one was needed, is right.  An id already logged in here
+  // either turns the new client away or, with DuplicateLogin.KICK, disconnects the old one.
+  private void login(String id, boolean binary, ClientConnection client) {
+	  Session previous = sessions.get(id);
+	  if (previous != null && duplicateLogin == DuplicateLogin.KICK) kick(previous);
+	  if (inUseElsewhere(id) || sessions.login(id, client) == null) {
+	    reply(client, ChatFrame.ERROR, "ERROR: Login ID " + id + " is already in use. Closing connection.");
+	    try { client.close(); } catch (IOException ignored) {}
+	    return;
+	  }
+	  log.info("[Server] " + id + " logged in.");
+	  announce(client.getSession());
+	  reply(client, ChatFrame.WELCOME, "Welcome, " + id + "!");
+	  if (binary) {
+	    // binary clients keep this to resume the session after a dropped connection
+	    reply(client, ChatFrame.SESSION, client.getSession().getResumeToken());
 	  }
   }
+
+  // The newer login wins: the older connection is told why and closed, and its session ends now
+  // rather than when the close is noticed, so the id is free for the new one.
+  private void kick(Session previous) {
+	  log.info("[Server] " + previous.getLoginId() + " logged in again; disconnecting the older connection.");
+	  evict(previous, "ERROR: Logged in again from somewhere else. Closing connection.");
+	  sessions.logout(previous.getConnection());
+	  channels.leaveAll(previous);
+	  presence.touch(previous.getLoginId());
+  }
+
+  private synchronized ThreadPoolExecutor verifiers() {
+	  if (verifiers == null) {
+	    AtomicLong count = new AtomicLong();
+	    verifiers = new ThreadPoolExecutor(VERIFY_THREADS, VERIFY_THREADS,
+	      30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(VERIFY_QUEUE), task -> {
+	        Thread t = new Thread(task, "login-verifier-" + count.getAndIncrement());
+	        t.setDaemon(true);
+	        return t;
+	      });
+	    verifiers.allowCoreThreadTimeOut(true);
+	  }
+	  return verifiers;
+  }
+
+  // === Idle connections ===
+  // Every connection has one Watch on the reaper's timer wheel, due at its next deadline: logging in,
+  // or, for a client that pings, going quiet for the idle timeout.  When it fires it disconnects the
+  // client or schedules itself for the new deadline, so a message only writes lastHeard and costs
+  // the wheel nothing.  New timeouts apply from each connection's next check.
+
+  // Answers a heartbeat, logged in or not.  Pings are not chat: no metrics, no rate limit.
+  private void pong(ClientConnection client) {
+	  Session session = client.getSession();
+	  if (session != null) {
+	    session.lastHeard = System.nanoTime();
+	    session.heartbeats = true;
+	  }
+	  reply(client, ChatFrame.PONG, ChatFrame.PONG_TEXT + idleTimeoutMillis);
+  }
+
+  private void check(Watch watch) {
+	  ClientConnection client = watch.client;
+	  Session session = client.getSession();
+	  long now = System.nanoTime();
+	  long login = loginTimeoutMillis;
+	  long idle = idleTimeoutMillis;
+	  if (session == null) {
+	    long waited = TimeUnit.NANOSECONDS.toMillis(now - watch.connectedAt);
+	    if (login > 0 && waited >= login) {
+	      log.info("[Server] Disconnecting " + addressOf(client) + ": no login within "
+	        + waited / 1000 + " s.");
+	      reply(client, ChatFrame.ERROR, "ERROR: No login within " + (login + 999) / 1000 + " seconds. Closing connection.");
+	      try { client.close(); } catch (IOException ignored) {}
+	      return;
+	    }
+	    watch.after(login > 0 ? login - waited : DEFAULT_LOGIN_TIMEOUT_MILLIS);
+	    return;
+	  }
+	  long quiet = TimeUnit.NANOSECONDS.toMillis(now - session.lastHeard);
+	  if (idle > 0 && session.heartbeats && quiet >= idle) {
+	    log.info("[Server] Disconnecting " + session.getLoginId() + ": nothing heard for " + quiet / 1000 + " s.");
+	    session.closing = true;
+	    client.closeNow(); // most likely gone, so it would never read what is queued
+	    return;
+	  }
+	  if (idle <= 0) watch.after(DEFAULT_IDLE_TIMEOUT_MILLIS);
+	  else watch.after(session.heartbeats ? idle - quiet : idle);
+  }
+
+  // === Cluster ===
+
+  // Whether another cluster node has a client logged in with this id.
+  private boolean inUseElsewhere(String loginId) {
+	  ClusterNode cluster = this.cluster;
+	  return cluster != null && cluster.hasRemoteUser(loginId);
+  }
+
+  // Tells the other cluster nodes this id is now taken here, and presence subscribers it is online.
+  private void announce(Session session) {
+	  presence.touch(session.getLoginId());
+	  ClusterNode cluster = this.cluster;
+	  if (cluster != null) cluster.userOn(session);
+  }
+
+  // Logged in here or on another node.
+  private boolean isOnline(String loginId) {
+	  return sessions.get(loginId) != null || inUseElsewhere(loginId);
+  }
+
+  /**
+   * Notes that an id logged in or out on another cluster node.
+   */
+  void remotePresenceChanged(String loginId) {
+	  presence.touch(loginId);
+  }
+
+  /**
+   * Delivers a broadcast relayed by another cluster node to this node's
+   * clients.  It is not relayed again.
+   */
+  void deliverFromPeer(byte type, String text) {
+	  if (log.enabled(ServerLog.Level.INFO)) log.info("[Cluster] " + text);
+	  broadcast(type, -1, text, 0, false);
+  }
+
+  // A #w from a user on another node, for a user here; dropped if they have left meanwhile.
+  void deliverPrivateFromPeer(String loginId, String line) {
+	  Session target = sessions.get(loginId);
+	  if (target == null) return;
+	  engine.sendToClients(List.of(target.getConnection()), new ChatFrame(ChatFrame.DIRECT, -1, line));
+	  metrics.delivered(1, line, 0);
+  }
+
+  Session getLocalSession(String loginId) {
+	  return sessions.get(loginId);
+  }
+
+  List<Session> getLocalSessions() {
+	  return sessions.sessions();
+  }
+
+  /**
+   * Disconnects a client the server no longer wants, dropping anything
+   * it sends meanwhile.
+   */
+  void evict(Session session, String reason) {
+	  session.closing = true;
+	  reply(session.getConnection(), ChatFrame.ERROR, reason);
+	  try { session.getConnection().close(); } catch (IOException ignored) {}
+  }
+
+  // === Draining and moving ===
+
+  /**
+   * Tells every connected client the server is going away and where to
+   * reconnect, and waits for them to leave.  A client reads everything
+   * queued ahead of the notice and then closes its end, so whatever it
+   * sent before it saw the notice is still read here.  Halfway through
+   * the time the server closes the connections still open itself, once
+   * their queues are written, and when the time is up it cuts off the
+   * rest.  Does not stop listening; callers do that first unless clients
+   * should come back to this same listener.
+   *
+   * @param host Where clients should reconnect, or "" for this host.
+   * @param port The port they should reconnect to.
+   * @param millis How long to wait for the queues to empty; clients also
+   *   spread their reconnects over this long.
+   * @return The number of clients cut off.
+   */
+  int drain(String host, int port, long millis) {
+	  List<ClientConnection> leaving = engine.getClientConnections();
+	  if (leaving.isEmpty()) return 0;
+	  log.info("[Server] Draining " + leaving.size() + " clients to " + host + ":" + port + ".");
+	  engine.sendToClients(leaving, new ChatFrame(ChatFrame.GOING_AWAY,
+	      ChatFrame.GOING_AWAY_TEXT + host + ":" + port + " within " + millis + " ms"));
+	  Set<ClientConnection> waiting = identitySet(leaving);
+	  long start = System.nanoTime();
+	  boolean closing = false;
+	  while (true) {
+	    waiting.retainAll(identitySet(engine.getClientConnections()));
+	    long elapsed = (System.nanoTime() - start) / 1_000_000;
+	    if (waiting.isEmpty() || elapsed >= millis) break;
+	    if (!closing && elapsed >= millis / 2) {
+	      closing = true; // clients that did not understand the notice
+	      for (ClientConnection c : waiting) {
+	        try { c.close(); } catch (IOException e) { c.closeNow(); }
+	      }
+	    }
+	    try {
+	      Thread.sleep(50);
+	    } catch (InterruptedException e) {
+	      Thread.currentThread().interrupt();
+	      break;
+	    }
+	  }
+	  for (ClientConnection c : waiting) c.closeNow();
+	  if (!waiting.isEmpty()) log.warn("[Server] Cut off " + waiting.size() + " clients that had not caught up.");
+	  return waiting.size();
+  }
+
+  /**
+   * Moves the server to another port while it is running.  The engines
+   * that can open the new port before closing the old one do, and the
+   * connected clients are then drained to it; being the same server, it
+   * resumes their sessions.  OCSF can only change port once closed, so
+   * there the clients are drained first and come back once it listens
+   * again.
+   *
+   * @param millis How long clients get to move; see drain.
+   */
+  void moveTo(int port, long millis) throws IOException {
+	  int from = engine.getPort();
+	  boolean live = true;
+	  try {
+		  engine.moveTo(port);
+	  } catch (UnsupportedOperationException e) {
+		  live = false;
+	  }
+	  if (live) {
+		  drain("", port, millis);
+		  return;
+	  }
+	  engine.stopListening();
+	  drain("", port, millis);
+	  engine.close();
+	  for (int i = 0; i < 100 && engine.isListening(); i++) { // OCSF's accept loop notices within its timeout
+		  try {
+			  Thread.sleep(20);
+		  } catch (InterruptedException e) {
+			  Thread.currentThread().interrupt();
+			  break;
+		  }
+	  }
+	  engine.setPort(port);
+	  try {
+		  engine.listen();
+	  } catch (IOException e) {
+		  engine.setPort(from);
+		  engine.listen();
+		  throw e;
+	  }
+  }
+
+  // A drain time typed at the console, in seconds: finite and at most MAX_DRAIN_SECONDS, so a drain
+  // always ends.  Says what is wrong and returns -1 for anything else.
+  private static long parseDrainMillis(String seconds) {
+	  try {
+	    double s = Double.parseDouble(seconds);
+	    if (s >= 0 && s <= MAX_DRAIN_SECONDS) return Math.round(s * 1000);
+	  } catch (NumberFormatException ignored) {}
+	  System.out.println("Invalid drain time: " + seconds + " (0 to " + MAX_DRAIN_SECONDS + " seconds, e.g. 5 or 0.5)");
+	  return -1;
+  }
+
+  // For log lines: a connection may no longer know its address once the socket is gone.
+  private static String addressOf(ClientConnection client) {
+	  InetAddress address = client.getInetAddress();
+	  return address == null ? "unknown" : address.getHostAddress();
+  }
+
+  private static Set<ClientConnection> identitySet(List<ClientConnection> connections) {
+	  Set<ClientConnection> set = Collections.newSetFromMap(new IdentityHashMap<ClientConnection, Boolean>(connections.size() * 2));
+	  set.addAll(connections);
+	  return set;
+  }
+
+  private static void reply(ClientConnection client, byte type, String text) {
+	  try { client.sendToClient(new ChatFrame(type, text)); } catch (IOException ignored) {}
+  }
   
   
   // === Exercise 2(b): echo server-operator messages to all clients ===
   public void handleMessageFromServerUI(String message) {
 	  String tagged = "SERVER MSG > " + message;
-	  System.out.println(tagged);
-	  sendToAllClients(tagged);
+	  log.info(tagged);
+	  broadcast(ChatFrame.SERVER_MSG, -1, tagged, 0, true);
   }
   
   // === Exercise 2(c): server-side commanfs ====
   public void handleServerCommand(String line) {
-	  
+
 	  String[] parts = line.trim().split("\\s+", 2);
 	  String cmd = parts[0].toLowerCase();
 	  String arg = (parts.length > 1) ? parts[1] : null;
-	  
-	  
+
+
 	  try {
-		  if (cmd.equals("#quit")) {
-			  System.out.println("Server quitting....");
-			  System.exit(0);
-			  
-		  } else if (cmd.equals("#stop")) {
-			  if (isListening()) {
-				  stopListening();
-				  System.out.println("Stopped listening for new clients");
-			  } else {
-				  System.out.println("Already stopped. ");
-			  }
-			  
-		  } else if (cmd.equals("#close")) {
-		      if (isListening()) stopListening();
-		      try {
-		        close(); // disconnect all existing clients
-		        System.out.println("Closed server and disconnected all clients.");
-		      } catch (IOException e) {
-		        System.out.println("Close failed: " + e.getMessage());
-		      }
-
-		    } else if (cmd.equals("#setport")) {
-		      if (arg == null) {
-		        System.out.println("Usage: #setport <port>");
-		      } else if (isListening() || getNumberOfClients() > 0) {
-		        System.out.println("Error: close the server before changing port.");
-		      } else {
-		        try {
-		          int p = Integer.parseInt(arg);
-		          setPort(p);
-		          System.out.println("Port set to: " + getPort());
-		        } catch (NumberFormatException e) {
-		          System.out.println("Invalid port: " + arg);
-		        }
-		      }
-
-		    } else if (cmd.equals("#start")) {
-		      if (!isListening()) {
-		        listen();
-		        System.out.println("Server listening for connections on port " + getPort());
-		      } else {
-		        System.out.println("Already listening.");
-		      }
-
-		    } else if (cmd.equals("#getport")) {
-		      System.out.println("Current port: " + getPort());
-
-		    } else {
-		      System.out.println("Unknown server command: " + cmd);
-		    }
-		  } catch (Exception e) {
-		    System.out.println("Server command error: " + e.getMessage());
-		  }
-		}
+	    ServerEngine engine = this.engine;
+	    if (cmd.equals("#quit") || cmd.equals("#close")) {
+	      // #close [seconds|now] [host:port]: clients get that long to catch up, then reconnect there
+	      long millis = DEFAULT_DRAIN_MILLIS;
+	      String host = "";
+	      int port = engine.getPort();
+	      for (String opt : arg == null ? new String[0] : arg.trim().split("\\s+")) {
+	        int colon = opt.lastIndexOf(':');
+	        if (opt.equals("now")) {
+	          millis = 0;
+	        } else if (colon >= 0) {
+	          try {
+	            host = opt.substring(0, colon);
+	            port = Integer.parseInt(opt.substring(colon + 1));
+	          } catch (NumberFormatException e) {
+	            System.out.println("Usage: " + cmd + " [seconds|now] [host:port]");
+	            return;
+	          }
+	        } else {
+	          millis = parseDrainMillis(opt);
+	          if (millis < 0) return;
+	        }
+	      }
+	      if (engine.isListening()) engine.stopListening();
+	      int cut = millis > 0 ? drain(host, port, millis) : 0;
+	      try {
+	        engine.close(); // disconnects anyone left
+	        System.out.println("Closed server and disconnected all clients."
+	            + (cut > 0 ? " " + cut + " were cut off before they left." : ""));
+	      } catch (IOException e) {
+	        System.out.println("Close failed: " + e.getMessage());
+	      }
+	      if (cmd.equals("#quit")) {
+	        System.out.println("Server quitting....");
+	        System.exit(0);
+	      }
+
+	    } else if (cmd.equals("#stop")) {
+	      if (engine.isListening()) {
+	        engine.stopListening();
+	        System.out.println("Stopped listening for new clients");
+	      } else {
+	        System.out.println("Already stopped. ");
+	      }
+
+	    } else if (cmd.equals("#setport")) {
+	      String[] opts = arg == null ? new String[0] : arg.trim().split("\\s+");
+	      if (opts.length == 0 || opts.length > 2) {
+	        System.out.println("Usage: #setport <port> [seconds]");
+	        return;
+	      }
+	      int p;
+	      try {
+	        p = Integer.parseInt(opts[0]);
+	      } catch (NumberFormatException e) {
+	        System.out.println("Invalid port: " + opts[0]);
+	        return;
+	      }
+	      long millis = opts.length > 1 ? parseDrainMillis(opts[1]) : DEFAULT_DRAIN_MILLIS;
+	      if (millis < 0) return;
+	      if (engine.isListening()) {
+	        // live: clients are drained to the new port
+	        try {
+	          moveTo(p, millis);
+	          System.out.println("Moved to port " + engine.getPort() + ".");
+	        } catch (IOException e) {
+	          System.out.println("Could not move to port " + p + ": " + e.getMessage() + ". Still on " + engine.getPort() + ".");
+	        }
+	      } else if (engine.getNumberOfClients() > 0) {
+	        System.out.println("Error: #start or #close the server before changing port.");
+	      } else {
+	        engine.setPort(p);
+	        System.out.println("Port set to: " + engine.getPort());
+	      }
+
+	    } else if (cmd.equals("#start")) {
+	      if (!engine.isListening()) {
+	        engine.listen();
+	        System.out.println("Server listening for connections on port " + engine.getPort());
+	      } else {
+	        System.out.println("Already listening.");
+	      }
+
+	    } else if (cmd.equals("#getport")) {
+	      System.out.println("Current port: " + engine.getPort());
+
+	    } else if (cmd.equals("#slowclients")) {
+	      int limit = 10;
+	      if (arg != null) {
+	        try {
+	          limit = Integer.parseInt(arg.trim());
+	        } catch (NumberFormatException e) {
+	          System.out.println("Usage: #slowclients [count]");
+	          return;
+	        }
+	      }
+	      printSlowClients(limit);
+
+	    } else if (cmd.equals("#stats")) {
+	      System.out.println(metrics.snapshot());
+	      System.out.println("  log       level=" + log.getLevel() + "  dropped=" + log.getDropped());
+
+	    } else if (cmd.equals("#ratelimit")) {
+	      if (arg != null) {
+	        String[] limit = arg.trim().split("\\s+");
+	        try {
+	          if (limit.length != 2) throw new IllegalArgumentException();
+	          setRateLimit(limit[0], limit[1]);
+	        } catch (IllegalArgumentException e) {
+	          System.out.println("Usage: #ratelimit [user|user-bytes|global|global-bytes <rate>[,<burst>]|off]"
+	              + " or #ratelimit disconnect <refusals>|off");
+	          return;
+	        }
+	      }
+	      System.out.println(limiter.describe());
+
+	    } else if (cmd.equals("#cluster")) {
+	      ClusterNode cluster = this.cluster;
+	      System.out.println(cluster == null ? "Not in a cluster; start with --cluster-port= and --peers=." : cluster.describe());
+
+	    } else if (cmd.equals("#who")) {
+	      System.out.println(presence.who(arg == null ? "" : arg.trim(), WHO_LIMIT));
+	      System.out.println("  " + presence.subscribers() + " clients subscribed to presence");
+
+	    } else if (cmd.equals("#filter")) {
+	      if (arg != null) {
+	        String what = arg.trim();
+	        try {
+	          if (what.equals("reload")) filter.reload();
+	          else setFilterRules(what.equals("off") ? null : Paths.get(what));
+	        } catch (IOException e) {
+	          System.out.println("Kept the old filter rules: " + e.getMessage());
+	          return;
+	        }
+	      }
+	      System.out.println(filter.describe());
+
+	    } else if (cmd.equals("#timeouts")) {
+	      if (arg != null) {
+	        String[] t = arg.trim().toLowerCase().split("\\s+");
+	        try {
+	          if (t.length != 2 || !(t[0].equals("login") || t[0].equals("idle"))) throw new IllegalArgumentException();
+	          long millis = t[1].equals("off") ? 0 : Long.parseLong(t[1]) * 1000;
+	          if (t[0].equals("login")) setTimeouts(millis, idleTimeoutMillis);
+	          else setTimeouts(loginTimeoutMillis, millis);
+	        } catch (IllegalArgumentException e) {
+	          System.out.println("Usage: #timeouts [login|idle <seconds>|off]");
+	          return;
+	        }
+	      }
+	      System.out.println(describeTimeouts());
+
+	    } else if (cmd.equals("#duplicatelogin")) {
+	      if (arg != null) {
+	        try {
+	          setDuplicateLogin(DuplicateLogin.parse(arg));
+	        } catch (IllegalArgumentException e) {
+	          System.out.println("Usage: #duplicatelogin [reject|kick]");
+	          return;
+	        }
+	      }
+	      System.out.println("Duplicate logins: " + duplicateLogin);
+
+	    } else if (cmd.equals("#loglevel")) {
+	      if (arg != null) {
+	        try {
+	          log.setLevel(ServerLog.Level.parse(arg));
+	        } catch (IllegalArgumentException e) {
+	          System.out.println("Usage: #loglevel [debug|info|warn|error|off]");
+	          return;
+	        }
+	      }
+	      System.out.println("Log level: " + log.getLevel());
+
+	    } else {
+	      System.out.println("Unknown server command: " + cmd);
+	    }
+	  } catch (Exception e) {
+	    System.out.println("Server command error: " + e.getMessage());
+	  }
+  }
 	 
   /**
    * This method overrides the one in the superclass.  Called
@@ -192,8 +1265,7 @@ public class EchoServer extends AbstractServer
   // === Lifecycle Hooks ====
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    log.info("Server listening for connections on port " + engine.getPort() + (tls != null ? " over TLS" : ""));
   }
   
   /**
@@ -202,8 +1274,7 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println
-      ("Server has stopped listening for connections.");
+    log.info("Server has stopped listening for connections.");
   }
   
   // Assignment 2 - Exercise 1.0
@@ -212,19 +1283,416 @@ public class EchoServer extends AbstractServer
 //whenever a new client successfully connects to the server.
   @Override
   protected void clientConnected(ConnectionToClient client) {
-    System.out.println(" [Server] Client connected: " + client.getInetAddress().getHostAddress());
+    clientConnected(link(client));
+  }
+
+  protected void clientConnected(ClientConnection client) {
+    log.info(" [Server] Client connected: " + addressOf(client));
+    Watch watch = new Watch(client);
+    client.setInfo(WATCH_KEY, watch);
+    long login = loginTimeoutMillis;
+    watch.after(login > 0 ? login : DEFAULT_LOGIN_TIMEOUT_MILLIS);
   }
 
 //This is automatically called when a CLIENT DISCONNECT EVENT occurs 
   // (either by closing its connection or because of a network problem).
   @Override
-  synchronized protected void clientDisconnected(ConnectionToClient client) {
-    System.out.println(" [Server] Client disconnected: " + client.getInetAddress().getHostAddress());
+  protected void clientDisconnected(ConnectionToClient client) {
+    OcsfConnection link = link(client);
+    link.discardOutbound();
+    clientDisconnected(link);
+  }
+
+  // OCSF reports a client that drops its socket here instead of through
+  // clientDisconnected, so treat it as a disconnect or its session would linger.  Logout is safe to
+  // repeat, so neither needs a lock.
+  @Override
+  protected void clientException(ConnectionToClient client, Throwable exception) {
+    clientDisconnected(client);
+  }
+
+  protected void clientDisconnected(ClientConnection client) {
+    Watch watch = (Watch) client.getInfo(WATCH_KEY);
+    if (watch != null) watch.cancel();
+    PendingLogin waiting = pending.remove(client);
+    if (waiting != null) waiting.settle(); // its password check finds the client gone
+    presence.unsubscribe(client);
+    Session session = client.getSession();
+    if (sessions.logout(client)) { // parks the session, channels and all, for a resume
+      presence.touch(session.getLoginId());
+      ClusterNode cluster = this.cluster;
+      if (cluster != null) cluster.userOff(session.getLoginId());
+    }
+    if (session != null) channels.leaveAll(session);
+    log.info(" [Server] Client disconnected: " + addressOf(client));
+  }
+
+  // === Engine plumbing ===
+
+  /**
+   * Sends a message to every client of the active engine.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToAllClients(Object msg) {
+    engine.sendToAllClients(msg);
+  }
+
+  /**
+   * Returns the server's metrics.
+   */
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the server's event log.
+   */
+  ServerLog getLog() {
+    return log;
+  }
+
+  /**
+   * Keeps every message sent to everyone in a log that #history reads.
+   *
+   * @param history The log, or null to stop keeping history.
+   */
+  void setHistory(MessageLog history) {
+    synchronized (recent) {
+      this.history = history;
+      if (history != null) recent.continueFrom(history.nextOffset());
+    }
+  }
+
+  MessageLog getHistory() {
+    return history;
+  }
+
+  /**
+   * Sets one rate limit, as #ratelimit and the --ratelimit- options do.
+   *
+   * @param scope user, user-bytes, global, global-bytes or disconnect.
+   * @param spec "RATE[,BURST]" per second, a refusal count for disconnect,
+   *   or "off".
+   * @throws IllegalArgumentException for an unknown scope or a bad spec.
+   */
+  void setRateLimit(String scope, String spec) {
+    spec = spec.trim().toLowerCase();
+    if (scope.equals("disconnect")) {
+      limiter.setDisconnectAfter(spec.equals("off") ? 0 : Integer.parseInt(spec));
+      return;
+    }
+    TokenBucket.Limit limit = spec.equals("off") ? null : TokenBucket.Limit.parse(spec);
+    if (scope.equals("user")) limiter.setUserMessages(limit);
+    else if (scope.equals("user-bytes")) limiter.setUserBytes(limit);
+    else if (scope.equals("global")) limiter.setGlobalMessages(limit);
+    else if (scope.equals("global-bytes")) limiter.setGlobalBytes(limit);
+    else throw new IllegalArgumentException("Unknown rate limit: " + scope);
+  }
+
+  /**
+   * Joins a cluster: broadcasts that start here go to its other nodes,
+   * and login ids must be unique across it.
+   */
+  void setCluster(ClusterNode cluster) {
+    this.cluster = cluster;
+  }
+
+  ClusterNode getCluster() {
+    return cluster;
+  }
+
+  /**
+   * Accepts clients over TLS from the next listen on, or over plain
+   * sockets again if null.  Only the threads and virtual engines can:
+   * OCSF opens its sockets inside AbstractServer, and the NIO engine
+   * writes one shared buffer to every client, which encryption rules out.
+   *
+   * @throws IllegalStateException if this server's engine cannot.
+   */
+  void setTls(SSLContext tls) {
+    if (tls != null && !(engine instanceof ThreadedServerEngine)) {
+      throw new IllegalStateException("TLS needs --engine=threads or virtual");
+    }
+    this.tls = tls;
+  }
+
+  SSLContext getTls() {
+    return tls;
+  }
+
+  /**
+   * Checks passwords at #login from now on, or lets any id in again if
+   * null.  Clients already logged in stay logged in.
+   *
+   * @see PasswordFile
+   */
+  public void setAuthenticator(Authenticator authenticator) {
+    this.authenticator = authenticator;
+    verified.clear();
+  }
+
+  Authenticator getAuthenticator() {
+    return authenticator;
+  }
+
+  /**
+   * Filters chat lines and private messages with the rules in a file
+   * from now on (see FilterRules for the format), or with none if null.
+   * The file is read again whenever it changes.
+   *
+   * @throws IOException if it cannot be read or has a bad rule; the
+   *   rules in force are kept.
+   */
+  public void setFilterRules(Path file) throws IOException {
+    filter.setRuleFile(file);
+  }
+
+  /**
+   * Adds a stage to the message filter, run after the rule file's.
+   */
+  public void addMessageStage(MessageStage stage) {
+    filter.add(stage);
+  }
+
+  /**
+   * Sets what happens when an id that is logged in here logs in again.
+   * An id logged in on another cluster node is always turned away.
+   */
+  void setDuplicateLogin(DuplicateLogin policy) {
+    this.duplicateLogin = policy;
+  }
+
+  DuplicateLogin getDuplicateLogin() {
+    return duplicateLogin;
+  }
+
+  /**
+   * Sets how long a client has to log in, and how long one that pings
+   * may stay silent, before it is disconnected; 0 for no limit.
+   */
+  void setTimeouts(long loginMillis, long idleMillis) {
+    this.loginTimeoutMillis = Math.max(0, loginMillis);
+    this.idleTimeoutMillis = Math.max(0, idleMillis);
+  }
+
+  // "login 30s, idle 90s" or "off" for either.
+  private String describeTimeouts() {
+    return "Timeouts: login " + (loginTimeoutMillis > 0 ? loginTimeoutMillis / 1000 + "s" : "off")
+      + ", idle " + (idleTimeoutMillis > 0 ? idleTimeoutMillis / 1000 + "s" : "off")
+      + " (" + reaper.pending() + " connections watched)";
+  }
+
+  /**
+   * Returns the engine this server runs on.
+   */
+  public ServerEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * Sets the per-client outbound queue limit.  Applies to clients that
+   * connect afterwards.
+   *
+   * @param capacity Messages a client may have waiting.
+   * @param policy What to do when that many are already waiting.
+   */
+  void setOutboundLimit(int capacity, OutboundQueue.Overflow policy) {
+    this.outboundCapacity = capacity;
+    this.overflowPolicy = policy;
+  }
+
+  int getOutboundCapacity() {
+    return outboundCapacity;
+  }
+
+  OutboundQueue.Overflow getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets the smallest frame sent compressed to binary clients that ask
+   * for compression.  Applies to clients that ask afterwards.
+   *
+   * @param bytes The threshold, or 0 to never compress.
+   */
+  void setCompressThreshold(int bytes) {
+    this.compressThreshold = Math.max(0, bytes);
+  }
+
+  int getCompressThreshold() {
+    return compressThreshold;
+  }
+
+  // Lists the clients with the deepest outbound queues, then the most drops.
+  private void printSlowClients(int limit) {
+    List<ClientConnection> clients = engine.getClientConnections();
+    clients.sort((a, b) -> {
+      int byDepth = Integer.compare(b.getOutboundDepth(), a.getOutboundDepth());
+      return byDepth != 0 ? byDepth : Long.compare(b.getDroppedMessages(), a.getDroppedMessages());
+    });
+    System.out.println("Outbound queues (limit " + outboundCapacity + ", overflow " + overflowPolicy + "):");
+    int shown = 0;
+    for (ClientConnection c : clients) {
+      if (shown == limit) break;
+      if (c.getOutboundDepth() == 0 && c.getDroppedMessages() == 0) break;
+      Session id = c.getSession();
+      System.out.println("  " + (id == null ? "(not logged in) " + addressOf(c) : id)
+        + "  depth=" + c.getOutboundDepth() + "  dropped=" + c.getDroppedMessages());
+      shown++;
+    }
+    if (shown == 0) System.out.println("  No client has queued or dropped messages.");
+  }
+
+  // Returns the client's one adapter, made by whichever of clientConnected or a message
+  // reaches it first; two would mean two writers on one ObjectOutputStream.
+  private OcsfConnection link(ConnectionToClient client) {
+    synchronized (client) {
+      OcsfConnection link = (OcsfConnection) client.getInfo(LINK_KEY);
+      if (link == null) {
+        link = new OcsfConnection(client, outboundCapacity, overflowPolicy);
+        client.setInfo(LINK_KEY, link);
+      }
+      return link;
+    }
+  }
+
+  /**
+   * The OCSF transport: delegates straight to AbstractServer.
+   */
+  private class OcsfEngine implements ServerEngine {
+    public void listen() throws IOException { EchoServer.this.listen(); }
+    public void stopListening() { EchoServer.this.stopListening(); }
+    public void moveTo(int port) { throw new UnsupportedOperationException("OCSF keeps its socket until closed"); }
+    public void close() throws IOException { EchoServer.this.close(); }
+    public boolean isListening() { return EchoServer.this.isListening(); }
+    public int getPort() { return EchoServer.this.getPort(); }
+    public void setPort(int port) { EchoServer.this.setPort(port); }
+    public int getNumberOfClients() { return EchoServer.this.getNumberOfClients(); }
+
+    public List<ClientConnection> getClientConnections() {
+      List<ClientConnection> links = new ArrayList<ClientConnection>();
+      for (Thread t : EchoServer.this.getClientConnections()) {
+        if (t instanceof ConnectionToClient) links.add(link((ConnectionToClient) t));
+      }
+      return links;
+    }
+
+    // Goes through each client's outbound queue rather than AbstractServer's synchronous loop.
+    public void sendToAllClients(Object msg) {
+      sendToClients(getClientConnections(), msg);
+    }
+
+    // Each client's ConnectionToClient serializes the message again: OCSF keeps its ObjectOutputStream
+    // private, so the encode-once fan-out of the other engines cannot reach it.
+    public void sendToClients(Iterable<? extends ClientConnection> recipients, Object msg) {
+      for (ClientConnection c : recipients) {
+        try { c.sendToClient(msg); } catch (IOException ignored) {}
+      }
+    }
   }
 
  
   
   
+  /**
+   * What happens when a client logs in with an id that is already logged
+   * in on this server.
+   */
+  enum DuplicateLogin {
+    /** Turn the new client away, as the server always has. */
+    REJECT,
+    /** Let the new client in and disconnect the old one. */
+    KICK;
+
+    /**
+     * Parses the command-line spelling, e.g. "kick".
+     *
+     * @throws IllegalArgumentException for an unknown name.
+     */
+    static DuplicateLogin parse(String name) {
+      return valueOf(name.trim().toUpperCase());
+    }
+
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * A connection's place on the reaper's wheel.  Fires at the next
+   * deadline and reschedules itself until cancelled.
+   */
+  private final class Watch implements Runnable {
+    final ClientConnection client;
+    final long connectedAt = System.nanoTime();
+    private TimerWheel.Timeout timeout;   // guarded by this
+    private boolean cancelled = false;    // guarded by this
+
+    Watch(ClientConnection client) {
+      this.client = client;
+    }
+
+    synchronized void after(long millis) {
+      if (!cancelled) timeout = reaper.schedule(this, millis);
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (timeout != null) reaper.cancel(timeout);
+    }
+
+    public void run() {
+      check(this);
+    }
+  }
+
+  /**
+   * A login waiting for its password check, and what its client sent
+   * meanwhile.  Settled once, by the check or by the client leaving.
+   */
+  private static final class PendingLogin {
+    final List<Object> held = new ArrayList<Object>();
+    boolean overflowed = false;
+    volatile boolean settled = false;
+
+    // Keeps msg for after the login, or returns false once it is settled and msg can be handled now.
+    synchronized boolean hold(Object msg) {
+      if (settled) return false;
+      if (held.size() < MAX_HELD_BEFORE_LOGIN) held.add(msg);
+      else overflowed = true;
+      return true;
+    }
+
+    // Returns false if it was settled already.
+    synchronized boolean settle() {
+      if (settled) return false;
+      settled = true;
+      return true;
+    }
+  }
+
+  /**
+   * A numbered broadcast waiting in the outbox, with who it goes to and
+   * the history log it belongs in, both as they were when it was numbered.
+   */
+  private static final class Outgoing {
+    final ChatFrame frame;
+    final SessionRegistry.Snapshot recipients;
+    final MessageLog history;
+    final boolean relay;
+    final long receivedAt;
+
+    Outgoing(ChatFrame frame, SessionRegistry.Snapshot recipients, MessageLog history, boolean relay, long receivedAt) {
+      this.frame = frame;
+      this.recipients = recipients;
+      this.history = history;
+      this.relay = relay;
+      this.receivedAt = receivedAt;
+    }
+  }
+  
   //Class methods ***************************************************
   
   /**
@@ -233,28 +1701,297 @@ public class EchoServer extends AbstractServer
    *
    * @param args[0] The port number to listen on.  Defaults to 5555 
    *          if no argument is entered.
+   *        --engine=ocsf|nio|virtual|threads picks the transport (default ocsf);
+   *          virtual needs Java 21 or later.
+   *        --loops=N sets the NIO event loop count.
+   *        --queue=N sets how many messages each client may have queued.
+   *        --overflow=drop-oldest|drop-newest|disconnect picks what happens
+   *          when a client's queue is full (default drop-oldest).
+   *        --compress=N|off compresses frames of N bytes or more for binary
+   *          clients that ask for it (default 1024).
+   *        --log-level=debug|info|warn|error|off sets which events are logged
+   *          (default info; #loglevel changes it while running).
+   *        --log-file=PATH appends the log to a file instead of the console.
+   *        --history=DIR|off keeps messages sent to everyone in DIR for
+   *          #history (default off).
+   *        --history-retain-mb=N and --history-retain-hours=N bound how much
+   *          history is kept (default 1024 MB and 168 hours).
+   *        --ratelimit-user=RATE[,BURST], --ratelimit-user-bytes=...,
+   *          --ratelimit-global=... and --ratelimit-global-bytes=... limit
+   *          messages or bytes per second, per user or for the whole server,
+   *          or turn the limit off (default 20,60 and 65536,262144 per user,
+   *          none global).  --ratelimit-disconnect=N disconnects a client
+   *          refused more than N times in 10 seconds (default off).
+   *          #ratelimit shows or changes them while running.
+   *        --cluster-port=N accepts links from other nodes on port N, and
+   *          --peers=HOST:PORT,... links to the nodes at those cluster ports;
+   *          broadcasts then reach every node's clients and login ids are
+   *          unique across them.  Every node should list or be listed by
+   *          every other.  --node-id=NAME names this node (default
+   *          host:port); it must differ from every peer's.  #cluster shows
+   *          the links.  --cluster-bind=ADDR listens for peers on ADDR
+   *          (default loopback, for nodes on one host); any other address
+   *          needs --cluster-secret=SECRET, which every node must share
+   *          (default: the SIMPLECHAT_CLUSTER_SECRET environment variable).
+   *          Peers are trusted with every user's messages and logins, so
+   *          keep the cluster port away from anyone else (see ClusterNode).
+   *        --tls-keystore=FILE accepts clients over TLS only, with the key
+   *          and certificate in the PKCS12 file FILE (see Tls for making a
+   *          self-signed one); threads and virtual engines only.
+   *          --tls-password=PASS opens it (default: the
+   *          SIMPLECHAT_TLS_PASSWORD environment variable, which keeps it
+   *          out of the process list).
+   *        --passwords=FILE makes clients give a password at #login, checked
+   *          against FILE (see PasswordFile for adding users); without it
+   *          any id gets in.
+   *        --duplicate-login=reject|kick picks what happens when an id that
+   *          is logged in logs in again: the new client is turned away
+   *          (default) or the old one is disconnected.  #duplicatelogin
+   *          changes it while running.
+   *        --login-timeout=S|off disconnects a client that has not logged
+   *          in S seconds after connecting (default 30).
+   *        --idle-timeout=S|off disconnects a client that pings but has
+   *          sent nothing for S seconds, e.g. a laptop gone to sleep
+   *          (default 90).  Clients ping every third of it.  #timeouts
+   *          shows or changes both while running.
+   *        --filter=FILE masks words, redacts links, caps lengths and
+   *          blocks messages by the rules in FILE (see FilterRules), read
+   *          again when it changes.  #filter shows each rule's timings;
+   *          #filter reload|off|FILE changes the rules while running.
+   * The metrics behind #stats are also registered over JMX as
+   * edu.seg2105:type=ServerMetrics; attach jconsole, or start the JVM with
+   * -Dcom.sun.management.jmxremote.port=N to scrape them remotely.
    */
   // === Main Method ===
   public static void main(String[] args) 
   {
-    int port;
+    int port = DEFAULT_PORT;
+    String engineName = ENGINE_OCSF;
+    int loops = NioServerEngine.DEFAULT_EVENT_LOOPS;
+    int queue = OutboundQueue.DEFAULT_CAPACITY;
+    OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+    int compress = DEFAULT_COMPRESS_THRESHOLD;
+    ServerLog.Level logLevel = ServerLog.Level.INFO;
+    String logFile = null;
+    String historyDir = "off";
+    long retainMb = 1024;
+    long retainHours = 168;
+    Map<String, String> rateLimits = new LinkedHashMap<String, String>();
+    rateLimits.put("user", DEFAULT_USER_RATE);
+    rateLimits.put("user-bytes", DEFAULT_USER_BYTE_RATE);
+    int clusterPort = -1;
+    String peers = null;
+    String nodeId = null;
+    String clusterBind = null;
+    String clusterSecret = System.getenv("SIMPLECHAT_CLUSTER_SECRET");
+    String tlsKeyStore = null;
+    String tlsPassword = System.getenv("SIMPLECHAT_TLS_PASSWORD");
+    String passwords = null;
+    String filterRules = null;
+    DuplicateLogin duplicates = DuplicateLogin.REJECT;
+    long loginTimeout = DEFAULT_LOGIN_TIMEOUT_MILLIS;
+    long idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
     
+    for (String arg : args) {
+    	if (arg.startsWith("--engine=")) {
+    		engineName = arg.substring("--engine=".length()).toLowerCase();
+    	} else if (arg.startsWith("--loops=")) {
+    		try {
+    			loops = Integer.parseInt(arg.substring("--loops=".length()));
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid loop count " + arg + ". Using default: " + loops);
+    		}
+    	} else if (arg.startsWith("--queue=")) {
+    		try {
+    			queue = Integer.parseInt(arg.substring("--queue=".length()));
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid queue size " + arg + ". Using default: " + queue);
+    		}
+    	} else if (arg.startsWith("--overflow=")) {
+    		try {
+    			overflow = OutboundQueue.Overflow.parse(arg.substring("--overflow=".length()));
+    		} catch (IllegalArgumentException e) {
+    			System.out.println("Invalid overflow policy " + arg + ". Using default: " + overflow);
+    		}
+    	} else if (arg.startsWith("--compress=")) {
+    		String value = arg.substring("--compress=".length());
+    		try {
+    			compress = value.equalsIgnoreCase("off") ? 0 : Integer.parseInt(value);
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid compression threshold " + arg + ". Using default: " + compress);
+    		}
+    	} else if (arg.startsWith("--log-level=")) {
+    		try {
+    			logLevel = ServerLog.Level.parse(arg.substring("--log-level=".length()));
+    		} catch (IllegalArgumentException e) {
+    			System.out.println("Invalid log level " + arg + ". Using default: " + logLevel);
+    		}
+    	} else if (arg.startsWith("--log-file=")) {
+    		logFile = arg.substring("--log-file=".length());
+    	} else if (arg.startsWith("--history=")) {
+    		historyDir = arg.substring("--history=".length());
+    	} else if (arg.startsWith("--history-retain-mb=")) {
+    		try {
+    			retainMb = Long.parseLong(arg.substring("--history-retain-mb=".length()));
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid history size " + arg + ". Using default: " + retainMb);
+    		}
+    	} else if (arg.startsWith("--history-retain-hours=")) {
+    		try {
+    			retainHours = Long.parseLong(arg.substring("--history-retain-hours=".length()));
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid history age " + arg + ". Using default: " + retainHours);
+    		}
+    	} else if (arg.startsWith("--cluster-port=")) {
+    		try {
+    			clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()));
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid cluster port " + arg + ". Not accepting peer links.");
+    		}
+    	} else if (arg.startsWith("--peers=")) {
+    		peers = arg.substring("--peers=".length());
+    	} else if (arg.startsWith("--node-id=")) {
+    		nodeId = arg.substring("--node-id=".length()).trim();
+    	} else if (arg.startsWith("--cluster-bind=")) {
+    		clusterBind = arg.substring("--cluster-bind=".length()).trim();
+    	} else if (arg.startsWith("--cluster-secret=")) {
+    		clusterSecret = arg.substring("--cluster-secret=".length());
+    	} else if (arg.startsWith("--tls-keystore=")) {
+    		tlsKeyStore = arg.substring("--tls-keystore=".length());
+    	} else if (arg.startsWith("--tls-password=")) {
+    		tlsPassword = arg.substring("--tls-password=".length());
+    	} else if (arg.startsWith("--passwords=")) {
+    		passwords = arg.substring("--passwords=".length());
+    	} else if (arg.startsWith("--filter=")) {
+    		filterRules = arg.substring("--filter=".length());
+    	} else if (arg.startsWith("--duplicate-login=")) {
+    		try {
+    			duplicates = DuplicateLogin.parse(arg.substring("--duplicate-login=".length()));
+    		} catch (IllegalArgumentException e) {
+    			System.out.println("Invalid duplicate login policy " + arg + ". Using default: " + duplicates);
+    		}
+    	} else if (arg.startsWith("--login-timeout=") || arg.startsWith("--idle-timeout=")) {
+    		String value = arg.substring(arg.indexOf('=') + 1);
+    		try {
+    			long millis = value.equalsIgnoreCase("off") ? 0 : Long.parseLong(value) * 1000;
+    			if (arg.startsWith("--login-")) loginTimeout = millis;
+    			else idleTimeout = millis;
+    		} catch (NumberFormatException e) {
+    			System.out.println("Invalid timeout " + arg + ". Using the default.");
+    		}
+    	} else if (arg.startsWith("--ratelimit-") && arg.contains("=")) {
+    		String scope = arg.substring("--ratelimit-".length(), arg.indexOf('='));
+    		rateLimits.put(scope, arg.substring(arg.indexOf('=') + 1));
+    	} else {
+    		try {
+    			port = Integer.parseInt(arg);
+    		} catch (NumberFormatException e) {
+    			port = DEFAULT_PORT;
+    		}
+    	}
+    }
     
+    EchoServer sv;
     try {
-    	
-    		port = Integer.parseInt(args[0]);
-    } catch (Throwable t ) {
-    		port = DEFAULT_PORT;
+    		sv = new EchoServer(port, engineName, loops);
+    } catch (IllegalArgumentException e) {
+    		System.out.println("ERROR - " + e.getMessage() + ". Use --engine=ocsf, nio, virtual or threads.");
+    		return;
+    } catch (UnsupportedOperationException e) {
+    		System.out.println("ERROR - " + e.getMessage() + ". Run it on Java 21 or use --engine=threads.");
+    		return;
+    }
+    if (tlsKeyStore != null) {
+    	try {
+    		sv.setTls(Tls.forServer(Paths.get(tlsKeyStore), tlsPassword == null ? new char[0] : tlsPassword.toCharArray()));
+    	} catch (IOException | GeneralSecurityException | IllegalStateException e) {
+    		System.out.println("ERROR - Could not set up TLS from " + tlsKeyStore + ": " + e.getMessage() + ".");
+    		return;
+    	}
+    }
+    if (passwords != null) {
+    	if (!Files.exists(Paths.get(passwords))) {
+    		System.out.println("Password file " + passwords + " does not exist yet; nobody can log in until it does.");
+    	}
+    	sv.setAuthenticator(new PasswordFile(Paths.get(passwords)));
+    }
+    if (filterRules != null) {
+    	try {
+    		sv.setFilterRules(Paths.get(filterRules));
+    	} catch (IOException e) {
+    		System.out.println("ERROR - Could not load filter rules: " + e.getMessage() + ".");
+    		return;
+    	}
+    }
+    sv.setDuplicateLogin(duplicates);
+    sv.setTimeouts(loginTimeout, idleTimeout);
+    sv.setOutboundLimit(queue, overflow);
+    sv.setCompressThreshold(compress);
+    for (Map.Entry<String, String> limit : rateLimits.entrySet()) {
+    	try {
+    		sv.setRateLimit(limit.getKey(), limit.getValue());
+    	} catch (IllegalArgumentException e) {
+    		System.out.println("Invalid rate limit --ratelimit-" + limit.getKey() + "=" + limit.getValue() + ". That limit is off.");
+    	}
+    }
+    sv.getLog().setLevel(logLevel);
+    if (logFile != null) {
+    	try {
+    		sv.getLog().logToFile(logFile);
+    	} catch (IOException e) {
+    		System.out.println("Could not open log file " + logFile + ": " + e.getMessage() + ". Logging to the console.");
+    	}
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(sv.getLog()::close, "server-log-flush"));
+    if (!historyDir.equals("off")) {
+    	try {
+    		MessageLog history = MessageLog.open(Paths.get(historyDir),
+    			retainMb * 1024 * 1024, retainHours * 60 * 60 * 1000);
+    		sv.setHistory(history);
+    		Runtime.getRuntime().addShutdownHook(new Thread(history::close, "history-flush"));
+    	} catch (IOException e) {
+    		System.out.println("Could not open history in " + historyDir + ": " + e.getMessage() + ". Running without history.");
+    	}
+    }
+    if (clusterPort >= 0 || peers != null) {
+    	if (nodeId == null || nodeId.isEmpty()) {
+    		try {
+    			nodeId = InetAddress.getLocalHost().getHostName() + ":" + port;
+    		} catch (IOException e) {
+    			nodeId = "localhost:" + port;
+    		}
+    	}
+    	ClusterNode cluster = new ClusterNode(sv, nodeId, clusterSecret);
+    	sv.setCluster(cluster);
+    	if (clusterPort >= 0) {
+    		try {
+    			cluster.listen(clusterBind == null ? null : InetAddress.getByName(clusterBind), clusterPort);
+    		} catch (IOException e) {
+    			System.out.println("Could not accept peer links on port " + clusterPort + ": " + e.getMessage());
+    		}
+    	}
+    	if (peers != null) {
+    		for (String peer : peers.split(",")) {
+    			int colon = peer.lastIndexOf(':');
+    			try {
+    				cluster.addPeer(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim()));
+    			} catch (RuntimeException e) {
+    				System.out.println("Invalid peer " + peer + ". Use HOST:PORT.");
+    			}
+    		}
+    	}
+    }
+    try {
+    		sv.getMetrics().register();
+    } catch (JMException e) {
+    		System.out.println("Could not register metrics over JMX: " + e.getMessage());
     }
-    
-    
-    EchoServer sv = new EchoServer(port);
     
     
     try {
-    		sv.listen();
+    		sv.getEngine().listen();
     		
-    		System.out.println("Server listening for connections on port " + sv.getPort());
+    		System.out.println("Server listening for connections on port " + sv.getEngine().getPort());
     } catch (Exception ex) {
     		System.out.println("ERROR - Could not listen for clients! You can use #setport then use #stat.");
     		
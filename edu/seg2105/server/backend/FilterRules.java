@@ -0,0 +1,188 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiles a rule file for the message filter into stages, one rule per
+ * line:
+ * <pre>
+ *   maxlength 500                      # longer messages are cut to 500 characters
+ *   mask darn heck                     # these words become ****
+ *   block spamcoin                     # messages with these words are refused
+ *   redact https?://\S+ => [link]      # matches are replaced ("[redacted]" if no =>)
+ *   deny (?i)buy\s+now                 # messages that match are refused
+ * </pre>
+ * Blank lines and lines starting with '#' are skipped.  Words match
+ * whole words in any case; patterns are java.util.regex.
+ *
+ * <p>The length cap runs first, so no later stage scans more than it
+ * allows.  Every mask and block word, from every line, goes into one
+ * KeywordMatcher, so a thousand words cost one pass over the message.
+ * Each redact and deny line is then its own stage, in file order, its
+ * pattern compiled once here.
+ */
+class FilterRules
+{
+  //Class variables *************************************************
+
+  /**
+   * What a redact line without "=>" puts in place of each match.
+   */
+  static final String DEFAULT_REDACTION = "[redacted]";
+
+  //Class methods ***************************************************
+
+  /**
+   * Reads and compiles a rule file.
+   *
+   * @throws IOException if it cannot be read, or a line is not a rule;
+   *   the message names the line.
+   */
+  static List<MessageStage> compile(Path file) throws IOException
+  {
+    return compile(Files.readAllLines(file, StandardCharsets.UTF_8), file.toString());
+  }
+
+  /**
+   * Compiles rules already read.
+   *
+   * @param source Where they came from, for error messages.
+   */
+  static List<MessageStage> compile(List<String> lines, String source) throws IOException
+  {
+    int maxLength = 0;
+    List<String> mask = new ArrayList<String>();
+    List<String> block = new ArrayList<String>();
+    List<MessageStage> patterns = new ArrayList<MessageStage>();
+    int lineNumber = 0;
+    for (String line : lines)
+    {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] rule = line.split("\\s+", 2);
+      String rest = rule.length > 1 ? rule[1].trim() : "";
+      try
+      {
+        switch (rule[0])
+        {
+          case "maxlength":
+            maxLength = Integer.parseInt(rest);
+            if (maxLength < 1) throw new IllegalArgumentException("maxlength must be at least 1");
+            break;
+          case "mask":
+          case "block":
+            if (rest.isEmpty()) throw new IllegalArgumentException(rule[0] + " needs at least one word");
+            (rule[0].equals("mask") ? mask : block).addAll(Arrays.asList(rest.split("\\s+")));
+            break;
+          case "redact":
+            int arrow = rest.lastIndexOf(" => ");
+            String regex = arrow < 0 ? rest : rest.substring(0, arrow).trim();
+            String replacement = arrow < 0 ? DEFAULT_REDACTION : rest.substring(arrow + 4).trim();
+            patterns.add(new PatternRule("redact", regex, Matcher.quoteReplacement(replacement)));
+            break;
+          case "deny":
+            patterns.add(new PatternRule("deny", rest, null));
+            break;
+          default:
+            throw new IllegalArgumentException("unknown rule " + rule[0]);
+        }
+      }
+      catch (PatternSyntaxException e)
+      {
+        throw new IOException(source + " line " + lineNumber + ": bad pattern: " + e.getDescription());
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IOException(source + " line " + lineNumber + ": " + (e instanceof NumberFormatException
+          ? "maxlength needs a number" : e.getMessage()));
+      }
+    }
+
+    List<MessageStage> stages = new ArrayList<MessageStage>();
+    if (maxLength > 0) stages.add(new LengthCap(maxLength));
+    if (!mask.isEmpty() || !block.isEmpty()) stages.add(new Keywords(new KeywordMatcher(mask, block)));
+    stages.addAll(patterns);
+    return stages;
+  }
+
+  //Inner classes ***************************************************
+
+  private static final class LengthCap implements MessageStage
+  {
+    private final int max;
+
+    LengthCap(int max)
+    {
+      this.max = max;
+    }
+
+    public String name()
+    {
+      return "maxlength " + max;
+    }
+
+    public String apply(Session sender, String text)
+    {
+      if (text.length() <= max) return text;
+      int end = Character.isHighSurrogate(text.charAt(max - 1)) ? max - 1 : max; // not half a character
+      return text.substring(0, end);
+    }
+  }
+
+  private static final class Keywords implements MessageStage
+  {
+    private final KeywordMatcher matcher;
+
+    Keywords(KeywordMatcher matcher)
+    {
+      this.matcher = matcher;
+    }
+
+    public String name()
+    {
+      return "keywords (" + matcher.size() + (matcher.size() == 1 ? " word, " : " words, ") + matcher.states() + " states)";
+    }
+
+    public String apply(Session sender, String text)
+    {
+      return matcher.apply(text);
+    }
+  }
+
+  private static final class PatternRule implements MessageStage
+  {
+    private final String kind;
+    private final Pattern pattern;
+    private final String replacement;   // null to deny
+
+    PatternRule(String kind, String regex, String replacement)
+    {
+      if (regex.isEmpty()) throw new IllegalArgumentException(kind + " needs a pattern");
+      this.kind = kind;
+      this.pattern = Pattern.compile(regex);
+      this.replacement = replacement;
+    }
+
+    public String name()
+    {
+      return kind + " " + pattern.pattern();
+    }
+
+    public String apply(Session sender, String text)
+    {
+      Matcher m = pattern.matcher(text);
+      if (!m.find()) return text;
+      return replacement == null ? null : m.replaceAll(replacement);
+    }
+  }
+}
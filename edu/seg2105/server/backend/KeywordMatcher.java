@@ -0,0 +1,200 @@
+package edu.seg2105.server.backend;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds any of a set of words in a message in one pass, however many
+ * words there are: an Aho-Corasick automaton compiled into a table with
+ * one row per state and one column per character the words use, so each
+ * character of the message is one array lookup.  Matching ignores case
+ * and counts only whole words, so "class" does not match "ass".
+ *
+ * <p>Each word either masks (its letters become '*') or blocks the whole
+ * message.  A matcher is immutable once built and safe to share.
+ */
+class KeywordMatcher
+{
+  //Class variables *************************************************
+
+  /**
+   * Column of every character no word uses.
+   */
+  private static final int OTHER = 0;
+
+  //Instance variables **********************************************
+
+  private final char[] columns;      // character to column, 0 for OTHER
+  private final int width;
+  private final int[] delta;         // state * width + column to next state
+  private final int[][] lengths;     // per state, the lengths of the words ending there; null for none
+  private final boolean[][] blocks;  // alongside lengths, whether each of those words blocks
+  private final int words;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param mask Words whose letters are starred out.
+   * @param block Words that block the message.  A word in both blocks.
+   */
+  KeywordMatcher(List<String> mask, List<String> block)
+  {
+    List<String> all = new ArrayList<String>();
+    List<Boolean> blocking = new ArrayList<Boolean>();
+    for (String w : mask) { all.add(w); blocking.add(false); }
+    for (String w : block) { all.add(w); blocking.add(true); }
+
+    // one column per distinct character, upper and lower case sharing it
+    columns = new char[Character.MAX_VALUE + 1];
+    int next = 1;
+    for (String w : all)
+    {
+      for (char c : w.toCharArray())
+      {
+        char lower = Character.toLowerCase(c);
+        if (columns[lower] == 0) columns[lower] = (char) next++;
+        columns[Character.toUpperCase(c)] = columns[lower];
+        columns[Character.toTitleCase(c)] = columns[lower];
+        columns[c] = columns[lower];
+      }
+    }
+    width = next;
+
+    // the trie
+    List<int[]> edges = new ArrayList<int[]>();
+    List<List<Integer>> ends = new ArrayList<List<Integer>>();
+    edges.add(new int[width]);
+    ends.add(null);
+    int counted = 0;
+    for (int i = 0; i < all.size(); i++)
+    {
+      String w = all.get(i);
+      if (w.isEmpty()) continue;
+      int state = 0;
+      for (char c : w.toCharArray())
+      {
+        int col = columns[c];
+        if (edges.get(state)[col] == 0)
+        {
+          edges.get(state)[col] = edges.size();
+          edges.add(new int[width]);
+          ends.add(null);
+        }
+        state = edges.get(state)[col];
+      }
+      if (ends.get(state) == null) ends.set(state, new ArrayList<Integer>());
+      ends.get(state).add(blocking.get(i) ? -w.length() : w.length());
+      counted++;
+    }
+    words = counted;
+
+    // failure links, breadth first, turning the trie into a full transition table
+    int states = edges.size();
+    delta = new int[states * width];
+    int[] fail = new int[states];
+    lengths = new int[states][];
+    blocks = new boolean[states][];
+    ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    for (int col = 0; col < width; col++)
+    {
+      int child = edges.get(0)[col];
+      delta[col] = child;
+      if (child != 0) queue.add(child);
+    }
+    int[][] output = new int[states][];
+    output[0] = new int[0];
+    while (!queue.isEmpty())
+    {
+      int state = queue.poll();
+      output[state] = merge(ends.get(state), output[fail[state]]);
+      for (int col = 0; col < width; col++)
+      {
+        int child = edges.get(state)[col];
+        if (child != 0)
+        {
+          fail[child] = delta[fail[state] * width + col];
+          delta[state * width + col] = child;
+          queue.add(child);
+        }
+        else
+        {
+          delta[state * width + col] = delta[fail[state] * width + col];
+        }
+      }
+    }
+    for (int s = 0; s < states; s++)
+    {
+      if (output[s] == null || output[s].length == 0) continue;
+      lengths[s] = new int[output[s].length];
+      blocks[s] = new boolean[output[s].length];
+      for (int i = 0; i < output[s].length; i++)
+      {
+        lengths[s][i] = Math.abs(output[s][i]);
+        blocks[s][i] = output[s][i] < 0;
+      }
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns the text with masked words starred out, the same String if
+   * nothing matched, or null if a blocking word is in it.
+   */
+  String apply(String text)
+  {
+    if (words == 0) return text;
+    char[] masked = null;
+    int state = 0;
+    int n = text.length();
+    for (int i = 0; i < n; i++)
+    {
+      state = delta[state * width + columns[text.charAt(i)]];
+      int[] found = lengths[state];
+      if (found == null) continue;
+      if (i + 1 < n && isWordChar(text.charAt(i + 1))) continue;
+      for (int k = 0; k < found.length; k++)
+      {
+        int start = i + 1 - found[k];
+        if (start > 0 && isWordChar(text.charAt(start - 1))) continue;
+        if (blocks[state][k]) return null;
+        if (masked == null) masked = text.toCharArray();
+        Arrays.fill(masked, start, i + 1, '*');
+      }
+    }
+    return masked == null ? text : new String(masked);
+  }
+
+  /**
+   * Returns how many words the matcher looks for.
+   */
+  int size()
+  {
+    return words;
+  }
+
+  /**
+   * Returns how many states the automaton has.
+   */
+  int states()
+  {
+    return lengths.length;
+  }
+
+  private static boolean isWordChar(char c)
+  {
+    return Character.isLetterOrDigit(c);
+  }
+
+  // A state's own words, then those of its failure state: every word ending there.
+  private static int[] merge(List<Integer> own, int[] inherited)
+  {
+    if (own == null) return inherited;
+    int[] out = new int[own.size() + inherited.length];
+    for (int i = 0; i < own.size(); i++) out[i] = own.get(i);
+    System.arraycopy(inherited, 0, out, own.size(), inherited.length);
+    return out;
+  }
+}
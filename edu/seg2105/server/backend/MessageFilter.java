@@ -0,0 +1,223 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.seg2105.client.common.LatencyHistogram;
+
+/**
+ * The stages every chat line goes through before it is sent: those
+ * compiled from a rule file (see FilterRules), then any added in code,
+ * in order, each timed.  A stage that blocks ends the run.
+ *
+ * <p>The rule file is looked at again at most once a second, by whichever
+ * message comes along, and recompiled if its time or size changed.  The
+ * new stages replace the old in one write, so a message is filtered
+ * wholly by the old rules or wholly by the new.  A file that no longer
+ * compiles is reported and the old rules stay.  With no rule file and
+ * no stages a message costs two volatile reads.
+ */
+class MessageFilter
+{
+  //Class variables *************************************************
+
+  /**
+   * How often the rule file is checked for changes.
+   */
+  static final long RELOAD_CHECK_MILLIS = 1000;
+
+  //Instance variables **********************************************
+
+  private final ServerLog log;
+  private volatile Timed[] stages = new Timed[0];
+
+  private volatile Path file;
+  private List<Timed> fromFile = new ArrayList<Timed>();                        // guarded by this
+  private final List<Timed> added = new CopyOnWriteArrayList<Timed>();
+  private FileTime loadedModified;                                              // guarded by this
+  private long loadedSize = -1;                                                 // guarded by this
+  private final AtomicLong nextCheck = new AtomicLong();
+
+  //Constructors ****************************************************
+
+  MessageFilter(ServerLog log)
+  {
+    this.log = log;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs a message through every stage.
+   *
+   * @return The text to send, or null if a stage blocked it.
+   */
+  String apply(Session sender, String text)
+  {
+    if (file != null) maybeReload();
+    Timed[] run = stages;
+    for (Timed stage : run)
+    {
+      long start = System.nanoTime();
+      String out = stage.stage.apply(sender, text);
+      stage.time.record(System.nanoTime() - start);
+      if (out == null)
+      {
+        stage.blocked.increment();
+        return null;
+      }
+      if (out != text) stage.changed.increment();
+      text = out;
+    }
+    return text;
+  }
+
+  /**
+   * Reads rules from a file from now on, or from none if null.
+   *
+   * @throws IOException if the file cannot be read or compiled; the
+   *   rules in force are kept.
+   */
+  synchronized void setRuleFile(Path file) throws IOException
+  {
+    if (file == null)
+    {
+      this.file = null;
+      fromFile = new ArrayList<Timed>();
+      loadedModified = null;
+      publish();
+      return;
+    }
+    load(file);
+    this.file = file;
+  }
+
+  /**
+   * Reads the rule file again now, changed or not.
+   *
+   * @throws IOException as for setRuleFile.
+   */
+  synchronized void reload() throws IOException
+  {
+    if (file == null) throw new IOException("No rule file; start the server with --filter=FILE.");
+    load(file);
+  }
+
+  /**
+   * Adds a stage to run after the rule file's.
+   */
+  void add(MessageStage stage)
+  {
+    added.add(new Timed(stage));
+    synchronized (this)
+    {
+      publish();
+    }
+  }
+
+  /**
+   * Returns the rule file, or null for none.
+   */
+  Path getRuleFile()
+  {
+    return file;
+  }
+
+  /**
+   * Returns each stage with what it has done and how long it takes, for
+   * the server console.
+   */
+  String describe()
+  {
+    Timed[] run = stages;
+    Path f = file;
+    StringBuilder s = new StringBuilder("Message filter: ");
+    s.append(f == null ? "no rule file" : "rules from " + f);
+    if (run.length == 0) return s.append(", no stages.").toString();
+    for (Timed t : run)
+    {
+      s.append(String.format("%n  %-40s n=%d changed=%d blocked=%d mean=%.2fus p99=%.2fus",
+        t.stage.name(), t.time.count(), t.changed.sum(), t.blocked.sum(),
+        t.time.mean() / 1000.0, t.time.percentile(0.99) / 1000.0));
+    }
+    return s.toString();
+  }
+
+  // Only one message in a second does the checking; the rest go straight on.
+  private void maybeReload()
+  {
+    long now = System.nanoTime();
+    long due = nextCheck.get();
+    if (now - due < 0 || !nextCheck.compareAndSet(due, now + TimeUnit.MILLISECONDS.toNanos(RELOAD_CHECK_MILLIS))) return;
+    synchronized (this)
+    {
+      Path f = file;
+      if (f == null) return;
+      try
+      {
+        if (Files.getLastModifiedTime(f).equals(loadedModified) && Files.size(f) == loadedSize) return;
+        load(f);
+        log.info("[Server] Reloaded message filter rules from " + f + ".");
+      }
+      catch (NoSuchFileException e)
+      {
+        if (loadedModified != null) log.warn("[Server] " + f + " is gone; keeping the filter rules already loaded.");
+        loadedModified = null;
+      }
+      catch (IOException e)
+      {
+        log.error("[Server] Keeping the old filter rules: " + e.getMessage());
+        try // not tried again until it changes
+        {
+          loadedModified = Files.getLastModifiedTime(f);
+          loadedSize = Files.size(f);
+        }
+        catch (IOException ignored) {}
+      }
+    }
+  }
+
+  // Compiles the file and, if that worked, puts its stages in force.
+  private void load(Path f) throws IOException
+  {
+    FileTime modified = Files.getLastModifiedTime(f);
+    long size = Files.size(f);
+    List<Timed> compiled = new ArrayList<Timed>();
+    for (MessageStage stage : FilterRules.compile(f)) compiled.add(new Timed(stage));
+    fromFile = compiled;
+    loadedModified = modified;
+    loadedSize = size;
+    publish();
+  }
+
+  private void publish()
+  {
+    List<Timed> all = new ArrayList<Timed>(fromFile);
+    all.addAll(added);
+    stages = all.toArray(new Timed[0]);
+  }
+
+  //Inner classes ***************************************************
+
+  private static final class Timed
+  {
+    final MessageStage stage;
+    final LatencyHistogram time = new LatencyHistogram();
+    final LongAdder changed = new LongAdder();
+    final LongAdder blocked = new LongAdder();
+
+    Timed(MessageStage stage)
+    {
+      this.stage = stage;
+    }
+  }
+}
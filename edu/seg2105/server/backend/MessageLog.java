@@ -0,0 +1,578 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of the messages the server broadcast to everyone,
+ * kept on disk so reconnecting users can ask for what they missed.
+ *
+ * <p>Every message gets the next offset, counting from 0 for the life of
+ * the log.  Messages go into segment files named after their first
+ * offset; a segment is memory-mapped whole, so appending is a copy into
+ * the page cache and reading walks the mapping without pulling the file
+ * onto the heap.  Each segment has a sparse index file with the position
+ * of one message every INDEX_INTERVAL bytes, so finding an offset is a
+ * binary search and a short scan.
+ *
+ * <p>A record is
+ * <pre>
+ *   int length      payload bytes
+ *   int crc         CRC32C of everything after it
+ *   long offset
+ *   long time       milliseconds since the epoch
+ *   payload         UTF-8 text
+ * </pre>
+ * The log does not force writes to disk per message; the operating system
+ * writes the pages back, and segments are forced when they are sealed and
+ * when the log closes.  After a crash the first bad or missing record in
+ * the newest segment marks the end of the log.
+ *
+ * <p>A segment is sealed when it is full or older than the roll age.
+ * Sealed segments are deleted, oldest first, once the log is over its
+ * size limit or their last message is older than the age limit.  A
+ * deleted segment is unmapped as soon as no reader is walking it, rather
+ * than holding its address space and file until the mapping is collected.
+ */
+class MessageLog
+{
+  //Class variables *************************************************
+
+  /**
+   * The size of each segment file.
+   */
+  static final int SEGMENT_BYTES = 16 << 20;
+
+  /**
+   * How many log bytes one index entry covers.
+   */
+  static final int INDEX_INTERVAL = 4096;
+
+  /**
+   * How long a segment takes new messages before it is sealed.
+   */
+  static final long ROLL_MILLIS = 60 * 60 * 1000L;
+
+  private static final int HEADER = 24;
+  private static final int INDEX_ENTRY = 8;
+  private static final long RETENTION_CHECK_MILLIS = 60 * 1000L;
+  private static final String LOG_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  /**
+   * Unsafe.invokeCleaner, which unmaps a mapped buffer at once; null if
+   * this JVM does not allow it, and mappings then go when collected.
+   */
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static
+  {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try
+    {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field instance = type.getDeclaredField("theUnsafe");
+      instance.setAccessible(true);
+      unsafe = instance.get(null);
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+    }
+    catch (ReflectiveOperationException | RuntimeException e)
+    {
+      unsafe = null;
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  /**
+   * Receives messages read back from the log.
+   */
+  interface Visitor
+  {
+    void accept(long offset, long timeMillis, String text);
+  }
+
+  //Instance variables **********************************************
+
+  private final Path dir;
+  private final long retainBytes;
+  private final long retainMillis;
+
+  private final ConcurrentSkipListMap<Long, Segment> segments =
+    new ConcurrentSkipListMap<Long, Segment>();
+  private Segment active;                 // guarded by this
+  private long nextOffset;                // guarded by this
+  private volatile long committed;        // readers see offsets below this
+  private long nextRetentionCheck = 0;    // guarded by this
+  private boolean closed = false;         // guarded by this
+
+  //Constructors ****************************************************
+
+  private MessageLog(Path dir, long retainBytes, long retainMillis)
+  {
+    this.dir = dir;
+    this.retainBytes = retainBytes;
+    this.retainMillis = retainMillis;
+  }
+
+  //Instance methods ************************************************
+
+  // === Writing ===
+
+  /**
+   * Appends a message.
+   *
+   * @return The message's offset, or -1 if it is too big for a segment.
+   */
+  synchronized long append(long timeMillis, String text) throws IOException
+  {
+    if (closed) throw new IOException("message log is closed");
+    byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+    int size = HEADER + payload.length;
+    if (size > SEGMENT_BYTES) return -1;
+    if (!active.fits(size) || timeMillis - active.createdMillis >= ROLL_MILLIS) roll(timeMillis);
+    long offset = nextOffset++;
+    active.write(offset, timeMillis, payload);
+    committed = nextOffset;
+    if (timeMillis >= nextRetentionCheck)
+    {
+      nextRetentionCheck = timeMillis + RETENTION_CHECK_MILLIS;
+      enforceRetention(timeMillis);
+    }
+    return offset;
+  }
+
+  /**
+   * Seals the active segment and starts the next one.
+   */
+  private void roll(long timeMillis) throws IOException
+  {
+    active.seal();
+    active = Segment.create(dir, nextOffset, timeMillis);
+    segments.put(active.baseOffset, active);
+    enforceRetention(timeMillis);
+  }
+
+  private void enforceRetention(long now) throws IOException
+  {
+    long total = 0;
+    for (Segment s : segments.values()) total += s.end;
+    for (Segment s : segments.values())
+    {
+      if (s == active) break;
+      boolean tooBig = total > retainBytes;
+      boolean tooOld = now - s.lastAppendMillis > retainMillis;
+      if (!tooBig && !tooOld) break;
+      segments.remove(s.baseOffset);
+      total -= s.end;
+      s.delete();
+    }
+  }
+
+  // === Reading ===
+
+  /**
+   * Returns the offset the next message will get.
+   */
+  long nextOffset()
+  {
+    return committed;
+  }
+
+  /**
+   * Returns the oldest offset still kept.
+   */
+  long firstOffset()
+  {
+    Map.Entry<Long, Segment> first = segments.firstEntry();
+    return first == null ? committed : first.getKey();
+  }
+
+  /**
+   * Reads messages in offset order, starting at the given offset or the
+   * oldest one kept, whichever is later.
+   *
+   * @param from The first offset wanted.
+   * @param max The most messages to read.
+   * @param visitor Receives each message.
+   * @return The offset after the last message read.
+   */
+  long read(long from, int max, Visitor visitor)
+  {
+    long end = committed;
+    long next = Math.max(from, firstOffset());
+    int count = 0;
+    while (next < end && count < max)
+    {
+      Map.Entry<Long, Segment> e = segments.floorEntry(next);
+      if (e == null) e = segments.firstEntry();
+      if (e == null) break;
+      Segment segment = e.getValue();
+      if (!segment.acquire()) continue; // deleted since the lookup, so no longer in the map
+      try
+      {
+        if (next < segment.baseOffset) next = segment.baseOffset;
+        Long following = segments.higherKey(segment.baseOffset);
+        long limit = following == null ? end : Math.min(end, following);
+        int pos = segment.positionOf(next);
+        while (next < limit && count < max && pos >= 0)
+        {
+          pos = segment.visit(pos, next, visitor);
+          if (pos >= 0)
+          {
+            next++;
+            count++;
+          }
+        }
+        if (next < limit && pos < 0) next = limit; // damaged underneath us
+      }
+      finally
+      {
+        segment.release();
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Forces the active segment to disk and stops taking messages.
+   */
+  synchronized void close()
+  {
+    if (closed) return;
+    closed = true;
+    active.force();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Opens the log in a directory, creating it if needed, and finds where
+   * the newest segment ends.
+   *
+   * @param retainBytes Sealed segments go once the log is bigger than this.
+   * @param retainMillis Sealed segments go once their last message is older.
+   */
+  static MessageLog open(Path dir, long retainBytes, long retainMillis) throws IOException
+  {
+    Files.createDirectories(dir);
+    MessageLog log = new MessageLog(dir, retainBytes, retainMillis);
+    List<Long> bases = new ArrayList<Long>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX))
+    {
+      for (Path f : files)
+      {
+        String name = f.getFileName().toString();
+        try
+        {
+          bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+        }
+        catch (NumberFormatException ignored) {}
+      }
+    }
+    bases.sort(null);
+    long now = System.currentTimeMillis();
+    for (long base : bases)
+    {
+      Segment s = Segment.open(dir, base);
+      log.nextOffset = s.recover();
+      log.segments.put(base, s);
+    }
+    if (log.segments.isEmpty())
+    {
+      log.active = Segment.create(dir, 0, now);
+      log.segments.put(0L, log.active);
+      log.nextOffset = 0;
+    }
+    else
+    {
+      log.active = log.segments.lastEntry().getValue();
+    }
+    log.committed = log.nextOffset;
+    return log;
+  }
+
+  private static String fileName(long baseOffset, String suffix)
+  {
+    return String.format("%020d%s", baseOffset, suffix);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One segment file and its index, both mapped.
+   */
+  private static final class Segment
+  {
+    final long baseOffset;
+    final Path logPath;
+    final Path indexPath;
+    final MappedByteBuffer log;
+    final MappedByteBuffer index;
+    long createdMillis;
+    volatile long lastAppendMillis;
+    volatile int end = 0;          // bytes of records written
+    volatile int indexEntries = 0;
+    int nextIndexedPosition = INDEX_INTERVAL;
+
+    /**
+     * Readers walking the mappings, plus one for the log until it deletes
+     * the segment.  The mappings go when this reaches 0.
+     */
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    private Segment(long baseOffset, Path logPath, Path indexPath, long createdMillis,
+      long lastAppendMillis) throws IOException
+    {
+      this.baseOffset = baseOffset;
+      this.logPath = logPath;
+      this.indexPath = indexPath;
+      this.createdMillis = createdMillis;
+      this.lastAppendMillis = lastAppendMillis;
+      this.log = map(logPath, SEGMENT_BYTES);
+      this.index = map(indexPath, SEGMENT_BYTES / INDEX_INTERVAL * INDEX_ENTRY);
+    }
+
+    static Segment create(Path dir, long baseOffset, long now) throws IOException
+    {
+      Path logPath = dir.resolve(fileName(baseOffset, LOG_SUFFIX));
+      Path indexPath = dir.resolve(fileName(baseOffset, INDEX_SUFFIX));
+      Files.deleteIfExists(logPath);
+      Files.deleteIfExists(indexPath);
+      return new Segment(baseOffset, logPath, indexPath, now, now);
+    }
+
+    static Segment open(Path dir, long baseOffset) throws IOException
+    {
+      Path logPath = dir.resolve(fileName(baseOffset, LOG_SUFFIX));
+      Path indexPath = dir.resolve(fileName(baseOffset, INDEX_SUFFIX));
+      long modified = Files.getLastModifiedTime(logPath).toMillis();
+      Segment s = new Segment(baseOffset, logPath, indexPath, modified, modified);
+      while (s.indexEntries < s.index.capacity() / INDEX_ENTRY
+        && s.index.getInt(s.indexEntries * INDEX_ENTRY + 4) != 0)
+      {
+        s.indexEntries++;
+      }
+      return s;
+    }
+
+    /**
+     * Finds the last good record, starting from the last index entry,
+     * drops index entries past it, and returns the next offset.
+     */
+    long recover()
+    {
+      int entry = indexEntries;
+      while (entry > 0 && index.getInt((entry - 1) * INDEX_ENTRY + 4) >= SEGMENT_BYTES) entry--;
+      int pos = 0;
+      long offset = baseOffset;
+      if (entry > 0)
+      {
+        pos = index.getInt((entry - 1) * INDEX_ENTRY + 4);
+        offset = baseOffset + index.getInt((entry - 1) * INDEX_ENTRY);
+      }
+      while (true)
+      {
+        int size = validRecord(pos, offset);
+        if (size < 0) break;
+        lastAppendMillis = log.getLong(pos + 16);
+        pos += size;
+        offset++;
+      }
+      end = pos;
+      if (pos > 0) createdMillis = log.getLong(16);
+      while (entry > 0 && index.getInt((entry - 1) * INDEX_ENTRY + 4) >= pos) entry--;
+      for (int i = entry; i < indexEntries; i++) index.putLong(i * INDEX_ENTRY, 0);
+      indexEntries = entry;
+      nextIndexedPosition = (pos / INDEX_INTERVAL + 1) * INDEX_INTERVAL;
+      return offset;
+    }
+
+    boolean fits(int size)
+    {
+      return end + size <= log.capacity();
+    }
+
+    void write(long offset, long timeMillis, byte[] payload)
+    {
+      int pos = end;
+      log.putInt(pos, payload.length);
+      log.putLong(pos + 8, offset);
+      log.putLong(pos + 16, timeMillis);
+      log.put(pos + HEADER, payload);
+      log.putInt(pos + 4, crc(pos, payload.length));
+      if (pos >= nextIndexedPosition && indexEntries < index.capacity() / INDEX_ENTRY)
+      {
+        index.putInt(indexEntries * INDEX_ENTRY, (int) (offset - baseOffset));
+        index.putInt(indexEntries * INDEX_ENTRY + 4, pos);
+        indexEntries++;
+        nextIndexedPosition = (pos / INDEX_INTERVAL + 1) * INDEX_INTERVAL;
+      }
+      lastAppendMillis = timeMillis;
+      end = pos + HEADER + payload.length;
+    }
+
+    /**
+     * Returns the position to start scanning from for an offset.
+     */
+    int positionOf(long offset)
+    {
+      int lo = 0;
+      int hi = indexEntries - 1;
+      int pos = 0;
+      while (lo <= hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        long indexed = baseOffset + index.getInt(mid * INDEX_ENTRY);
+        if (indexed <= offset)
+        {
+          pos = index.getInt(mid * INDEX_ENTRY + 4);
+          lo = mid + 1;
+        }
+        else
+        {
+          hi = mid - 1;
+        }
+      }
+      return pos;
+    }
+
+    /**
+     * Hands the record at a position to the visitor if it has the wanted
+     * offset, or skips ahead to it.
+     *
+     * @return The position after the wanted record, or -1 if it is not
+     *   there.
+     */
+    int visit(int pos, long wanted, Visitor visitor)
+    {
+      int limit = end;
+      while (pos + HEADER <= limit)
+      {
+        int length = log.getInt(pos);
+        if (length < 0 || pos + HEADER + length > limit) return -1;
+        long offset = log.getLong(pos + 8);
+        if (offset == wanted)
+        {
+          byte[] payload = new byte[length];
+          log.get(pos + HEADER, payload);
+          visitor.accept(offset, log.getLong(pos + 16), new String(payload, StandardCharsets.UTF_8));
+          return pos + HEADER + length;
+        }
+        if (offset > wanted) return -1;
+        pos += HEADER + length;
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the record's size if it is intact and has the expected
+     * offset, or -1.
+     */
+    private int validRecord(int pos, long expectedOffset)
+    {
+      if (pos + HEADER > log.capacity()) return -1;
+      int length = log.getInt(pos);
+      if (length < 0 || pos + HEADER + length > log.capacity()) return -1;
+      if (log.getLong(pos + 8) != expectedOffset) return -1;
+      if (log.getInt(pos + 4) != crc(pos, length)) return -1;
+      return HEADER + length;
+    }
+
+    private int crc(int pos, int length)
+    {
+      CRC32C crc = new CRC32C();
+      crc.update(log.slice(pos + 8, HEADER - 8 + length));
+      return (int) crc.getValue();
+    }
+
+    void seal()
+    {
+      force();
+    }
+
+    void force()
+    {
+      log.force();
+      index.force();
+    }
+
+    /**
+     * Deletes the files.  Readers still walking the mappings can finish;
+     * the last one out unmaps them.
+     */
+    void delete() throws IOException
+    {
+      try
+      {
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+      }
+      finally
+      {
+        release();
+      }
+    }
+
+    /**
+     * Keeps the mappings while a reader walks them.
+     *
+     * @return false if the segment is already deleted and unmapped.
+     */
+    boolean acquire()
+    {
+      while (true)
+      {
+        int n = users.get();
+        if (n == 0) return false;
+        if (users.compareAndSet(n, n + 1)) return true;
+      }
+    }
+
+    void release()
+    {
+      if (users.decrementAndGet() == 0)
+      {
+        unmap(log);
+        unmap(index);
+      }
+    }
+
+    private static void unmap(MappedByteBuffer buffer)
+    {
+      if (INVOKE_CLEANER == null) return;
+      try
+      {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      }
+      catch (ReflectiveOperationException ignored) {}
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException
+    {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE))
+      {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package edu.seg2105.server.backend;
+
+/**
+ * One step of the server's message filter, run on every chat line and
+ * private message before it is tagged with the sender's id and sent.  A
+ * stage may pass the text on unchanged, change it, or block it.  Stages
+ * run on the thread that read the message, so they should be quick; the
+ * server times each one, and #filter shows which is slow.  A stage must
+ * be safe to call from several threads at once.
+ *
+ * @see EchoServer#addMessageStage
+ */
+public interface MessageStage
+{
+  /**
+   * Returns a short name for the server console, e.g. "keywords".
+   */
+  String name();
+
+  /**
+   * Filters one message.
+   *
+   * @param sender Who sent it.
+   * @param text What they typed, after any earlier stage.
+   * @return The text to send, the same String if unchanged, or null to
+   *   block the message.
+   */
+  String apply(Session sender, String text);
+}
@@ -0,0 +1,482 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.client.common.ChatFrame;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * One client socket owned by the NIO engine.  Reads happen only on the
+ * connection's event loop; writes may come from any thread and are
+ * queued when the socket cannot take them right away.
+ *
+ * <p>Every connection starts on the object-stream protocol.  If the
+ * first object is ChatFrame.HELLO the connection answers with the magic
+ * bytes and carries binary frames from then on.  A binary client may then
+ * ask for large frames to be compressed; the connection answers that
+ * itself, so the server never sees the request.
+ */
+class NioConnection implements ClientConnection
+{
+  //Instance variables **********************************************
+
+  private final NioServerEngine engine;
+  private final SocketChannel channel;
+  private final InetAddress address;
+  private final Map<String, Object> info = new ConcurrentHashMap<String, Object>();
+  private volatile Session session;
+  private final SerializedStringCodec decoder = new SerializedStringCodec();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Set once the first message has arrived and the protocol is settled.
+   */
+  private volatile boolean negotiated = false;
+  private volatile boolean binary = false;
+
+  /**
+   * Frames this large or larger go out compressed; 0 until the client asks.
+   */
+  private volatile int compressAbove = 0;
+
+  /**
+   * The event loop whose selector this connection is registered with.
+   */
+  final NioServerEngine.EventLoop loop;
+
+  private SelectionKey key;
+
+  /**
+   * Bytes of a partly received object.  Null while nothing is pending so
+   * idle connections hold no read buffer.
+   */
+  private ByteBuffer pending;
+
+  /**
+   * The most a partly received object may hold: the largest frame or
+   * string a client may send, and room for its header.  The decoders
+   * reject a longer length prefix; this bounds whatever gets past them.
+   */
+  private static final int MAX_PENDING =
+    Math.max(ChatFrame.MAX_FRAME_BYTES, SerializedStringCodec.MAX_STRING_BYTES) + 16;
+
+  /**
+   * The most buffers handed to one gathering write.
+   */
+  private static final int MAX_GATHER = 64;
+
+  /**
+   * Buffers waiting to be written, guarded by itself.  Broadcast frames
+   * are shared with other connections, so each entry is a duplicate with
+   * its own position over the same bytes.
+   */
+  private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  private boolean closeWhenFlushed = false;
+
+  private final int capacity;
+  private final OutboundQueue.Overflow overflow;
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Whether the platform lets us ask for an immediate ACK (Linux only).
+   */
+  private final boolean quickAck;
+
+  //Constructors ****************************************************
+
+  NioConnection(NioServerEngine engine, SocketChannel channel,
+    NioServerEngine.EventLoop loop, int capacity, OutboundQueue.Overflow overflow)
+  {
+    this.engine = engine;
+    this.channel = channel;
+    this.loop = loop;
+    this.address = channel.socket().getInetAddress();
+    this.capacity = Math.max(1, capacity);
+    this.overflow = overflow;
+    this.quickAck = channel.supportedOptions().contains(ExtendedSocketOptions.TCP_QUICKACK);
+  }
+
+  //Instance methods ************************************************
+
+  void setKey(SelectionKey key)
+  {
+    this.key = key;
+  }
+
+  public void sendToClient(Object msg) throws IOException
+  {
+    if (!(msg instanceof String) && !(msg instanceof ChatFrame))
+      throw new IOException("NIO engine only carries text messages");
+    if (binary)
+    {
+      ChatFrame frame = (msg instanceof ChatFrame)
+        ? (ChatFrame) msg : new ChatFrame(ChatFrame.SERVER_MSG, (String) msg);
+      ByteBuffer encoded = frame.encode();
+      ByteBuffer deflated = compressAbove > 0 && encoded.remaining() >= compressAbove
+        ? ChatFrame.deflate(encoded) : null;
+      enqueue(deflated != null ? deflated : encoded);
+    }
+    else
+    {
+      enqueue(SerializedStringCodec.encode(msg.toString()));
+    }
+  }
+
+  /**
+   * Returns whether the client has sent its first message, which settles
+   * the protocol.  Broadcasts skip clients that have not.
+   */
+  boolean isNegotiated()
+  {
+    return negotiated;
+  }
+
+  /**
+   * Returns whether the client speaks binary frames.
+   */
+  boolean isBinary()
+  {
+    return binary;
+  }
+
+  /**
+   * Returns the size from which frames go to this client compressed, or
+   * 0 if they never do.
+   */
+  int getCompressAbove()
+  {
+    return compressAbove;
+  }
+
+  /**
+   * Queues bytes for this client and writes as much as the socket takes
+   * right now.  The rest is written by the event loop once the socket is
+   * writable again.  A full queue is handled by the overflow policy.
+   *
+   * @param buffer A buffer in read mode.  It must not be modified later.
+   */
+  void enqueue(ByteBuffer buffer) throws IOException
+  {
+    boolean closeNow;
+    synchronized (outbound)
+    {
+      if (closed.get() || closeWhenFlushed)
+        throw new SocketException("socket does not exist");
+      if (outbound.size() >= capacity)
+      {
+        dropped.incrementAndGet();
+        if (overflow == OutboundQueue.Overflow.DROP_NEWEST) return;
+        if (overflow == OutboundQueue.Overflow.DISCONNECT)
+        {
+          closeNow = true;
+        }
+        else
+        {
+          if (dropOldestLocked()) outbound.add(buffer);
+          return; // the queue was full, so a write is already pending
+        }
+      }
+      else
+      {
+        outbound.add(buffer);
+        if (outbound.size() > 1) return; // a write is already pending
+        closeNow = flushLocked();
+      }
+    }
+    if (closeNow) closeNow();
+  }
+
+  /**
+   * Drops the oldest buffer that has not started going out.  A partly
+   * written head must stay, or the client would see half a message; only
+   * the head can be partly written, since writes go in order.
+   *
+   * @return false if every queued buffer has started, so the new one
+   *   should be dropped instead.
+   */
+  private boolean dropOldestLocked()
+  {
+    ByteBuffer head = outbound.poll();
+    if (head.position() == 0) return true;
+    boolean dropped = outbound.poll() != null;
+    outbound.addFirst(head);
+    return dropped;
+  }
+
+  public int getOutboundDepth()
+  {
+    synchronized (outbound)
+    {
+      return outbound.size();
+    }
+  }
+
+  public long getDroppedMessages()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Called by the event loop when the socket can take more bytes.
+   */
+  void onWritable() throws IOException
+  {
+    boolean closeNow;
+    synchronized (outbound)
+    {
+      closeNow = flushLocked();
+    }
+    if (closeNow) closeNow();
+  }
+
+  /**
+   * Writes queued buffers until the queue is empty or the socket is full.
+   *
+   * @return true if a requested close can now go ahead.
+   */
+  private boolean flushLocked() throws IOException
+  {
+    while (!outbound.isEmpty())
+    {
+      long wanted;
+      long written;
+      if (outbound.size() == 1)
+      {
+        ByteBuffer head = outbound.peek();
+        wanted = head.remaining();
+        written = channel.write(head);
+      }
+      else
+      {
+        int count = 0;
+        wanted = 0;
+        for (ByteBuffer b : outbound)
+        {
+          gather[count++] = b;
+          wanted += b.remaining();
+          if (count == MAX_GATHER) break;
+        }
+        written = channel.write(gather, 0, count);
+        Arrays.fill(gather, 0, count, null);
+      }
+      while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+      {
+        outbound.poll();
+      }
+      if (written < wanted)
+      {
+        setWriteInterest(true); // the socket is full
+        return false;
+      }
+    }
+    setWriteInterest(false);
+    return closeWhenFlushed;
+  }
+
+  private void setWriteInterest(boolean on)
+  {
+    if (key == null || !key.isValid()) return;
+    int ops = on ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+    if (key.interestOps() != ops)
+    {
+      key.interestOps(ops);
+      loop.wakeupIfOutside();
+    }
+  }
+
+  /**
+   * Called by the event loop when the socket has bytes to read.  Every
+   * complete message is handed to the server before this returns.
+   *
+   * @param scratch The event loop's shared read buffer.
+   */
+  void onReadable(ByteBuffer scratch) throws IOException
+  {
+    scratch.clear();
+    int n = channel.read(scratch);
+    if (n < 0)
+    {
+      closeNow();
+      return;
+    }
+    if (n == 0) return;
+    if (quickAck && !binary)
+    {
+      // An OCSF client writes each message as two segments, the object and
+      // then a reset.  Nagle holds its next message until the lone reset
+      // is acknowledged, and with nothing to piggyback on our ACK would
+      // otherwise be delayed by tens of milliseconds.
+      channel.setOption(ExtendedSocketOptions.TCP_QUICKACK, true);
+    }
+    scratch.flip();
+
+    ByteBuffer data;
+    if (pending == null)
+    {
+      data = scratch;
+    }
+    else
+    {
+      if (pending.remaining() < scratch.remaining())
+      {
+        ByteBuffer bigger = ByteBuffer.allocate(
+          Math.max(Math.min(pending.capacity() * 2, MAX_PENDING + scratch.capacity()),
+            pending.position() + scratch.remaining()));
+        pending.flip();
+        bigger.put(pending);
+        pending = bigger;
+      }
+      pending.put(scratch);
+      pending.flip();
+      data = pending;
+    }
+
+    List<Object> messages = new ArrayList<Object>(4);
+    decode(data, messages);
+
+    if (!data.hasRemaining())
+    {
+      pending = null;
+    }
+    else if (data.remaining() > MAX_PENDING)
+    {
+      throw new StreamCorruptedException("message larger than " + MAX_PENDING + " bytes");
+    }
+    else if (data == scratch)
+    {
+      pending = ByteBuffer.allocate(Math.max(512, data.remaining() * 2));
+      pending.put(data);
+    }
+    else
+    {
+      pending.compact();
+    }
+
+    for (Object msg : messages)
+    {
+      if (closed.get()) return;
+      if (msg instanceof ChatFrame && ((ChatFrame) msg).getType() == ChatFrame.COMPRESS) acceptCompression((ChatFrame) msg);
+      else engine.dispatch(msg, this);
+    }
+  }
+
+  /**
+   * Answers a client's COMPRESS with the server's threshold, or "off".
+   */
+  private void acceptCompression(ChatFrame request) throws IOException
+  {
+    int threshold = engine.getCompressThreshold();
+    compressAbove = ChatFrame.DEFLATE.equals(request.getText().trim()) ? threshold : 0;
+    enqueue(new ChatFrame(ChatFrame.COMPRESS,
+      compressAbove > 0 ? ChatFrame.DEFLATE + " " + compressAbove : "off").encode());
+  }
+
+  private void decode(ByteBuffer data, List<Object> out) throws IOException
+  {
+    if (!binary)
+    {
+      decoder.decode(data, out);
+      if (negotiated || out.isEmpty()) return;
+      if (!ChatFrame.HELLO.equals(out.get(0)))
+      {
+        negotiated = true;
+        return;
+      }
+      out.remove(0);
+      binary = true;
+      enqueue(ByteBuffer.wrap(ChatFrame.MAGIC));
+      negotiated = true;
+    }
+    while (ChatFrame.decode(data, out));
+  }
+
+  /**
+   * Closes the connection once everything already queued has been
+   * written, so a final error message still reaches the client.
+   */
+  public void close() throws IOException
+  {
+    synchronized (outbound)
+    {
+      if (closed.get()) return;
+      if (!outbound.isEmpty())
+      {
+        closeWhenFlushed = true;
+        return;
+      }
+    }
+    closeNow();
+  }
+
+  /**
+   * Closes the socket immediately, dropping anything still queued.
+   */
+  public void closeNow()
+  {
+    if (!closed.compareAndSet(false, true)) return;
+    if (key != null) key.cancel();
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ignored) {}
+    synchronized (outbound)
+    {
+      outbound.clear();
+    }
+    pending = null;
+    engine.connectionClosed(this);
+  }
+
+  boolean isClosed()
+  {
+    return closed.get();
+  }
+
+  public void setInfo(String infoType, Object value)
+  {
+    if (value == null) info.remove(infoType);
+    else info.put(infoType, value);
+  }
+
+  public Object getInfo(String infoType)
+  {
+    return info.get(infoType);
+  }
+
+  public void setSession(Session session)
+  {
+    this.session = session;
+  }
+
+  public Session getSession()
+  {
+    return session;
+  }
+
+  public InetAddress getInetAddress()
+  {
+    return address;
+  }
+
+  public String toString()
+  {
+    return address == null ? "(closed)"
+      : address.getHostName() + " (" + address.getHostAddress() + ")";
+  }
+}
@@ -0,0 +1,492 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * A server engine built on java.nio selectors.  One acceptor thread hands
+ * new sockets round-robin to a small fixed pool of event loops, and each
+ * loop reads and dispatches messages for all of its connections.  Idle
+ * clients therefore cost a selection key and a few small objects instead
+ * of a thread and its stack.
+ *
+ * <p>EchoServer's callbacks are called exactly as OCSF would call them:
+ * clientConnected when a socket is accepted, handleMessageFromClient for
+ * every message, and clientDisconnected when the connection goes away.
+ * Messages from one client are always handled in order on its loop, but
+ * different clients may be handled at the same time.
+ */
+public class NioServerEngine implements ServerEngine
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of event loop threads.
+   */
+  final public static int DEFAULT_EVENT_LOOPS =
+    Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The accept backlog.  Much larger than OCSF's default of 10 so a burst
+   * of connects is not refused.
+   */
+  final public static int BACKLOG = 4096;
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  private final EchoServer server;
+  private final int loopCount;
+  private volatile int port;
+
+  private volatile ServerSocketChannel acceptor;
+  private volatile Thread acceptThread;
+  private EventLoop[] loops;
+  private int nextLoop = 0;
+
+  private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs an NIO engine for the given server.
+   *
+   * @param server The server whose callbacks receive client events.
+   * @param port The port to listen on.
+   * @param loopCount The number of event loop threads.
+   */
+  public NioServerEngine(EchoServer server, int port, int loopCount)
+  {
+    if (loopCount < 1)
+      throw new IllegalArgumentException("loopCount must be at least 1");
+    this.server = server;
+    this.port = port;
+    this.loopCount = loopCount;
+  }
+
+  //Instance methods ************************************************
+
+  public synchronized void listen() throws IOException
+  {
+    if (isListening()) return;
+    if (loops == null) startLoops();
+    accept(bind(port));
+  }
+
+  public synchronized void moveTo(int port) throws IOException
+  {
+    if (!isListening())
+    {
+      this.port = port;
+      listen();
+      return;
+    }
+    ServerSocketChannel channel = bind(port);
+    stopListening();
+    this.port = port;
+    accept(channel);
+  }
+
+  public synchronized void stopListening()
+  {
+    ServerSocketChannel channel = acceptor;
+    acceptor = null;
+    acceptThread = null;
+    if (channel != null)
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  public synchronized void close() throws IOException
+  {
+    stopListening();
+    for (NioConnection c : connections)
+    {
+      c.closeNow();
+    }
+    if (loops != null)
+    {
+      for (EventLoop loop : loops) loop.shutdown();
+      loops = null;
+    }
+  }
+
+  public boolean isListening()
+  {
+    return acceptThread != null;
+  }
+
+  public int getPort()
+  {
+    return port;
+  }
+
+  public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  public int getNumberOfClients()
+  {
+    return connections.size();
+  }
+
+  public List<ClientConnection> getClientConnections()
+  {
+    return new ArrayList<ClientConnection>(connections);
+  }
+
+  /**
+   * Sends a message to every client.  The message is encoded at most once
+   * per protocol into a shared direct buffer and every connection queues
+   * a duplicate of it, so the cost of encoding does not grow with the
+   * number of clients.  A frame large enough to compress is compressed
+   * once too, for every client that asked for compression.  A plain String
+   * goes to binary clients as a SERVER_MSG frame.
+   */
+  public void sendToAllClients(Object msg)
+  {
+    sendToClients(connections, msg);
+  }
+
+  public void sendToClients(Iterable<? extends ClientConnection> recipients, Object msg)
+  {
+    ChatFrame frame;
+    if (msg instanceof ChatFrame) frame = (ChatFrame) msg;
+    else if (msg instanceof String) frame = new ChatFrame(ChatFrame.SERVER_MSG, (String) msg);
+    else return;
+
+    ByteBuffer legacy = null;
+    ByteBuffer encoded = null;
+    ByteBuffer binary = null;
+    ByteBuffer deflated = null;
+    boolean deflateTried = false;
+    for (ClientConnection recipient : recipients)
+    {
+      if (!(recipient instanceof NioConnection))
+      {
+        try { recipient.sendToClient(msg); } catch (IOException ignored) {} // not one of ours, e.g. a test double
+        continue;
+      }
+      NioConnection c = (NioConnection) recipient;
+      if (!c.isNegotiated()) continue;
+      ByteBuffer shared;
+      if (c.isBinary())
+      {
+        if (binary == null)
+        {
+          encoded = frame.encode();
+          binary = toDirect(encoded.duplicate());
+        }
+        shared = binary;
+        int above = c.getCompressAbove();
+        if (above > 0 && encoded.remaining() >= above)
+        {
+          if (!deflateTried)
+          {
+            deflateTried = true;
+            ByteBuffer d = ChatFrame.deflate(encoded);
+            if (d != null) deflated = toDirect(d);
+          }
+          if (deflated != null) shared = deflated;
+        }
+      }
+      else
+      {
+        if (legacy == null) legacy = SerializedStringCodec.encode(frame.getText(), true);
+        shared = legacy;
+      }
+      try
+      {
+        c.enqueue(shared.duplicate());
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  private static ByteBuffer toDirect(ByteBuffer heap)
+  {
+    ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+    direct.put(heap);
+    direct.flip();
+    return direct;
+  }
+
+  private void startLoops() throws IOException
+  {
+    EventLoop[] created = new EventLoop[loopCount];
+    try
+    {
+      for (int i = 0; i < loopCount; i++)
+      {
+        created[i] = new EventLoop("nio-loop-" + i);
+      }
+    }
+    catch (IOException e)
+    {
+      for (EventLoop loop : created)
+      {
+        if (loop != null) loop.shutdown();
+      }
+      throw e;
+    }
+    for (EventLoop loop : created) loop.start();
+    loops = created;
+  }
+
+  private static ServerSocketChannel bind(int port) throws IOException
+  {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try
+    {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(new InetSocketAddress(port), BACKLOG);
+    }
+    catch (IOException e)
+    {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private void accept(ServerSocketChannel channel)
+  {
+    acceptor = channel;
+    acceptThread = new Thread(() -> acceptLoop(channel), "nio-acceptor");
+    acceptThread.start();
+  }
+
+  private void acceptLoop(ServerSocketChannel channel)
+  {
+    server.serverStarted();
+    try
+    {
+      while (true)
+      {
+        SocketChannel socket = channel.accept();
+        try
+        {
+          socket.configureBlocking(false);
+          socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        catch (IOException e)
+        {
+          socket.close();
+          continue;
+        }
+        EventLoop loop = nextLoop();
+        if (loop == null)
+        {
+          socket.close();
+          continue;
+        }
+        loop.execute(() -> register(socket, loop));
+      }
+    }
+    catch (ClosedChannelException e)
+    {
+      // stopListening closed the channel
+    }
+    catch (IOException e)
+    {
+      server.getLog().warn("[Server] Accept failed: " + e.getMessage());
+    }
+    finally
+    {
+      boolean moved;
+      synchronized (this)
+      {
+        moved = acceptor != null && acceptor != channel; // moveTo opened another port
+        if (acceptor == channel)
+        {
+          acceptor = null;
+          acceptThread = null;
+          try
+          {
+            channel.close();
+          }
+          catch (IOException ignored) {}
+        }
+      }
+      if (!moved) server.serverStopped();
+    }
+  }
+
+  private synchronized EventLoop nextLoop()
+  {
+    if (loops == null) return null;
+    EventLoop loop = loops[nextLoop];
+    nextLoop = (nextLoop + 1) % loops.length;
+    return loop;
+  }
+
+  /**
+   * Runs on the chosen event loop.
+   */
+  private void register(SocketChannel socket, EventLoop loop)
+  {
+    NioConnection connection = new NioConnection(this, socket, loop,
+      server.getOutboundCapacity(), server.getOverflowPolicy());
+    try
+    {
+      connection.setKey(socket.register(loop.selector, SelectionKey.OP_READ, connection));
+      connections.add(connection);
+      connection.enqueue(ByteBuffer.wrap(SerializedStringCodec.STREAM_HEADER));
+    }
+    catch (IOException e)
+    {
+      connection.closeNow();
+      return;
+    }
+    server.clientConnected(connection);
+  }
+
+  /**
+   * Returns the smallest frame compressed for clients that ask.
+   */
+  int getCompressThreshold()
+  {
+    return server.getCompressThreshold();
+  }
+
+  /**
+   * Hands one decoded message to the server.
+   */
+  void dispatch(Object msg, NioConnection connection)
+  {
+    server.handleMessageFromClient(msg, connection);
+  }
+
+  /**
+   * Called once by a connection when its socket has been closed.
+   */
+  void connectionClosed(NioConnection connection)
+  {
+    if (connections.remove(connection))
+    {
+      server.clientDisconnected(connection);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A thread that owns one selector and services every connection
+   * registered with it.
+   */
+  final class EventLoop implements Runnable
+  {
+    final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException
+    {
+      selector = Selector.open();
+      thread = new Thread(this, name);
+    }
+
+    void start()
+    {
+      thread.start();
+    }
+
+    /**
+     * Runs a task on this loop's thread.
+     */
+    void execute(Runnable task)
+    {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    /**
+     * Wakes the selector so interest changes made from another thread
+     * take effect.
+     */
+    void wakeupIfOutside()
+    {
+      if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    void shutdown()
+    {
+      running = false;
+      selector.wakeup();
+    }
+
+    public void run()
+    {
+      while (running)
+      {
+        try
+        {
+          selector.select();
+        }
+        catch (IOException e)
+        {
+          server.getLog().warn("[Server] Selector failed: " + e.getMessage());
+          break;
+        }
+
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+          task.run();
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext())
+        {
+          SelectionKey key = it.next();
+          it.remove();
+          NioConnection connection = (NioConnection) key.attachment();
+          try
+          {
+            if (key.isValid() && key.isReadable()) connection.onReadable(scratch);
+            if (key.isValid() && key.isWritable()) connection.onWritable();
+          }
+          catch (Exception e)
+          {
+            connection.closeNow();
+          }
+        }
+      }
+
+      for (SelectionKey key : selector.keys())
+      {
+        ((NioConnection) key.attachment()).closeNow();
+      }
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+}
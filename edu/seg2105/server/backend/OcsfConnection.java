@@ -0,0 +1,124 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import edu.seg2105.client.common.ChatFrame;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Adapts an OCSF ConnectionToClient to the ClientConnection interface.
+ * The address is captured up front because OCSF drops the socket before
+ * clientDisconnected runs.  Sends go through an OutboundQueue so a slow
+ * client never blocks the thread that is sending to it.
+ *
+ * <p>A broadcast is serialized once per client here, by OCSF's own
+ * ObjectOutputStream, which it does not expose.  Only the NIO and
+ * threaded engines share one SerializedStringCodec encoding between
+ * clients; FanOutBenchmark measures the difference.
+ */
+class OcsfConnection implements ClientConnection
+{
+  private final ConnectionToClient client;
+  private final InetAddress address;
+  private final OutboundQueue outbound;
+  private volatile Session session;
+
+  OcsfConnection(ConnectionToClient client, int capacity, OutboundQueue.Overflow overflow)
+  {
+    this.client = client;
+    this.address = client.getInetAddress();
+    this.outbound = new OutboundQueue(new OutboundQueue.Sink() {
+      public void write(Object msg) throws IOException
+      {
+        client.sendToClient(msg);
+      }
+
+      public void closeNow()
+      {
+        try
+        {
+          client.close();
+        }
+        catch (IOException ignored) {}
+      }
+    }, capacity, overflow);
+  }
+
+  ConnectionToClient getConnectionToClient()
+  {
+    return client;
+  }
+
+  /**
+   * Forgets queued messages once OCSF has closed the connection itself.
+   */
+  void discardOutbound()
+  {
+    outbound.discard();
+  }
+
+  /**
+   * OCSF only speaks the object-stream protocol, so a ChatFrame goes out
+   * as its text.
+   */
+  public void sendToClient(Object msg) throws IOException
+  {
+    outbound.offer(msg instanceof ChatFrame ? ((ChatFrame) msg).getText() : msg);
+  }
+
+  public void close() throws IOException
+  {
+    outbound.close();
+  }
+
+  public void closeNow()
+  {
+    outbound.discard();
+    try
+    {
+      client.close();
+    }
+    catch (IOException ignored) {}
+  }
+
+  public void setInfo(String infoType, Object info)
+  {
+    client.setInfo(infoType, info);
+  }
+
+  public Object getInfo(String infoType)
+  {
+    return client.getInfo(infoType);
+  }
+
+  public void setSession(Session session)
+  {
+    this.session = session;
+  }
+
+  public Session getSession()
+  {
+    return session;
+  }
+
+  public InetAddress getInetAddress()
+  {
+    return address;
+  }
+
+  public int getOutboundDepth()
+  {
+    return outbound.depth();
+  }
+
+  public long getDroppedMessages()
+  {
+    return outbound.dropped();
+  }
+
+  public String toString()
+  {
+    return client.toString();
+  }
+}
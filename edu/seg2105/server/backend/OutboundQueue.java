@@ -0,0 +1,264 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of messages waiting to be written to one client over a
+ * blocking stream.  Senders only enqueue; a writer borrowed from a shared
+ * pool drains the queue, so one stalled receiver ties up its own writer
+ * and never the thread that is broadcasting.
+ *
+ * <p>When the queue is full the overflow policy decides what happens to
+ * the new message.  The NIO engine queues raw buffers instead and applies
+ * the same policies in NioConnection.
+ */
+class OutboundQueue
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of messages a client may have waiting.
+   */
+  static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * What to do with a message for a client whose queue is full.
+   */
+  enum Overflow
+  {
+    /** Discard the oldest waiting message to make room. */
+    DROP_OLDEST,
+    /** Discard the new message. */
+    DROP_NEWEST,
+    /** Disconnect the slow client. */
+    DISCONNECT;
+
+    /**
+     * Parses the command-line spelling, e.g. "drop-oldest".
+     *
+     * @throws IllegalArgumentException for an unknown name.
+     */
+    static Overflow parse(String name)
+    {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+
+    public String toString()
+    {
+      return name().toLowerCase().replace('_', '-');
+    }
+  }
+
+  /**
+   * Where queued messages end up.
+   */
+  interface Sink
+  {
+    /**
+     * Writes one message, blocking until the stream takes it.
+     */
+    void write(Object msg) throws IOException;
+
+    /**
+     * Closes the connection right away.
+     */
+    void closeNow();
+  }
+
+  /**
+   * The writers shared by every queue.  Virtual threads when the JVM has
+   * them, since a stalled client parks its writer for as long as it
+   * stalls; otherwise a cached pool of daemon threads.
+   */
+  private static final ExecutorService WRITERS = Executors.newCachedThreadPool(writerThreads());
+
+  //Instance variables **********************************************
+
+  private final Sink sink;
+  private final int capacity;
+  private final Overflow overflow;
+
+  private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+  private boolean draining = false;
+  private boolean closeRequested = false;
+  private boolean closed = false;
+  private final AtomicLong dropped = new AtomicLong();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param sink Receives the messages in order.
+   * @param capacity How many messages may wait before overflow applies.
+   * @param overflow The overflow policy.
+   */
+  OutboundQueue(Sink sink, int capacity, Overflow overflow)
+  {
+    this.sink = sink;
+    this.capacity = Math.max(1, capacity);
+    this.overflow = overflow;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a message for the writer.
+   *
+   * @throws SocketException if the connection is closed or closing.
+   */
+  void offer(Object msg) throws IOException
+  {
+    boolean schedule = false;
+    boolean disconnect = false;
+    synchronized (this)
+    {
+      if (closed || closeRequested)
+        throw new SocketException("socket does not exist");
+      if (queue.size() >= capacity)
+      {
+        dropped.incrementAndGet();
+        switch (overflow)
+        {
+          case DROP_OLDEST:
+            queue.poll();
+            queue.add(msg);
+            break;
+          case DROP_NEWEST:
+            break;
+          case DISCONNECT:
+            closed = true;
+            queue.clear();
+            disconnect = true;
+            break;
+        }
+      }
+      else
+      {
+        queue.add(msg);
+      }
+      if (!disconnect && !draining)
+      {
+        draining = true;
+        schedule = true;
+      }
+    }
+    if (disconnect) sink.closeNow();
+    else if (schedule) WRITERS.execute(this::drain);
+  }
+
+  private void drain()
+  {
+    while (true)
+    {
+      Object msg;
+      boolean closeNow = false;
+      synchronized (this)
+      {
+        msg = queue.poll();
+        if (msg == null)
+        {
+          draining = false;
+          if (closeRequested && !closed)
+          {
+            closed = true;
+            closeNow = true;
+          }
+        }
+      }
+      if (msg == null)
+      {
+        if (closeNow) sink.closeNow();
+        return;
+      }
+      try
+      {
+        sink.write(msg);
+      }
+      catch (IOException | RuntimeException e)
+      {
+        // OCSF's sendToClient can also throw a NullPointerException when
+        // the client's reader closes the streams in the middle of a write
+        boolean wasClosed;
+        synchronized (this)
+        {
+          wasClosed = closed;
+          closed = true;
+          draining = false;
+          queue.clear();
+        }
+        if (!wasClosed) sink.closeNow();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Closes the connection once every queued message has been written.
+   */
+  void close()
+  {
+    synchronized (this)
+    {
+      if (closed || closeRequested) return;
+      if (draining || !queue.isEmpty())
+      {
+        closeRequested = true;
+        return;
+      }
+      closed = true;
+    }
+    sink.closeNow();
+  }
+
+  /**
+   * Marks the queue closed after the connection went away by other means.
+   */
+  synchronized void discard()
+  {
+    closed = true;
+    queue.clear();
+  }
+
+  /**
+   * Returns the number of messages waiting.
+   */
+  synchronized int depth()
+  {
+    return queue.size();
+  }
+
+  /**
+   * Returns the number of messages dropped by the overflow policy.
+   */
+  long dropped()
+  {
+    return dropped.get();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Platform writers get their own top-level thread group.  A new thread
+   * otherwise joins its creator's group, and OCSF counts every thread in
+   * its client group as a ConnectionToClient.
+   */
+  private static ThreadFactory writerThreads()
+  {
+    ThreadFactory virtual = ThreadedServerEngine.virtualThreadFactory("outbound-writer-");
+    if (virtual != null) return virtual;
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (root.getParent() != null) root = root.getParent();
+    ThreadGroup group = new ThreadGroup(root, "outbound writers");
+    AtomicLong count = new AtomicLong();
+    return task -> {
+      Thread t = new Thread(group, task, "outbound-writer-" + count.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+}
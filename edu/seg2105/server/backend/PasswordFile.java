@@ -0,0 +1,254 @@
+package edu.seg2105.server.backend;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Passwords kept in a text file, one user per line, salted and hashed
+ * with PBKDF2-HMAC-SHA256:
+ * <pre>
+ *   alice:pbkdf2-sha256:600000:&lt;salt, base64&gt;:&lt;hash, base64&gt;
+ * </pre>
+ * Blank lines and lines starting with '#' are skipped.  The file is read
+ * again whenever it changes, so users can be added or removed while the
+ * server runs.  Add one, or change a password, with
+ * <pre>
+ *   java edu.seg2105.server.backend.PasswordFile users.txt alice
+ * </pre>
+ * and delete a user by deleting the line.
+ *
+ * <p>Each check costs as much as the hash was made to, about a quarter of
+ * a second of one core at the default iterations, which is what makes a
+ * stolen file slow to guess from.  An unknown id costs the same as a
+ * wrong password.
+ */
+public class PasswordFile implements Authenticator
+{
+  //Class variables *************************************************
+
+  /**
+   * PBKDF2 rounds for new entries; existing lines keep their own count.
+   */
+  public static final int DEFAULT_ITERATIONS = 600_000;
+
+  private static final String SCHEME = "pbkdf2-sha256";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+
+  //Instance variables **********************************************
+
+  private final Path file;
+  private volatile Map<String, Entry> entries = new HashMap<String, Entry>();
+  private FileTime loadedModified;   // guarded by this
+  private long loadedSize = -1;      // guarded by this
+
+  /**
+   * Hashed against when the id is unknown, so that takes as long as a
+   * wrong password.
+   */
+  private final Entry decoy = new Entry(DEFAULT_ITERATIONS, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+
+  //Constructors ****************************************************
+
+  /**
+   * @param file The password file.  It need not exist yet; until it
+   *   does, every login is refused.
+   */
+  public PasswordFile(Path file)
+  {
+    this.file = file;
+  }
+
+  //Instance methods ************************************************
+
+  public boolean verify(String loginId, String password) throws IOException
+  {
+    Entry entry = load().get(loginId);
+    boolean known = entry != null;
+    if (!known) entry = decoy;
+    byte[] hash = hash(password.toCharArray(), entry.salt, entry.iterations);
+    return MessageDigest.isEqual(hash, entry.hash) && known;
+  }
+
+  /**
+   * Adds a user, or changes the password of one already in the file, with
+   * a new salt.  The file is replaced in one step.
+   *
+   * @throws IllegalArgumentException if the id is empty or has a ':' or
+   *   white space in it.
+   */
+  public synchronized void put(String loginId, char[] password) throws IOException
+  {
+    if (loginId.isEmpty() || loginId.indexOf(':') >= 0 || !loginId.equals(loginId.replaceAll("\\s", "")))
+    {
+      throw new IllegalArgumentException("A login id cannot be empty or have ':' or spaces in it");
+    }
+    byte[] salt = new byte[SALT_BYTES];
+    new SecureRandom().nextBytes(salt);
+    Base64.Encoder b64 = Base64.getEncoder();
+    String line = loginId + ":" + SCHEME + ":" + DEFAULT_ITERATIONS + ":" + b64.encodeToString(salt) + ":"
+      + b64.encodeToString(hash(password, salt, DEFAULT_ITERATIONS));
+
+    List<String> lines = new ArrayList<String>();
+    boolean replaced = false;
+    if (Files.exists(file))
+    {
+      for (String old : Files.readAllLines(file, StandardCharsets.UTF_8))
+      {
+        if (old.startsWith(loginId + ":"))
+        {
+          if (!replaced) lines.add(line);
+          replaced = true;
+        }
+        else
+        {
+          lines.add(old);
+        }
+      }
+    }
+    if (!replaced) lines.add(line);
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(temp, lines, StandardCharsets.UTF_8);
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Reads the file again if its time or size changed since the last read.
+  private synchronized Map<String, Entry> load() throws IOException
+  {
+    FileTime modified;
+    long size;
+    try
+    {
+      modified = Files.getLastModifiedTime(file);
+      size = Files.size(file);
+    }
+    catch (NoSuchFileException e)
+    {
+      entries = new HashMap<String, Entry>();
+      loadedModified = null;
+      return entries;
+    }
+    if (modified.equals(loadedModified) && size == loadedSize) return entries;
+
+    Map<String, Entry> read = new HashMap<String, Entry>();
+    Base64.Decoder b64 = Base64.getDecoder();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+    {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] f = line.split(":");
+      try
+      {
+        if (f.length != 5 || !f[1].equals(SCHEME)) throw new IllegalArgumentException();
+        read.put(f[0], new Entry(Integer.parseInt(f[2]), b64.decode(f[3]), b64.decode(f[4])));
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IOException(file + " line " + lineNumber + " is not id:" + SCHEME + ":iterations:salt:hash");
+      }
+    }
+    entries = read;
+    loadedModified = modified;
+    loadedSize = size;
+    return read;
+  }
+
+  private static byte[] hash(char[] password, byte[] salt, int iterations)
+  {
+    PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+    try
+    {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IllegalStateException("PBKDF2WithHmacSHA256 is missing from this JVM", e);
+    }
+    finally
+    {
+      spec.clearPassword();
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Adds a user to a password file, or changes their password.
+   *
+   * @param args[0] The password file; made if missing.
+   * @param args[1] The login id.  The password is asked for, or read from
+   *          the first line of standard input when there is no console.
+   */
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 2)
+    {
+      System.out.println("Usage: java edu.seg2105.server.backend.PasswordFile <file> <login>");
+      System.exit(1);
+    }
+    char[] password;
+    Console console = System.console();
+    if (console != null)
+    {
+      password = console.readPassword("Password for %s: ", args[1]);
+    }
+    else
+    {
+      String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+      password = line == null ? null : line.toCharArray();
+    }
+    if (password == null || password.length == 0)
+    {
+      System.out.println("No password given; " + args[0] + " is unchanged.");
+      System.exit(1);
+    }
+    try
+    {
+      new PasswordFile(Paths.get(args[0])).put(args[1], password);
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.out.println(e.getMessage() + ".");
+      System.exit(1);
+    }
+    System.out.println("Saved the password for " + args[1] + " in " + args[0] + ".");
+  }
+
+  //Inner classes ***************************************************
+
+  private static final class Entry
+  {
+    final int iterations;
+    final byte[] salt;
+    final byte[] hash;
+
+    Entry(int iterations, byte[] salt, byte[] hash)
+    {
+      this.iterations = iterations;
+      this.salt = salt;
+      this.hash = hash;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package edu.seg2105.server.backend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Who is online, for the clients that ask.  A client that subscribes gets
+ * the whole roster once, then only what changed: ids that came online,
+ * went offline or are typing, gathered over a window and sent as one
+ * message to every subscriber.  A thousand clients reconnecting at once
+ * cost each subscriber a message or two instead of a thousand, and an id
+ * that drops and resumes within the window is not mentioned at all.
+ *
+ * <p>Logins and logouts only mark an id as touched.  When the window
+ * ends, each touched id is looked up where logins are kept, so the
+ * delta says what is true then, whatever order the events came in.  All
+ * sending happens on the presence thread: a new subscriber's snapshot
+ * goes out in the same pass as the delta it follows from, and both are
+ * encoded once however many clients they go to.
+ *
+ * <p>Every message is numbered: "#presence N = a b c" for a snapshot,
+ * "#presence N +d -b ~c" for a delta (d came online, b left, c is
+ * typing).  A client that sees a number it did not expect subscribes
+ * again.
+ */
+class Presence
+{
+  //Class variables *************************************************
+
+  /**
+   * How long changes are gathered before they are sent.
+   */
+  static final long DEFAULT_WINDOW_MILLIS = 250;
+
+  //Instance variables **********************************************
+
+  private final Predicate<String> online;
+  private final BiConsumer<List<ClientConnection>, ChatFrame> sender;
+  private final long windowMillis;
+
+  private final TreeSet<String> published = new TreeSet<String>();        // guarded by this
+  private final Set<String> touched = new LinkedHashSet<String>();        // guarded by this
+  private final Set<String> typing = new LinkedHashSet<String>();         // guarded by this
+  private final Set<ClientConnection> subscribers = new LinkedHashSet<ClientConnection>();  // guarded by this
+  private final Set<ClientConnection> joining = new LinkedHashSet<ClientConnection>();      // guarded by this
+  private long version = 0;                                               // guarded by this
+  private Thread flusher;                                                 // guarded by this
+
+  //Constructors ****************************************************
+
+  /**
+   * @param online Whether an id is logged in right now.
+   * @param sender Sends a frame to some clients.
+   * @param windowMillis How long changes are gathered before they are sent.
+   */
+  Presence(Predicate<String> online, BiConsumer<List<ClientConnection>, ChatFrame> sender, long windowMillis)
+  {
+    this.online = online;
+    this.sender = sender;
+    this.windowMillis = Math.max(1, windowMillis);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Notes that an id may have logged in or out.
+   */
+  synchronized void touch(String loginId)
+  {
+    touched.add(loginId);
+    wake();
+  }
+
+  /**
+   * Notes that an id is typing.
+   */
+  synchronized void typing(String loginId)
+  {
+    typing.add(loginId);
+    wake();
+  }
+
+  /**
+   * Sends a client the roster at the end of this window, then every delta.
+   * A client already subscribed gets the roster again.
+   */
+  synchronized void subscribe(ClientConnection client)
+  {
+    subscribers.remove(client);
+    joining.add(client);
+    wake();
+  }
+
+  /**
+   * Stops sending to a client, e.g. because it left.
+   */
+  synchronized void unsubscribe(ClientConnection client)
+  {
+    subscribers.remove(client);
+    joining.remove(client);
+  }
+
+  /**
+   * Returns up to limit ids online as of the last window, in order,
+   * starting with prefix, and how many more there are.
+   */
+  synchronized String who(String prefix, int limit)
+  {
+    Set<String> matching = prefix.isEmpty() ? published
+      : published.subSet(prefix, true, prefix + Character.MAX_VALUE, true);
+    StringBuilder s = new StringBuilder();
+    int shown = 0;
+    for (String id : matching)
+    {
+      if (shown == limit) break;
+      s.append(shown++ == 0 ? "" : ", ").append(id);
+    }
+    int total = matching.size();
+    if (total > shown) s.append(" and ").append(total - shown).append(" more");
+    return "Online" + (prefix.isEmpty() ? "" : " starting with " + prefix) + " (" + total + "): "
+      + (total == 0 ? "nobody" : s.toString());
+  }
+
+  synchronized int subscribers()
+  {
+    return subscribers.size() + joining.size();
+  }
+
+  // The thread starts with the first change and waits for the next one between windows.
+  private void wake()
+  {
+    if (flusher == null)
+    {
+      flusher = new Thread(this::run, "presence");
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+    notifyAll();
+  }
+
+  private void run()
+  {
+    while (true)
+    {
+      try
+      {
+        synchronized (this)
+        {
+          while (touched.isEmpty() && typing.isEmpty() && joining.isEmpty()) wait();
+        }
+        TimeUnit.MILLISECONDS.sleep(windowMillis);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      flush();
+    }
+  }
+
+  // One delta for those already subscribed, one snapshot for those who joined, sent outside the lock.
+  void flush()
+  {
+    ChatFrame delta = null;
+    ChatFrame snapshot = null;
+    List<ClientConnection> toDelta;
+    List<ClientConnection> toSnapshot;
+    synchronized (this)
+    {
+      StringBuilder changes = new StringBuilder();
+      for (String id : touched)
+      {
+        boolean now = online.test(id);
+        if (now && published.add(id)) changes.append(" +").append(id);
+        else if (!now && published.remove(id)) changes.append(" -").append(id);
+      }
+      for (String id : typing)
+      {
+        if (published.contains(id)) changes.append(" ~").append(id);
+      }
+      touched.clear();
+      typing.clear();
+      if (changes.length() > 0)
+      {
+        version++;
+        delta = new ChatFrame(ChatFrame.PRESENCE, ChatFrame.PRESENCE_TEXT + version + changes);
+      }
+      toDelta = delta == null ? List.of() : new ArrayList<ClientConnection>(subscribers);
+      toSnapshot = new ArrayList<ClientConnection>(joining);
+      if (!joining.isEmpty())
+      {
+        snapshot = new ChatFrame(ChatFrame.PRESENCE, ChatFrame.PRESENCE_TEXT + version + " ="
+          + (published.isEmpty() ? "" : " " + String.join(" ", published)));
+        subscribers.addAll(joining);
+        joining.clear();
+      }
+    }
+    if (!toDelta.isEmpty()) sender.accept(toDelta, delta);
+    if (!toSnapshot.isEmpty()) sender.accept(toSnapshot, snapshot);
+  }
+}
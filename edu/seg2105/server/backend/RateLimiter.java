@@ -0,0 +1,131 @@
+package edu.seg2105.server.backend;
+
+/**
+ * Admission control for messages from logged-in clients: token buckets
+ * on messages and UTF-8 bytes per second, for each login and for the
+ * whole server, plus a count of refusals that gets a client disconnected.
+ * Any limit may be off (null).  Checking a message reads the limits
+ * once and takes tokens with compare-and-set only, so it adds no lock to
+ * the message path; limits can be swapped while clients are sending.
+ */
+class RateLimiter
+{
+  //Class variables *************************************************
+
+  /**
+   * The window the disconnect threshold counts refusals over.
+   */
+  static final int STRIKE_WINDOW_SECONDS = 10;
+
+  //Instance variables **********************************************
+
+  private volatile TokenBucket.Limit userMessages;
+  private volatile TokenBucket.Limit userBytes;
+  private volatile TokenBucket.Limit globalMessages;
+  private volatile TokenBucket.Limit globalBytes;
+  private volatile TokenBucket.Limit strikes;   // refusals allowed before a disconnect
+
+  private final TokenBucket globalMessageBucket = new TokenBucket();
+  private final TokenBucket globalByteBucket = new TokenBucket();
+
+  //Instance methods ************************************************
+
+  /**
+   * Takes one message's tokens from the session's buckets and the
+   * server's.  If any bucket is empty the message is refused and the
+   * tokens already taken are given back.
+   *
+   * @param now System.nanoTime().
+   * @return null to let the message through, else which limit it hit.
+   */
+  String admit(Session session, String text, long now)
+  {
+    TokenBucket.Limit um = userMessages, ub = userBytes, gm = globalMessages, gb = globalBytes;
+    if (um == null && ub == null && gm == null && gb == null) return null;
+    long bytes = (ub != null || gb != null) ? ServerMetrics.utf8Length(text) : 0;
+
+    if (um != null && !session.messageBucket.tryTake(1, um, now)) return "per-user limit of " + um.format("messages");
+    if (ub != null && !session.byteBucket.tryTake(bytes, ub, now))
+    {
+      if (um != null) session.messageBucket.refund(1, um);
+      return "per-user limit of " + ub.format("bytes");
+    }
+    if (gm != null && !globalMessageBucket.tryTake(1, gm, now))
+    {
+      if (um != null) session.messageBucket.refund(1, um);
+      if (ub != null) session.byteBucket.refund(bytes, ub);
+      return "server limit of " + gm.format("messages");
+    }
+    if (gb != null && !globalByteBucket.tryTake(bytes, gb, now))
+    {
+      if (um != null) session.messageBucket.refund(1, um);
+      if (ub != null) session.byteBucket.refund(bytes, ub);
+      if (gm != null) globalMessageBucket.refund(1, gm);
+      return "server limit of " + gb.format("bytes");
+    }
+    return null;
+  }
+
+  /**
+   * Counts a refusal against the session.
+   *
+   * @return Whether the session has been refused too often and should be
+   *   disconnected.
+   */
+  boolean strike(Session session, long now)
+  {
+    TokenBucket.Limit s = strikes;
+    return s != null && !session.strikeBucket.tryTake(1, s, now);
+  }
+
+  // === Configuration ===
+
+  TokenBucket.Limit getUserMessages() { return userMessages; }
+  TokenBucket.Limit getUserBytes() { return userBytes; }
+  TokenBucket.Limit getGlobalMessages() { return globalMessages; }
+  TokenBucket.Limit getGlobalBytes() { return globalBytes; }
+
+  void setUserMessages(TokenBucket.Limit limit) { userMessages = limit; }
+  void setUserBytes(TokenBucket.Limit limit) { userBytes = limit; }
+  void setGlobalMessages(TokenBucket.Limit limit) { globalMessages = limit; }
+  void setGlobalBytes(TokenBucket.Limit limit) { globalBytes = limit; }
+
+  /**
+   * Returns how many refusals within STRIKE_WINDOW_SECONDS a client is
+   * allowed before it is disconnected, or 0 for no limit.
+   */
+  int getDisconnectAfter()
+  {
+    TokenBucket.Limit s = strikes;
+    return s == null ? 0 : (int) s.burst;
+  }
+
+  /**
+   * Disconnects clients refused more than this many times within
+   * STRIKE_WINDOW_SECONDS; 0 never disconnects.
+   */
+  void setDisconnectAfter(int refusals)
+  {
+    strikes = refusals <= 0 ? null
+      : new TokenBucket.Limit(refusals / (double) STRIKE_WINDOW_SECONDS, refusals);
+  }
+
+  /**
+   * Returns the limits for the server console.
+   */
+  String describe()
+  {
+    int after = getDisconnectAfter();
+    return "Rate limits:\n"
+      + "  user          " + orOff(userMessages, "messages") + "\n"
+      + "  user-bytes    " + orOff(userBytes, "bytes") + "\n"
+      + "  global        " + orOff(globalMessages, "messages") + "\n"
+      + "  global-bytes  " + orOff(globalBytes, "bytes") + "\n"
+      + "  disconnect    " + (after == 0 ? "never" : "after " + after + " refusals in " + STRIKE_WINDOW_SECONDS + "s");
+  }
+
+  private static String orOff(TokenBucket.Limit limit, String unit)
+  {
+    return limit == null ? "off" : limit.format(unit);
+  }
+}
@@ -0,0 +1,78 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events per second over the last minute.  Each second has a slot
+ * in a ring; the first event of a new second claims the slot and clears
+ * what the slot held a minute ago.
+ *
+ * <p>An event that races with the clearing can be lost from its second,
+ * never from the total.  That is close enough for a rate.
+ */
+class RateMeter
+{
+  //Class variables *************************************************
+
+  /**
+   * The longest window a rate can be averaged over, in seconds.
+   */
+  static final int WINDOW_SECONDS = 60;
+
+  private static final int SLOTS = WINDOW_SECONDS + 2;
+
+  //Instance variables **********************************************
+
+  private final long origin = System.nanoTime();
+  private final AtomicLongArray seconds = new AtomicLongArray(SLOTS); // 0: never used
+  private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+  private final LongAdder total = new LongAdder();
+
+  //Instance methods ************************************************
+
+  /**
+   * Counts n events now.
+   */
+  void mark(long n)
+  {
+    long second = currentSecond();
+    int slot = (int) (second % SLOTS);
+    long stamp = seconds.get(slot);
+    if (stamp != second && seconds.compareAndSet(slot, stamp, second))
+    {
+      counts.set(slot, 0);
+    }
+    counts.addAndGet(slot, n);
+    total.add(n);
+  }
+
+  /**
+   * Returns the events per second averaged over the last completed
+   * seconds, up to WINDOW_SECONDS of them.
+   */
+  double perSecond(int window)
+  {
+    int span = Math.max(1, Math.min(window, WINDOW_SECONDS));
+    long now = currentSecond();
+    long events = 0;
+    for (long s = now - span; s < now; s++)
+    {
+      if (s < 1) continue;
+      int slot = (int) (s % SLOTS);
+      if (seconds.get(slot) == s) events += counts.get(slot);
+    }
+    return (double) events / span;
+  }
+
+  long total()
+  {
+    return total.sum();
+  }
+
+  // Seconds since the meter was made, from 1 so that 0 marks an unused slot.
+  private long currentSecond()
+  {
+    return (System.nanoTime() - origin) / 1_000_000_000L + 1;
+  }
+}
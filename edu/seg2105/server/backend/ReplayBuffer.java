@@ -0,0 +1,105 @@
+package edu.seg2105.server.backend;
+
+import java.util.function.Consumer;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * The last messages sent to everyone, with their sequence numbers, so a
+ * client that reconnects can be sent just the ones it missed.  A fixed
+ * ring: adding past capacity overwrites the oldest.
+ *
+ * <p>EchoServer holds this object's lock while it numbers, records and
+ * sends a broadcast, and while it replays to a resuming client, so a
+ * replay and live messages can never interleave.
+ */
+class ReplayBuffer
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of messages kept.
+   */
+  static final int DEFAULT_CAPACITY = 1024;
+
+  //Instance variables **********************************************
+
+  private final ChatFrame[] ring;
+  private int oldest = 0;   // index of the oldest frame
+  private int count = 0;
+  private long nextSeq = 0;
+
+  //Constructors ****************************************************
+
+  ReplayBuffer(int capacity)
+  {
+    ring = new ChatFrame[Math.max(1, capacity)];
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns the number the next message gets when nothing else numbers
+   * them.
+   */
+  synchronized long nextSeq()
+  {
+    return nextSeq;
+  }
+
+  /**
+   * Starts numbering after an existing sequence, e.g. the history log's.
+   */
+  synchronized void continueFrom(long next)
+  {
+    nextSeq = Math.max(nextSeq, next);
+  }
+
+  /**
+   * Keeps a numbered frame.  Numbers must increase.
+   */
+  synchronized void add(ChatFrame frame)
+  {
+    int slot = (oldest + count) % ring.length;
+    ring[slot] = frame;
+    if (count < ring.length) count++;
+    else oldest = (oldest + 1) % ring.length;
+    nextSeq = frame.getSeq() + 1;
+  }
+
+  /**
+   * Returns the number of the oldest message still here, or nextSeq() if
+   * there is none.
+   */
+  synchronized long oldestSeq()
+  {
+    return count == 0 ? nextSeq : ring[oldest].getSeq();
+  }
+
+  /**
+   * Returns whether every message from a sequence number on is still
+   * here.
+   */
+  synchronized boolean covers(long from)
+  {
+    return from >= oldestSeq();
+  }
+
+  /**
+   * Hands every kept frame numbered from on to the action, oldest first.
+   *
+   * @return How many frames were handed over.
+   */
+  synchronized int replay(long from, Consumer<ChatFrame> action)
+  {
+    int replayed = 0;
+    for (int i = 0; i < count; i++)
+    {
+      ChatFrame frame = ring[(oldest + i) % ring.length];
+      if (frame.getSeq() < from) continue;
+      action.accept(frame);
+      replayed++;
+    }
+    return replayed;
+  }
+}
@@ -0,0 +1,272 @@
+package edu.seg2105.server.backend;
+
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the subset of the Java object serialization stream
+ * format that OCSF clients produce when they send Strings.  This lets the
+ * NIO engine talk to an unmodified ChatClient without wrapping each socket
+ * in a blocking ObjectInputStream.
+ *
+ * <p>Decoding is incremental: each connection keeps one decoder and feeds
+ * it whatever bytes have arrived.  Incomplete objects are left in the
+ * buffer until the rest of their bytes show up.
+ */
+class SerializedStringCodec
+{
+  //Class variables *************************************************
+
+  static final short STREAM_MAGIC = (short) 0xaced;
+  static final short STREAM_VERSION = 5;
+
+  static final byte TC_NULL = (byte) 0x70;
+  static final byte TC_REFERENCE = (byte) 0x71;
+  static final byte TC_STRING = (byte) 0x74;
+  static final byte TC_RESET = (byte) 0x79;
+  static final byte TC_LONGSTRING = (byte) 0x7c;
+
+  static final int BASE_WIRE_HANDLE = 0x7e0000;
+
+  /**
+   * The largest string, in encoded bytes, a client may send.
+   */
+  static final int MAX_STRING_BYTES = 1 << 24;
+
+  /**
+   * The stream header every ObjectInputStream expects before any object.
+   */
+  static final byte[] STREAM_HEADER = {
+    (byte) 0xac, (byte) 0xed, 0x00, 0x05
+  };
+
+  //Instance variables **********************************************
+
+  private boolean headerRead = false;
+  private final List<Object> handles = new ArrayList<Object>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Decodes every complete object in the buffer.  On return the buffer's
+   * position is just past the last complete object.
+   *
+   * @param in A buffer in read mode.
+   * @param out Receives the decoded messages, in order.
+   * @throws StreamCorruptedException if the client sent something other
+   *   than Strings.
+   */
+  void decode(ByteBuffer in, List<Object> out) throws StreamCorruptedException
+  {
+    if (!headerRead)
+    {
+      if (in.remaining() < 4) return;
+      if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION)
+        throw new StreamCorruptedException("invalid stream header");
+      headerRead = true;
+    }
+
+    while (in.hasRemaining())
+    {
+      int start = in.position();
+      byte tc = in.get();
+      if (tc == TC_RESET)
+      {
+        handles.clear();
+        continue;
+      }
+      if (tc == TC_NULL)
+      {
+        out.add(null);
+        continue;
+      }
+      if (tc == TC_REFERENCE)
+      {
+        if (in.remaining() < 4)
+        {
+          in.position(start);
+          return;
+        }
+        int index = in.getInt() - BASE_WIRE_HANDLE;
+        if (index < 0 || index >= handles.size())
+          throw new StreamCorruptedException("invalid handle");
+        out.add(handles.get(index));
+        continue;
+      }
+
+      long length;
+      if (tc == TC_STRING)
+      {
+        if (in.remaining() < 2)
+        {
+          in.position(start);
+          return;
+        }
+        length = in.getShort() & 0xffff;
+      }
+      else if (tc == TC_LONGSTRING)
+      {
+        if (in.remaining() < 8)
+        {
+          in.position(start);
+          return;
+        }
+        length = in.getLong();
+      }
+      else
+      {
+        throw new StreamCorruptedException(
+          String.format("unsupported type code: %02X", tc));
+      }
+
+      if (length < 0 || length > MAX_STRING_BYTES)
+        throw new StreamCorruptedException("string too long: " + length);
+      if (in.remaining() < length)
+      {
+        in.position(start);
+        return;
+      }
+      String s;
+      try
+      {
+        s = readModifiedUtf8(in, (int) length);
+      }
+      catch (UTFDataFormatException e)
+      {
+        throw new StreamCorruptedException(e.getMessage());
+      }
+      handles.add(s);
+      out.add(s);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Encodes a String as one self-contained serialized object followed by
+   * a reset, so the receiver never accumulates back-reference handles and
+   * the same bytes are valid on any connection.
+   *
+   * @param s The string to encode.
+   * @return A heap buffer in read mode.
+   */
+  static ByteBuffer encode(String s)
+  {
+    return encode(s, false);
+  }
+
+  /**
+   * Encodes a String as described in encode(String).  A broadcast frame
+   * should be direct: it is written to many sockets, and a direct buffer
+   * spares the JDK a copy into a temporary native buffer on every write.
+   *
+   * @param s The string to encode.
+   * @param direct Whether to allocate a direct buffer.
+   * @return A buffer in read mode.
+   */
+  static ByteBuffer encode(String s, boolean direct)
+  {
+    int utfLength = modifiedUtf8Length(s);
+    boolean isLong = utfLength > 0xffff;
+    int size = (isLong ? 9 : 3) + utfLength + 1;
+    ByteBuffer out = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    if (isLong)
+    {
+      out.put(TC_LONGSTRING);
+      out.putLong(utfLength);
+    }
+    else
+    {
+      out.put(TC_STRING);
+      out.putShort((short) utfLength);
+    }
+    writeModifiedUtf8(s, out);
+    out.put(TC_RESET);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Returns the number of bytes the string takes in modified UTF-8, the
+   * encoding DataOutput.writeUTF and object serialization use.
+   */
+  static int modifiedUtf8Length(String s)
+  {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f) length += 1;
+      else if (c <= 0x07ff) length += 2;
+      else length += 3;
+    }
+    return length;
+  }
+
+  private static void writeModifiedUtf8(String s, ByteBuffer out)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f)
+      {
+        out.put((byte) c);
+      }
+      else if (c <= 0x07ff)
+      {
+        out.put((byte) (0xc0 | ((c >> 6) & 0x1f)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      }
+      else
+      {
+        out.put((byte) (0xe0 | ((c >> 12) & 0x0f)));
+        out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  private static String readModifiedUtf8(ByteBuffer in, int length)
+    throws UTFDataFormatException
+  {
+    char[] chars = new char[length];
+    int count = 0;
+    int end = in.position() + length;
+    while (in.position() < end)
+    {
+      int a = in.get() & 0xff;
+      if (a < 0x80)
+      {
+        chars[count++] = (char) a;
+      }
+      else if ((a & 0xe0) == 0xc0)
+      {
+        if (in.position() + 1 > end)
+          throw new UTFDataFormatException("truncated character");
+        int b = in.get() & 0xff;
+        if ((b & 0xc0) != 0x80)
+          throw new UTFDataFormatException("malformed character");
+        chars[count++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+      }
+      else if ((a & 0xf0) == 0xe0)
+      {
+        if (in.position() + 2 > end)
+          throw new UTFDataFormatException("truncated character");
+        int b = in.get() & 0xff;
+        int c = in.get() & 0xff;
+        if ((b & 0xc0) != 0x80 || (c & 0xc0) != 0x80)
+          throw new UTFDataFormatException("malformed character");
+        chars[count++] =
+          (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+      }
+      else
+      {
+        throw new UTFDataFormatException("malformed character");
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
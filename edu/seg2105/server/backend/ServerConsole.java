@@ -13,6 +13,9 @@ import edu.seg2105.client.common.ChatIF;
       * accept() just loops, grabbing one line at a time from the server console.
       * If a line starts with '#', I figure it's a server command, and I pass it on to
         server.handleServerCommand(...). (Like: #stop, #start, #close, #setport 6000, #getport, #quit)
+      * #close and #quit don't just cut everyone off: clients get a "going away" notice, whatever is queued for them
+        is written, and then they reconnect (#close [seconds|now] [host:port] says how long and where to).
+        #setport while listening moves everyone over to the new port the same way.
       * If it's not a command, then some human server operator typed a normal message. I send that using
         server.handleMessageFromServerUI(...), which shows it on the server screen and sends it to all connected clients,
         tagged with SERVER MSG&gt; (the EchoServer code adds that tag).
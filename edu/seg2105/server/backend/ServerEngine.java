@@ -0,0 +1,70 @@
+package edu.seg2105.server.backend;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A transport that accepts client sockets for EchoServer and feeds their
+ * messages into the server's callbacks.  The OCSF engine uses one blocking
+ * thread per client; the NIO engine multiplexes all clients over a few
+ * selector threads.
+ */
+public interface ServerEngine
+{
+  /**
+   * Starts accepting new clients.  Does nothing if already listening.
+   */
+  void listen() throws IOException;
+
+  /**
+   * Stops accepting new clients.  Connected clients stay connected.
+   */
+  void stopListening();
+
+  /**
+   * Starts accepting new clients on another port instead.  The new port
+   * is open before the old one closes, so no client trying to connect is
+   * refused in between, and connected clients stay connected.  If the new
+   * port cannot be opened the engine goes on listening where it was.
+   *
+   * @param port The port to listen on from now on.
+   * @throws UnsupportedOperationException if the engine can only change
+   *   port while closed.
+   */
+  void moveTo(int port) throws IOException;
+
+  /**
+   * Stops listening and disconnects every client.
+   */
+  void close() throws IOException;
+
+  boolean isListening();
+
+  int getPort();
+
+  void setPort(int port);
+
+  int getNumberOfClients();
+
+  /**
+   * Returns a snapshot of the connected clients.
+   */
+  List<ClientConnection> getClientConnections();
+
+  /**
+   * Sends a message to every connected client.
+   *
+   * @param msg The message to send.
+   */
+  void sendToAllClients(Object msg);
+
+  /**
+   * Sends a message to some of this engine's clients.  Costs the same per
+   * recipient as sendToAllClients, so a message for a few clients does
+   * not pay for the rest.
+   *
+   * @param recipients Connections accepted by this engine.
+   * @param msg The message to send.
+   */
+  void sendToClients(Iterable<? extends ClientConnection> recipients, Object msg);
+}
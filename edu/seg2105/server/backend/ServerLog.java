@@ -0,0 +1,330 @@
+package edu.seg2105.server.backend;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's event log.  Client and engine threads only put lines into
+ * a bounded ring buffer; one background thread takes them out in batches
+ * and writes each batch to the console or a file with a single write and
+ * flush.  A full buffer drops the line and counts it instead of making
+ * the caller wait, so a slow terminal can no longer hold up the server.
+ *
+ * <p>Console lines are printed as they always were; file lines also get
+ * a timestamp and the level.
+ */
+class ServerLog
+{
+  //Class variables *************************************************
+
+  /**
+   * How important a line is.  Lines below the log's level are skipped.
+   */
+  enum Level
+  {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    /**
+     * Parses the command-line spelling, e.g. "warn".
+     *
+     * @throws IllegalArgumentException for an unknown name.
+     */
+    static Level parse(String name)
+    {
+      return valueOf(name.trim().toUpperCase());
+    }
+
+    public String toString()
+    {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * The default number of lines the buffer holds.
+   */
+  static final int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The most lines written with one write.
+   */
+  private static final int BATCH = 256;
+
+  private static final DateTimeFormatter TIMESTAMP =
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  //Instance variables **********************************************
+
+  private volatile Level level = Level.INFO;
+  private final Ring ring;
+  private final AtomicLong dropped = new AtomicLong();
+  private long droppedReported = 0; // drainer only
+
+  private volatile Writer file; // null: write to System.out
+  private final Thread drainer;
+  private volatile boolean drainerParked = false;
+  private volatile boolean stopping = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates the log and starts its writer thread.
+   *
+   * @param capacity How many lines may wait; rounded up to a power of two.
+   */
+  ServerLog(int capacity)
+  {
+    ring = new Ring(capacity);
+    // a top-level group, or OCSF would count the thread as a client
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (root.getParent() != null) root = root.getParent();
+    drainer = new Thread(root, this::drain, "server-log");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  //Instance methods ************************************************
+
+  // === Logging ===
+
+  boolean enabled(Level at)
+  {
+    return at.compareTo(level) >= 0 && at != Level.OFF;
+  }
+
+  void debug(String line) { log(Level.DEBUG, line); }
+  void info(String line) { log(Level.INFO, line); }
+  void warn(String line) { log(Level.WARN, line); }
+  void error(String line) { log(Level.ERROR, line); }
+
+  /**
+   * Queues a line for the writer thread.  Never blocks; if the buffer is
+   * full the line is dropped and counted.
+   */
+  void log(Level at, String line)
+  {
+    if (!enabled(at)) return;
+    if (!ring.offer(new Entry(at, System.currentTimeMillis(), line)))
+    {
+      dropped.incrementAndGet();
+      return;
+    }
+    if (drainerParked) LockSupport.unpark(drainer);
+  }
+
+  // === Configuration ===
+
+  Level getLevel()
+  {
+    return level;
+  }
+
+  void setLevel(Level level)
+  {
+    this.level = level;
+  }
+
+  /**
+   * Appends to a file from now on instead of printing to the console.
+   */
+  void logToFile(String path) throws IOException
+  {
+    file = new BufferedWriter(new OutputStreamWriter(
+      new FileOutputStream(path, true), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns how many lines were dropped because the buffer was full.
+   */
+  long getDropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Writes out everything queued so far and stops the writer thread.
+   * Lines logged afterwards are never written.
+   */
+  void close()
+  {
+    stopping = true;
+    LockSupport.unpark(drainer);
+    try
+    {
+      drainer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // === Writer thread ===
+
+  private void drain()
+  {
+    StringBuilder batch = new StringBuilder(4096);
+    while (true)
+    {
+      int lines = 0;
+      Entry e;
+      Writer out = file;
+      while (lines < BATCH && (e = ring.poll()) != null)
+      {
+        format(batch, e, out != null);
+        lines++;
+      }
+      long drops = dropped.get();
+      if (drops != droppedReported)
+      {
+        format(batch, new Entry(Level.WARN, System.currentTimeMillis(),
+          "[Server] Log buffer full; dropped " + (drops - droppedReported) + " lines."), out != null);
+        droppedReported = drops;
+        lines++;
+      }
+      if (lines > 0)
+      {
+        write(out, batch);
+        batch.setLength(0);
+        continue;
+      }
+      if (stopping) break;
+      drainerParked = true;
+      if (ring.isEmpty()) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+      drainerParked = false;
+    }
+    Writer out = file;
+    if (out != null)
+    {
+      try
+      {
+        out.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  private static void format(StringBuilder batch, Entry e, boolean toFile)
+  {
+    if (toFile)
+    {
+      TIMESTAMP.formatTo(Instant.ofEpochMilli(e.time), batch);
+      batch.append(' ').append(e.level.name()).append(' ');
+    }
+    batch.append(e.line).append(System.lineSeparator());
+  }
+
+  private static void write(Writer out, StringBuilder batch)
+  {
+    if (out == null)
+    {
+      PrintStream console = System.out;
+      console.print(batch);
+      console.flush();
+      return;
+    }
+    try
+    {
+      out.append(batch);
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      System.err.println("[Server] Log file write failed: " + e.getMessage());
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  private static final class Entry
+  {
+    final Level level;
+    final long time;
+    final String line;
+
+    Entry(Level level, long time, String line)
+    {
+      this.level = level;
+      this.time = time;
+      this.line = line;
+    }
+  }
+
+  /**
+   * A bounded ring for many producers and one consumer.  Each slot has a
+   * sequence number saying whose turn it is: a producer claims a position
+   * with one compare-and-set and publishes by bumping the slot's sequence,
+   * and the consumer frees the slot by moving the sequence one lap ahead.
+   * Nobody waits on a lock.
+   */
+  private static final class Ring
+  {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // consumer only
+
+    Ring(int capacity)
+    {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      mask = size - 1;
+      sequences = new AtomicLongArray(size);
+      slots = new AtomicReferenceArray<Entry>(size);
+      for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+
+    boolean offer(Entry e)
+    {
+      long pos = tail.get();
+      while (true)
+      {
+        int i = (int) (pos & mask);
+        long diff = sequences.get(i) - pos;
+        if (diff == 0)
+        {
+          if (tail.compareAndSet(pos, pos + 1))
+          {
+            slots.set(i, e);
+            sequences.set(i, pos + 1);
+            return true;
+          }
+        }
+        else if (diff < 0)
+        {
+          return false; // a full lap behind the consumer
+        }
+        pos = tail.get();
+      }
+    }
+
+    Entry poll()
+    {
+      int i = (int) (head & mask);
+      if (sequences.get(i) != head + 1) return null;
+      Entry e = slots.get(i);
+      slots.set(i, null);
+      sequences.set(i, head + mask + 1);
+      head++;
+      return e;
+    }
+
+    boolean isEmpty()
+    {
+      return sequences.get((int) (head & mask)) != head + 1;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package edu.seg2105.server.backend;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.seg2105.client.common.LatencyHistogram;
+
+/**
+ * In-process metrics for EchoServer: client gauges, message and byte
+ * rates, and a histogram of how long a chat message takes from arriving
+ * at handleMessageFromClient until every recipient's copy has been handed
+ * to its outbound queue.
+ *
+ * <p>Byte counts are UTF-8 payload bytes, the same for every engine and
+ * protocol; framing and serialization overhead is not included.  An
+ * outgoing message counts once per recipient.
+ *
+ * <p>#stats prints a snapshot, and register() publishes the same numbers
+ * over JMX.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean
+{
+  //Class variables *************************************************
+
+  /**
+   * The JMX name the metrics are registered under.
+   */
+  public static final String OBJECT_NAME = "edu.seg2105:type=ServerMetrics";
+
+  //Instance variables **********************************************
+
+  private final IntSupplier connected;
+  private final IntSupplier loggedIn;
+  private final long startedAt = System.nanoTime();
+
+  private final RateMeter messagesIn = new RateMeter();
+  private final RateMeter messagesOut = new RateMeter();
+  private final RateMeter bytesIn = new RateMeter();
+  private final RateMeter bytesOut = new RateMeter();
+  private final RateMeter rateLimited = new RateMeter();
+  private final LatencyHistogram delivery = new LatencyHistogram();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param connected Reads the number of connected clients.
+   * @param loggedIn Reads the number of logged-in clients.
+   */
+  ServerMetrics(IntSupplier connected, IntSupplier loggedIn)
+  {
+    this.connected = connected;
+    this.loggedIn = loggedIn;
+  }
+
+  //Instance methods ************************************************
+
+  // === Recording ===
+
+  /**
+   * Counts one message from a client.
+   */
+  void received(String text)
+  {
+    messagesIn.mark(1);
+    bytesIn.mark(utf8Length(text));
+  }
+
+  /**
+   * Counts a message sent to some clients.
+   *
+   * @param receivedAt System.nanoTime() when the message that caused it
+   *   arrived, or 0 for a message the server made up itself.
+   */
+  void delivered(int recipients, String text, long receivedAt)
+  {
+    messagesOut.mark(recipients);
+    bytesOut.mark((long) recipients * utf8Length(text));
+    if (receivedAt != 0) delivery.record(System.nanoTime() - receivedAt);
+  }
+
+  /**
+   * Counts a message refused by the rate limiter.
+   */
+  void rateLimited()
+  {
+    rateLimited.mark(1);
+  }
+
+  // === Reporting ===
+
+  /**
+   * Returns a readable snapshot for the server console.
+   */
+  public String snapshot()
+  {
+    StringBuilder s = new StringBuilder();
+    s.append("Server stats (up ").append(formatUptime(getUptimeSeconds())).append("):\n");
+    s.append("  clients   connected=").append(getConnectedClients())
+      .append("  logged-in=").append(getLoggedInClients()).append('\n');
+    s.append("  messages  in ").append(rates(messagesIn))
+      .append("\n            out ").append(rates(messagesOut)).append('\n');
+    s.append("  bytes     in ").append(rates(bytesIn))
+      .append("\n            out ").append(rates(bytesOut)).append('\n');
+    s.append("  limited   ").append(rates(rateLimited)).append('\n');
+    s.append("  delivery  n=").append(delivery.count());
+    if (delivery.count() > 0)
+    {
+      s.append("  mean=").append(micros(delivery.mean()))
+        .append("  p50=").append(micros(delivery.percentile(0.50)))
+        .append("  p90=").append(micros(delivery.percentile(0.90)))
+        .append("  p99=").append(micros(delivery.percentile(0.99)))
+        .append("  p99.9=").append(micros(delivery.percentile(0.999)))
+        .append("  max=").append(micros(delivery.max()));
+    }
+    return s.toString();
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server under
+   * OBJECT_NAME, replacing whatever was registered there before.
+   */
+  public void register() throws JMException
+  {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if (server.isRegistered(name)) server.unregisterMBean(name);
+    server.registerMBean(this, name);
+  }
+
+  // === ServerMetricsMXBean ===
+
+  public int getConnectedClients() { return connected.getAsInt(); }
+  public int getLoggedInClients() { return loggedIn.getAsInt(); }
+  public double getMessagesInPerSecond() { return messagesIn.perSecond(1); }
+  public double getMessagesOutPerSecond() { return messagesOut.perSecond(1); }
+  public double getBytesInPerSecond() { return bytesIn.perSecond(1); }
+  public double getBytesOutPerSecond() { return bytesOut.perSecond(1); }
+  public double getMessagesInPerSecondLastMinute() { return messagesIn.perSecond(RateMeter.WINDOW_SECONDS); }
+  public double getMessagesOutPerSecondLastMinute() { return messagesOut.perSecond(RateMeter.WINDOW_SECONDS); }
+  public long getMessagesInTotal() { return messagesIn.total(); }
+  public long getMessagesOutTotal() { return messagesOut.total(); }
+  public long getBytesInTotal() { return bytesIn.total(); }
+  public long getBytesOutTotal() { return bytesOut.total(); }
+  public double getRateLimitedPerSecond() { return rateLimited.perSecond(1); }
+  public long getRateLimitedTotal() { return rateLimited.total(); }
+  public long getDeliveryCount() { return delivery.count(); }
+  public double getDeliveryMeanMicros() { return delivery.mean() / 1000.0; }
+  public double getDeliveryP50Micros() { return delivery.percentile(0.50) / 1000.0; }
+  public double getDeliveryP90Micros() { return delivery.percentile(0.90) / 1000.0; }
+  public double getDeliveryP99Micros() { return delivery.percentile(0.99) / 1000.0; }
+  public double getDeliveryP999Micros() { return delivery.percentile(0.999) / 1000.0; }
+  public double getDeliveryMaxMicros() { return delivery.max() / 1000.0; }
+
+  public long getUptimeSeconds()
+  {
+    return (System.nanoTime() - startedAt) / 1_000_000_000L;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Counts the bytes a String takes in UTF-8 without encoding it.
+   */
+  static int utf8Length(String s)
+  {
+    int n = s.length();
+    int bytes = n;
+    for (int i = 0; i < n; i++)
+    {
+      char c = s.charAt(i);
+      if (c < 0x80) continue;
+      if (c < 0x800) bytes += 1;
+      else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+      {
+        bytes += 2; // four bytes for the pair
+        i++;
+      }
+      else bytes += 2;
+    }
+    return bytes;
+  }
+
+  private static String rates(RateMeter meter)
+  {
+    return String.format("%.0f/s  (1m avg %.1f/s, total %d)",
+      meter.perSecond(1), meter.perSecond(RateMeter.WINDOW_SECONDS), meter.total());
+  }
+
+  private static String micros(double nanos)
+  {
+    return nanos < 10_000 ? String.format("%.1fus", nanos / 1000.0)
+      : nanos < 10_000_000 ? String.format("%.0fus", nanos / 1000.0)
+      : String.format("%.0fms", nanos / 1_000_000.0);
+  }
+
+  private static String formatUptime(long seconds)
+  {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+}
@@ -0,0 +1,53 @@
+package edu.seg2105.server.backend;
+
+/**
+ * The server's metrics as seen over JMX, e.g. from jconsole or a JMX
+ * exporter.  Rates are averaged over the last completed second unless
+ * the name says otherwise; latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean
+{
+  int getConnectedClients();
+
+  int getLoggedInClients();
+
+  double getMessagesInPerSecond();
+
+  double getMessagesOutPerSecond();
+
+  double getBytesInPerSecond();
+
+  double getBytesOutPerSecond();
+
+  double getMessagesInPerSecondLastMinute();
+
+  double getMessagesOutPerSecondLastMinute();
+
+  long getMessagesInTotal();
+
+  long getMessagesOutTotal();
+
+  long getBytesInTotal();
+
+  long getBytesOutTotal();
+
+  double getRateLimitedPerSecond();
+
+  long getRateLimitedTotal();
+
+  long getDeliveryCount();
+
+  double getDeliveryMeanMicros();
+
+  double getDeliveryP50Micros();
+
+  double getDeliveryP90Micros();
+
+  double getDeliveryP99Micros();
+
+  double getDeliveryP999Micros();
+
+  double getDeliveryMaxMicros();
+
+  long getUptimeSeconds();
+}
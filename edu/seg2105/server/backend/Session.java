@@ -0,0 +1,131 @@
+package edu.seg2105.server.backend;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A logged-in client.  Created by SessionRegistry when a login succeeds
+ * and attached to the client's connection, so the message path reads the
+ * login id from a field instead of looking it up on every message.
+ */
+public final class Session
+{
+  //Instance variables **********************************************
+
+  private final String loginId;
+  private final long senderId;
+  private final ClientConnection connection;
+  private final long loginTime;
+  private final String resumeToken;
+
+  private final AtomicLong messagesReceived = new AtomicLong();
+  private volatile long lastMessageTime;
+
+  /**
+   * The channels this client has joined, kept by ChannelIndex, and the
+   * one its plain messages go to (null for everyone).
+   */
+  final Set<String> channels = ConcurrentHashMap.newKeySet();
+  volatile String activeChannel;
+
+  /**
+   * This client's rate limit buckets, kept by RateLimiter.
+   */
+  final TokenBucket messageBucket = new TokenBucket();
+  final TokenBucket byteBucket = new TokenBucket();
+  final TokenBucket strikeBucket = new TokenBucket();
+
+  /**
+   * Set when the server has decided to disconnect this client; anything
+   * it sent meanwhile is dropped.
+   */
+  volatile boolean closing;
+
+  /**
+   * The System.nanoTime() of the last thing the client sent, pings
+   * included, and whether it has ever pinged.  The idle reaper only
+   * disconnects clients that ping, since older ones go quiet when idle.
+   */
+  volatile long lastHeard = System.nanoTime();
+  volatile boolean heartbeats;
+
+  //Constructors ****************************************************
+
+  Session(String loginId, long senderId, ClientConnection connection, String resumeToken)
+  {
+    this.loginId = loginId;
+    this.senderId = senderId;
+    this.connection = connection;
+    this.resumeToken = resumeToken;
+    this.loginTime = System.currentTimeMillis();
+    this.lastMessageTime = loginTime;
+  }
+
+  //Instance methods ************************************************
+
+  public String getLoginId()
+  {
+    return loginId;
+  }
+
+  /**
+   * Returns the numeric id binary chat frames carry for this client.
+   */
+  public long getSenderId()
+  {
+    return senderId;
+  }
+
+  public ClientConnection getConnection()
+  {
+    return connection;
+  }
+
+  /**
+   * Returns when the client logged in, in milliseconds since the epoch.
+   */
+  public long getLoginTime()
+  {
+    return loginTime;
+  }
+
+  /**
+   * Returns how many chat messages the client has sent since logging in.
+   */
+  public long getMessagesReceived()
+  {
+    return messagesReceived.get();
+  }
+
+  /**
+   * Returns when the client last sent a message, or its login time.
+   */
+  public long getLastMessageTime()
+  {
+    return lastMessageTime;
+  }
+
+  /**
+   * Returns the secret a reconnecting binary client shows to take this
+   * session over from its old connection.
+   */
+  String getResumeToken()
+  {
+    return resumeToken;
+  }
+
+  /**
+   * Counts one message from the client.
+   */
+  void messageReceived()
+  {
+    messagesReceived.incrementAndGet();
+    lastMessageTime = System.currentTimeMillis();
+  }
+
+  public String toString()
+  {
+    return loginId;
+  }
+}
@@ -0,0 +1,308 @@
+package edu.seg2105.server.backend;
+
+import java.security.SecureRandom;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every logged-in client, keyed by login id.  Login, lookup and logout
+ * are single hash operations, and a login id can belong to only one
+ * connection at a time.
+ *
+ * <p>Broadcasts read an immutable snapshot of the logged-in connections
+ * and take no lock.  Every login and logout copies the snapshot and
+ * publishes the copy as a new version, so a storm of connects and
+ * disconnects costs the writers an array copy each but never stalls a
+ * broadcast that is already under way.
+ *
+ * <p>A session that logs out is parked for a while under its resume
+ * token, so a binary client whose connection dropped can come back as
+ * the same session, channels included.
+ */
+class SessionRegistry
+{
+  //Class variables *************************************************
+
+  /**
+   * How long a parked session can be resumed.
+   */
+  static final long RESUME_GRACE_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * Parked sessions past this many trigger a sweep of expired ones, at
+   * most once a second.
+   */
+  private static final int PARKED_SWEEP_SIZE = 1024;
+
+  /**
+   * The sweep also drops unexpired sessions past this many, so a burst of
+   * logouts cannot grow the map without bound.
+   */
+  private static final int MAX_PARKED = 16384;
+
+  //Instance variables **********************************************
+
+  private final ConcurrentHashMap<String, Session> byLoginId =
+    new ConcurrentHashMap<String, Session>();
+  private final AtomicLong nextSenderId = new AtomicLong();
+  private final SecureRandom random = new SecureRandom();
+  private final ConcurrentHashMap<String, Parked> parked =
+    new ConcurrentHashMap<String, Parked>();
+  private volatile long lastSweep = 0;
+
+  /**
+   * Guards changes to byLoginId together with the snapshot published for
+   * them, so the two always agree.  Readers never take it.
+   */
+  private final Object writeLock = new Object();
+  private final IdentityHashMap<ClientConnection, Integer> slots =
+    new IdentityHashMap<ClientConnection, Integer>(); // index in the snapshot; writeLock
+  private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+  //Instance methods ************************************************
+
+  /**
+   * Logs a connection in and attaches the new session to it.
+   *
+   * @param loginId The id the client asked for.
+   * @param connection The client's connection.
+   * @return The new session, or null if the id is already in use.
+   */
+  Session login(String loginId, ClientConnection connection)
+  {
+    Session session = new Session(loginId, nextSenderId.incrementAndGet(), connection, newToken());
+    synchronized (writeLock)
+    {
+      if (byLoginId.putIfAbsent(loginId, session) != null) return null;
+      connection.setSession(session);
+      publishAdd(connection);
+    }
+    return session;
+  }
+
+  /**
+   * Moves a session to a new connection, for a client that reconnected
+   * before the server noticed its old connection was gone.  The new
+   * session keeps the sender id and resume token.
+   *
+   * @param previous The session to take over.
+   * @param connection The client's new connection.
+   * @return The new session, or null if previous is no longer registered.
+   */
+  Session takeOver(Session previous, ClientConnection connection)
+  {
+    Session session = new Session(previous.getLoginId(), previous.getSenderId(), connection,
+      previous.getResumeToken());
+    synchronized (writeLock)
+    {
+      if (!byLoginId.replace(previous.getLoginId(), previous, session)) return null;
+      connection.setSession(session);
+      publishRemove(previous.getConnection());
+      publishAdd(connection);
+    }
+    return session;
+  }
+
+  /**
+   * Brings back a parked session on a new connection, with its sender id
+   * and resume token.
+   *
+   * @return The new session, or null if the login id is in use again.
+   */
+  Session restore(Parked from, ClientConnection connection)
+  {
+    Session session = new Session(from.loginId, from.senderId, connection, from.resumeToken);
+    synchronized (writeLock)
+    {
+      if (byLoginId.putIfAbsent(from.loginId, session) != null) return null;
+      connection.setSession(session);
+      publishAdd(connection);
+    }
+    return session;
+  }
+
+  /**
+   * Removes and returns the session parked under a resume token, if it
+   * belongs to the login id and has not expired.
+   */
+  Parked unpark(String resumeToken, String loginId)
+  {
+    Parked p = parked.remove(resumeToken);
+    if (p == null || !p.loginId.equals(loginId)) return null;
+    return System.currentTimeMillis() - p.parkedAt <= RESUME_GRACE_MILLIS ? p : null;
+  }
+
+  /**
+   * Returns whether a session is parked under a resume token for the
+   * login id and has not expired, without taking it out.
+   */
+  boolean isParked(String resumeToken, String loginId)
+  {
+    Parked p = parked.get(resumeToken);
+    return p != null && p.loginId.equals(loginId)
+      && System.currentTimeMillis() - p.parkedAt <= RESUME_GRACE_MILLIS;
+  }
+
+  /**
+   * Returns the session for a login id, or null if nobody has that id.
+   */
+  Session get(String loginId)
+  {
+    return byLoginId.get(loginId);
+  }
+
+  /**
+   * Removes the connection's session, if it has one, and parks it.  Call
+   * before the session leaves its channels, so they are parked too.  Safe
+   * to call more than once.
+   *
+   * @return Whether a session was removed.
+   */
+  boolean logout(ClientConnection connection)
+  {
+    Session session = connection.getSession();
+    if (session == null) return false;
+    synchronized (writeLock)
+    {
+      if (!byLoginId.remove(session.getLoginId(), session)) return false;
+      publishRemove(connection);
+    }
+    long now = System.currentTimeMillis();
+    if (parked.size() >= PARKED_SWEEP_SIZE && now - lastSweep >= 1000) sweep(now);
+    parked.put(session.getResumeToken(), new Parked(session));
+    return true;
+  }
+
+  /**
+   * Returns the number of logged-in clients.
+   */
+  int size()
+  {
+    return snapshot.size();
+  }
+
+  /**
+   * Returns every logged-in connection as of now, for broadcasts.  The
+   * snapshot never changes, so it can be iterated, and its size used, with
+   * no lock; logins and logouts after this call publish a new one.
+   */
+  Snapshot connections()
+  {
+    return snapshot;
+  }
+
+  /**
+   * Returns a snapshot of every session.
+   */
+  List<Session> sessions()
+  {
+    return new ArrayList<Session>(byLoginId.values());
+  }
+
+  // === Snapshot publishing (under writeLock) ===
+  // Adding appends to a copy; removing copies with the last connection moved into the gap, so both
+  // are one array copy however large the server.
+
+  private void publishAdd(ClientConnection connection)
+  {
+    Snapshot current = snapshot;
+    ClientConnection[] next = Arrays.copyOf(current.connections, current.connections.length + 1);
+    next[current.connections.length] = connection;
+    slots.put(connection, current.connections.length);
+    snapshot = new Snapshot(current.version + 1, next);
+  }
+
+  private void publishRemove(ClientConnection connection)
+  {
+    Integer slot = slots.remove(connection);
+    if (slot == null) return;
+    Snapshot current = snapshot;
+    int last = current.connections.length - 1;
+    ClientConnection[] next = Arrays.copyOf(current.connections, last);
+    if (slot < last)
+    {
+      next[slot] = current.connections[last];
+      slots.put(next[slot], slot);
+    }
+    snapshot = new Snapshot(current.version + 1, next);
+  }
+
+  private void sweep(long now)
+  {
+    lastSweep = now;
+    parked.values().removeIf(p -> now - p.parkedAt > RESUME_GRACE_MILLIS);
+    Iterator<Parked> it = parked.values().iterator();
+    while (parked.size() > MAX_PARKED && it.hasNext())
+    {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private String newToken()
+  {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    return HexFormat.of().formatHex(bytes);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The logged-in connections at one moment, numbered by version.  Never
+   * changes after it is published.
+   */
+  static final class Snapshot extends AbstractList<ClientConnection> implements RandomAccess
+  {
+    static final Snapshot EMPTY = new Snapshot(0, new ClientConnection[0]);
+
+    final long version;
+    private final ClientConnection[] connections;
+
+    private Snapshot(long version, ClientConnection[] connections)
+    {
+      this.version = version;
+      this.connections = connections;
+    }
+
+    public ClientConnection get(int index)
+    {
+      return connections[index];
+    }
+
+    public int size()
+    {
+      return connections.length;
+    }
+  }
+
+  /**
+   * What a logged-out session leaves behind for a client that resumes.
+   */
+  static final class Parked
+  {
+    final String loginId;
+    final long senderId;
+    final String resumeToken;
+    final List<String> channels;
+    final String activeChannel;
+    final long parkedAt = System.currentTimeMillis();
+
+    Parked(Session session)
+    {
+      loginId = session.getLoginId();
+      senderId = session.getSenderId();
+      resumeToken = session.getResumeToken();
+      channels = new ArrayList<String>(session.channels);
+      activeChannel = session.activeChannel;
+    }
+  }
+}
@@ -0,0 +1,723 @@
+package edu.seg2105.server.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import edu.seg2105.client.common.ChatFrame;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * A blocking, one-reader-per-client engine like OCSF's, except that the
+ * reader threads come from a ThreadFactory.  OCSF creates and starts its
+ * ConnectionToClient threads inside AbstractServer, so they cannot be
+ * moved onto virtual threads; this engine reproduces the same model with
+ * the thread type chosen at startup.
+ *
+ * <p>With virtual threads each client still gets a straight-line blocking
+ * reader that calls handleMessageFromClient, but parked readers cost a
+ * small heap object instead of a platform thread and its stack.  Writes
+ * are guarded by a ReentrantLock rather than synchronized so a blocked
+ * write does not pin its carrier thread.
+ *
+ * <p>A client whose first object is ChatFrame.HELLO is answered with the
+ * magic bytes and switched to binary frames, as in the NIO engine.
+ *
+ * <p>If the server has a TLS context, the engine listens with it.  Each
+ * new client's handshake runs on a small pool of its own before the
+ * client gets a reader, so a burst of reconnecting clients waits its turn
+ * there instead of taking the CPU from the clients already connected.
+ */
+public class ThreadedServerEngine implements ServerEngine
+{
+  //Class variables *************************************************
+
+  /**
+   * Threads doing TLS handshakes.  A full handshake is mostly public-key
+   * arithmetic, so more threads than half the cores would only slow the
+   * readers down.
+   */
+  static final int HANDSHAKE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  /**
+   * How long a client may take over its TLS handshake.
+   */
+  static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  //Instance variables **********************************************
+
+  private final EchoServer server;
+  private final ThreadFactory threads;
+  private volatile int port;
+
+  private volatile ServerSocket serverSocket;
+  private volatile Thread acceptThread;
+
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Runs TLS handshakes; made on the first TLS client.  Clients beyond
+   * what its queue holds are turned away and retry.
+   */
+  private ThreadPoolExecutor handshakes;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a threaded engine.
+   *
+   * @param server The server whose callbacks receive client events.
+   * @param port The port to listen on.
+   * @param threads Creates every client reader thread.
+   */
+  public ThreadedServerEngine(EchoServer server, int port, ThreadFactory threads)
+  {
+    this.server = server;
+    this.port = port;
+    this.threads = threads;
+  }
+
+  //Instance methods ************************************************
+
+  public synchronized void listen() throws IOException
+  {
+    if (isListening()) return;
+    accept(bind(port));
+  }
+
+  public synchronized void moveTo(int port) throws IOException
+  {
+    if (!isListening())
+    {
+      this.port = port;
+      listen();
+      return;
+    }
+    ServerSocket socket = bind(port);
+    stopListening();
+    this.port = port;
+    accept(socket);
+  }
+
+  public synchronized void stopListening()
+  {
+    ServerSocket socket = serverSocket;
+    serverSocket = null;
+    acceptThread = null;
+    if (socket != null)
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  public synchronized void close() throws IOException
+  {
+    stopListening();
+    for (Connection c : connections)
+    {
+      c.closeNow();
+    }
+  }
+
+  public boolean isListening()
+  {
+    return acceptThread != null;
+  }
+
+  public int getPort()
+  {
+    return port;
+  }
+
+  public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  public int getNumberOfClients()
+  {
+    return connections.size();
+  }
+
+  public List<ClientConnection> getClientConnections()
+  {
+    return new ArrayList<ClientConnection>(connections);
+  }
+
+  /**
+   * Sends a message to every client.  Text is encoded at most once per
+   * protocol, and compressed at most once for clients that asked, and the
+   * same bytes are queued for every socket; other objects go through each
+   * client's ObjectOutputStream.
+   */
+  public void sendToAllClients(Object msg)
+  {
+    sendToClients(connections, msg);
+  }
+
+  public void sendToClients(Iterable<? extends ClientConnection> recipients, Object msg)
+  {
+    ChatFrame frame = null;
+    if (msg instanceof ChatFrame) frame = (ChatFrame) msg;
+    else if (msg instanceof String) frame = new ChatFrame(ChatFrame.SERVER_MSG, (String) msg);
+
+    ByteBuffer legacy = null;
+    ByteBuffer binary = null;
+    ByteBuffer deflated = null;
+    boolean deflateTried = false;
+    for (ClientConnection recipient : recipients)
+    {
+      if (!(recipient instanceof Connection))
+      {
+        try { recipient.sendToClient(msg); } catch (IOException ignored) {} // not one of ours, e.g. a test double
+        continue;
+      }
+      Connection c = (Connection) recipient;
+      if (!c.negotiated) continue;
+      Object shared = msg;
+      if (frame != null && c.binary)
+      {
+        if (binary == null) binary = frame.encode();
+        shared = binary;
+        if (c.compressAbove > 0 && binary.remaining() >= c.compressAbove)
+        {
+          if (!deflateTried)
+          {
+            deflateTried = true;
+            deflated = ChatFrame.deflate(binary);
+          }
+          if (deflated != null) shared = deflated;
+        }
+      }
+      else if (frame != null)
+      {
+        if (legacy == null) legacy = SerializedStringCodec.encode(frame.getText());
+        shared = legacy;
+      }
+      try
+      {
+        c.outbound.offer(shared);
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  private ServerSocket bind(int port) throws IOException
+  {
+    SSLContext tls = server.getTls();
+    ServerSocket socket = tls != null ? tls.getServerSocketFactory().createServerSocket() : new ServerSocket();
+    try
+    {
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress(port), NioServerEngine.BACKLOG);
+    }
+    catch (IOException e)
+    {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
+  /**
+   * Starts accepting on a platform thread of its own, whichever kind the
+   * readers are.  Like the NIO acceptor it is not a daemon, so the JVM
+   * keeps running while the server listens.
+   */
+  private void accept(ServerSocket socket)
+  {
+    serverSocket = socket;
+    acceptThread = new Thread(() -> acceptLoop(socket), "threaded-acceptor");
+    acceptThread.setDaemon(false);
+    acceptThread.start();
+  }
+
+  private void acceptLoop(ServerSocket socket)
+  {
+    server.serverStarted();
+    try
+    {
+      while (true)
+      {
+        Socket client = socket.accept();
+        client.setTcpNoDelay(true);
+        if (client instanceof SSLSocket) handshake((SSLSocket) client);
+        else start(client);
+      }
+    }
+    catch (IOException e)
+    {
+      if (!socket.isClosed())
+        server.getLog().warn("[Server] Accept failed: " + e.getMessage());
+    }
+    finally
+    {
+      boolean moved;
+      synchronized (this)
+      {
+        moved = serverSocket != null && serverSocket != socket; // moveTo opened another port
+        if (serverSocket == socket)
+        {
+          serverSocket = null;
+          acceptThread = null;
+          try
+          {
+            socket.close();
+          }
+          catch (IOException ignored) {}
+        }
+      }
+      if (!moved) server.serverStopped();
+    }
+  }
+
+  private void start(Socket client)
+  {
+    Connection connection = new Connection(client);
+    threads.newThread(connection).start();
+  }
+
+  /**
+   * Queues a TLS client for its handshake and starts its reader after.
+   * A client that resumes a session skips the costly part, so the queue
+   * mostly holds clients connecting for the first time.
+   */
+  private void handshake(SSLSocket client)
+  {
+    try
+    {
+      handshakes().execute(() -> {
+        try
+        {
+          client.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+          client.startHandshake();
+          client.setSoTimeout(0);
+        }
+        catch (IOException e)
+        {
+          if (server.getLog().enabled(ServerLog.Level.DEBUG))
+            server.getLog().debug("[Server] TLS handshake with " + client.getInetAddress().getHostAddress() + " failed: " + e.getMessage());
+          closeQuietly(client);
+          return;
+        }
+        start(client);
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      closeQuietly(client);
+    }
+  }
+
+  private synchronized ThreadPoolExecutor handshakes()
+  {
+    if (handshakes == null)
+    {
+      AtomicLong count = new AtomicLong();
+      handshakes = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS,
+        30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(NioServerEngine.BACKLOG), task -> {
+          Thread t = new Thread(task, "tls-handshake-" + count.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        });
+      handshakes.allowCoreThreadTimeOut(true);
+    }
+    return handshakes;
+  }
+
+  //Class methods ***************************************************
+
+  private static void closeQuietly(Socket socket)
+  {
+    try
+    {
+      socket.close();
+    }
+    catch (IOException ignored) {}
+  }
+
+  /**
+   * Returns a factory for virtual threads, or null when the running JVM
+   * has none (before Java 21).  Looked up reflectively so the rest of the
+   * server still compiles and runs on the Java 17 the build targets.
+   */
+  public static ThreadFactory virtualThreadFactory()
+  {
+    return virtualThreadFactory("client-");
+  }
+
+  /**
+   * Same as virtualThreadFactory(), naming threads prefix0, prefix1, ...
+   *
+   * @param prefix The thread name prefix.
+   */
+  public static ThreadFactory virtualThreadFactory(String prefix)
+  {
+    try
+    {
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderType.getMethod("name", String.class, long.class)
+        .invoke(builder, prefix, 0L);
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Returns null if the running JVM has virtual threads, or else the
+   * reason --engine=virtual cannot start, naming the Java it needs.
+   */
+  public static String virtualThreadsUnavailable()
+  {
+    if (virtualThreadFactory() != null) return null;
+    return "The virtual engine needs Java 21 or later; this is Java " + Runtime.version();
+  }
+
+  /**
+   * Returns a factory for ordinary named platform threads.
+   */
+  public static ThreadFactory platformThreadFactory()
+  {
+    AtomicLong count = new AtomicLong();
+    return task -> new Thread(task, "client-" + count.getAndIncrement());
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One client socket with its blocking reader.
+   */
+  private class Connection implements ClientConnection, Runnable, OutboundQueue.Sink
+  {
+    private final Socket socket;
+    private final InetAddress address;
+    private final Map<String, Object> info = new ConcurrentHashMap<String, Object>();
+    private volatile Session session;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private BufferedOutputStream rawOutput;
+    private ObjectOutputStream output;
+
+    /**
+     * Set once the first message has arrived and the protocol is settled.
+     */
+    volatile boolean negotiated = false;
+    volatile boolean binary = false;
+
+    /**
+     * Frames this large or larger go out compressed; 0 until the client
+     * asks.
+     */
+    volatile int compressAbove = 0;
+
+    /**
+     * Messages and pre-encoded frames waiting for this client's writer.
+     */
+    final OutboundQueue outbound;
+
+    Connection(Socket socket)
+    {
+      this.socket = socket;
+      this.address = socket.getInetAddress();
+      this.outbound = new OutboundQueue(this, server.getOutboundCapacity(),
+        server.getOverflowPolicy());
+    }
+
+    public void run()
+    {
+      writeLock.lock();
+      try
+      {
+        rawOutput = new BufferedOutputStream(socket.getOutputStream());
+        output = new ObjectOutputStream(rawOutput);
+        output.flush();
+      }
+      catch (IOException e)
+      {
+        closeSocket();
+        return;
+      }
+      finally
+      {
+        writeLock.unlock();
+      }
+
+      // connected before the client's stream header is read, so the server's login deadline covers
+      // a client that never sends one
+      connections.add(this);
+      server.clientConnected(this);
+      try
+      {
+        BufferedInputStream rawInput = new BufferedInputStream(new QuickAckInput(socket.getInputStream()));
+        ObjectInputStream input = new ObjectInputStream(rawInput);
+        Object first = input.readObject();
+        if (ChatFrame.HELLO.equals(first))
+        {
+          // ObjectInputStream reads no further than the end of an object,
+          // so the frames that follow are still in rawInput
+          acceptBinary();
+          List<ChatFrame> frames = new ArrayList<ChatFrame>();
+          while (!closed.get())
+          {
+            frames.clear();
+            ChatFrame.read(rawInput, frames);
+            for (ChatFrame frame : frames)
+            {
+              if (closed.get()) break;
+              if (frame.getType() == ChatFrame.COMPRESS) acceptCompression(frame);
+              else server.handleMessageFromClient(frame, this);
+            }
+          }
+        }
+        else
+        {
+          negotiated = true;
+          server.handleMessageFromClient(first, this);
+          while (!closed.get())
+          {
+            Object msg = input.readObject();
+            server.handleMessageFromClient(msg, this);
+          }
+        }
+      }
+      catch (Exception e)
+      {
+        // the client went away or sent something unreadable
+      }
+      finally
+      {
+        closeNow();
+      }
+    }
+
+    private void acceptBinary() throws IOException
+    {
+      binary = true;
+      writeEncoded(ByteBuffer.wrap(ChatFrame.MAGIC));
+      negotiated = true;
+    }
+
+    /**
+     * Answers a client's COMPRESS with the server's threshold, or "off".
+     * The server never sees the request.
+     */
+    private void acceptCompression(ChatFrame request) throws IOException
+    {
+      int threshold = server.getCompressThreshold();
+      compressAbove = ChatFrame.DEFLATE.equals(request.getText().trim()) ? threshold : 0;
+      outbound.offer(new ChatFrame(ChatFrame.COMPRESS,
+        compressAbove > 0 ? ChatFrame.DEFLATE + " " + compressAbove : "off").encode());
+    }
+
+    public void sendToClient(Object msg) throws IOException
+    {
+      outbound.offer(msg);
+    }
+
+    /**
+     * Called by the outbound writer.
+     */
+    public void write(Object msg) throws IOException
+    {
+      if (msg instanceof ByteBuffer)
+      {
+        writeEncoded((ByteBuffer) msg);
+      }
+      else if (binary)
+      {
+        if (msg instanceof String) msg = new ChatFrame(ChatFrame.SERVER_MSG, (String) msg);
+        if (!(msg instanceof ChatFrame))
+          throw new IOException("binary clients only take text messages");
+        ByteBuffer encoded = ((ChatFrame) msg).encode();
+        ByteBuffer deflated = compressAbove > 0 && encoded.remaining() >= compressAbove
+          ? ChatFrame.deflate(encoded) : null;
+        writeEncoded(deflated != null ? deflated : encoded);
+      }
+      else
+      {
+        writeObject(msg instanceof ChatFrame ? ((ChatFrame) msg).getText() : msg);
+      }
+    }
+
+    private void writeObject(Object msg) throws IOException
+    {
+      writeLock.lock();
+      try
+      {
+        if (closed.get() || output == null)
+          throw new SocketException("socket does not exist");
+        output.writeObject(msg);
+        output.reset();
+        output.flush();
+      }
+      finally
+      {
+        writeLock.unlock();
+      }
+    }
+
+    /**
+     * Writes an already serialized frame straight to the socket.  Every
+     * frame ends in a reset and the object stream is flushed after each
+     * write, so the client's ObjectInputStream sees a valid stream.
+     *
+     * @param frame A heap buffer in read mode; it is not modified.
+     */
+    private void writeEncoded(ByteBuffer frame) throws IOException
+    {
+      writeLock.lock();
+      try
+      {
+        if (closed.get() || rawOutput == null)
+          throw new SocketException("socket does not exist");
+        rawOutput.write(frame.array(), frame.arrayOffset() + frame.position(),
+          frame.remaining());
+        rawOutput.flush();
+      }
+      finally
+      {
+        writeLock.unlock();
+      }
+    }
+
+    public void close()
+    {
+      outbound.close();
+    }
+
+    public void closeNow()
+    {
+      if (!closed.compareAndSet(false, true)) return;
+      outbound.discard();
+      closeSocket();
+      if (connections.remove(this))
+      {
+        server.clientDisconnected(this);
+      }
+    }
+
+    private void closeSocket()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ignored) {}
+    }
+
+    public void setInfo(String infoType, Object value)
+    {
+      if (value == null) info.remove(infoType);
+      else info.put(infoType, value);
+    }
+
+    public Object getInfo(String infoType)
+    {
+      return info.get(infoType);
+    }
+
+    public void setSession(Session session)
+    {
+      this.session = session;
+    }
+
+    public Session getSession()
+    {
+      return session;
+    }
+
+    public InetAddress getInetAddress()
+    {
+      return address;
+    }
+
+    public int getOutboundDepth()
+    {
+      return outbound.depth();
+    }
+
+    public long getDroppedMessages()
+    {
+      return outbound.dropped();
+    }
+
+    public String toString()
+    {
+      return address.getHostName() + " (" + address.getHostAddress() + ")";
+    }
+
+    /**
+     * Asks for an immediate ACK after every read from an object-stream
+     * client.  OCSF clients write each message as the object and then a
+     * reset; Nagle holds their next message until the lone reset is
+     * acknowledged, and a delayed ACK stalls it by tens of milliseconds.
+     * Binary clients write whole frames and do not need it.
+     */
+    private class QuickAckInput extends FilterInputStream
+    {
+      private final boolean supported = socket.supportedOptions()
+        .contains(ExtendedSocketOptions.TCP_QUICKACK);
+
+      QuickAckInput(InputStream in)
+      {
+        super(in);
+      }
+
+      public int read() throws IOException
+      {
+        int b = super.read();
+        if (b >= 0) ack();
+        return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        int n = super.read(b, off, len);
+        if (n > 0) ack();
+        return n;
+      }
+
+      private void ack() throws IOException
+      {
+        if (supported && !binary)
+        {
+          socket.setOption(ExtendedSocketOptions.TCP_QUICKACK, true);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package edu.seg2105.server.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: one thread and a ring of slots, each a list of
+ * the timeouts due when the hand reaches it.  Scheduling and cancelling
+ * are a link and an unlink in one slot, and each tick looks only at the
+ * slot under the hand, so a hundred thousand pending timeouts cost no
+ * more per tick than a few hundred, and nothing per connection in
+ * between.  A timeout further away than one turn of the wheel waits in
+ * its slot until the turn it is due.
+ *
+ * <p>Timeouts fire up to two ticks late, never early, and run one at a
+ * time on the wheel's thread, so they must be quick and must not block.
+ * The thread starts with the first timeout.
+ */
+class TimerWheel
+{
+  //Instance variables **********************************************
+
+  private final String name;
+  private final long tickNanos;
+  private final Timeout[] slots;   // each the head of a doubly linked list; guarded by this
+  private final int mask;
+  private long tick = 0;           // ticks done; guarded by this
+  private long startNanos;
+  private int pending = 0;         // guarded by this
+  private Thread hand;
+  private volatile boolean stopped = false;
+
+  //Constructors ****************************************************
+
+  /**
+   * @param name The thread's name.
+   * @param tickMillis How far apart the slots are.
+   * @param slots How many slots, rounded up to a power of two.
+   */
+  TimerWheel(String name, long tickMillis, int slots)
+  {
+    this.name = name;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.slots = new Timeout[size];
+    this.mask = size - 1;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs a task on the wheel's thread after a delay.
+   *
+   * @return The timeout, for cancelling it.
+   */
+  synchronized Timeout schedule(Runnable task, long delayMillis)
+  {
+    if (hand == null) start();
+    // counted from the tick now under way, plus one for the part of it already gone, so never early
+    long now = (System.nanoTime() - startNanos) / tickNanos;
+    long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + tickNanos - 1) / tickNanos;
+    Timeout timeout = new Timeout(task, Math.max(now, tick) + ticks + 1);
+    int slot = (int) (timeout.dueTick & mask);
+    timeout.slot = slot;
+    timeout.next = slots[slot];
+    if (timeout.next != null) timeout.next.prev = timeout;
+    slots[slot] = timeout;
+    pending++;
+    return timeout;
+  }
+
+  /**
+   * Stops a timeout from firing.  Does nothing if it has fired or been
+   * cancelled already.
+   */
+  synchronized void cancel(Timeout timeout)
+  {
+    if (timeout.slot >= 0) unlink(timeout);
+  }
+
+  /**
+   * Returns how many timeouts have yet to fire.
+   */
+  synchronized int pending()
+  {
+    return pending;
+  }
+
+  /**
+   * Stops the thread.  Timeouts not yet fired never will.
+   */
+  void stop()
+  {
+    stopped = true;
+    Thread t;
+    synchronized (this)
+    {
+      t = hand;
+    }
+    if (t != null) t.interrupt();
+  }
+
+  private void start()
+  {
+    startNanos = System.nanoTime();
+    hand = new Thread(this::turn, name);
+    hand.setDaemon(true);
+    hand.start();
+  }
+
+  private void turn()
+  {
+    List<Timeout> due = new ArrayList<Timeout>();
+    long next = 1;
+    while (!stopped)
+    {
+      long sleep = startNanos + next * tickNanos - System.nanoTime();
+      if (sleep > 0)
+      {
+        try
+        {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        continue;
+      }
+      synchronized (this)
+      {
+        tick = next;
+        Timeout t = slots[(int) (next & mask)];
+        while (t != null)
+        {
+          Timeout following = t.next;
+          if (t.dueTick <= next)
+          {
+            unlink(t);
+            due.add(t);
+          }
+          t = following;
+        }
+      }
+      next++;
+      for (Timeout t : due)
+      {
+        try
+        {
+          t.task.run();
+        }
+        catch (RuntimeException e)
+        {
+          // one broken task must not stop the others
+        }
+      }
+      due.clear();
+    }
+  }
+
+  private void unlink(Timeout t)
+  {
+    if (t.prev != null) t.prev.next = t.next;
+    else slots[t.slot] = t.next;
+    if (t.next != null) t.next.prev = t.prev;
+    t.prev = t.next = null;
+    t.slot = -1;
+    pending--;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One scheduled task.  Its links are guarded by the wheel.
+   */
+  static final class Timeout
+  {
+    final Runnable task;
+    final long dueTick;
+    int slot = -1;   // -1 once fired or cancelled
+    Timeout prev;
+    Timeout next;
+
+    private Timeout(Runnable task, long dueTick)
+    {
+      this.task = task;
+      this.dueTick = dueTick;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package edu.seg2105.server.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that never takes a lock.  Its whole state is one time:
+ * when the bucket will be full again (the "theoretical arrival time" of
+ * the generic cell rate algorithm).  Taking n tokens pushes that time n
+ * token-intervals later, and is refused if it would end up more than a
+ * full bucket ahead of now.  Taking is one compare-and-set.
+ *
+ * <p>The rate and size come in with every call, so limits can be changed
+ * at runtime without touching the buckets.
+ */
+class TokenBucket
+{
+  //Instance variables **********************************************
+
+  private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE); // starts full
+
+  //Instance methods ************************************************
+
+  /**
+   * Takes n tokens if the bucket has them.  A request bigger than the
+   * whole bucket is let through when the bucket is full, so one large
+   * message is never refused forever.
+   *
+   * @param now System.nanoTime().
+   * @return Whether the tokens were taken.
+   */
+  boolean tryTake(long n, Limit limit, long now)
+  {
+    long cost = limit.cost(n);
+    while (true)
+    {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + cost;
+      if (next - now > limit.capacityNanos) return false;
+      if (fullAt.compareAndSet(current, next)) return true;
+    }
+  }
+
+  /**
+   * Gives back n tokens taken with the same limit, e.g. when a later
+   * check refused the message after all.
+   */
+  void refund(long n, Limit limit)
+  {
+    fullAt.addAndGet(-limit.cost(n));
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A rate and how far above it a burst may go.  Immutable; swap in a new
+   * one to change a limit.
+   */
+  static final class Limit
+  {
+    final double perSecond;
+    final long burst;
+    private final double nanosPerToken;
+    private final long capacityNanos;
+
+    /**
+     * @param perSecond Tokens added per second.
+     * @param burst The most tokens the bucket holds.
+     * @throws IllegalArgumentException if either is not positive.
+     */
+    Limit(double perSecond, long burst)
+    {
+      if (!(perSecond > 0) || burst < 1)
+      {
+        throw new IllegalArgumentException("Rate and burst must be positive");
+      }
+      this.perSecond = perSecond;
+      this.burst = burst;
+      this.nanosPerToken = 1e9 / perSecond;
+      this.capacityNanos = (long) Math.min(Long.MAX_VALUE / 4, Math.ceil(burst * nanosPerToken));
+    }
+
+    /**
+     * Parses "RATE[,BURST]"; the burst defaults to two seconds' worth.
+     *
+     * @throws IllegalArgumentException if it does not parse.
+     */
+    static Limit parse(String spec)
+    {
+      String[] parts = spec.trim().split(",", 2);
+      double rate = Double.parseDouble(parts[0].trim());
+      long burst = parts.length > 1 ? Long.parseLong(parts[1].trim()) : Math.max(1, (long) Math.ceil(rate * 2));
+      return new Limit(rate, burst);
+    }
+
+    private long cost(long n)
+    {
+      return (long) Math.min(capacityNanos, Math.ceil(n * nanosPerToken));
+    }
+
+    /**
+     * Returns e.g. "20 messages/s, burst 40".
+     */
+    String format(String unit)
+    {
+      String rate = perSecond == Math.rint(perSecond) ? String.valueOf((long) perSecond) : String.valueOf(perSecond);
+      return rate + " " + unit + "/s, burst " + burst;
+    }
+
+    public String toString()
+    {
+      return format("tokens");
+    }
+  }
+}